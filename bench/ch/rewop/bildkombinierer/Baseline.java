@@ -0,0 +1,60 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Die früheren Filter doBrightness, doContrast und makeTransparent, mit
+ * einem int[] an Stelle von getPixel/setPixel: spaltenweise, mit double
+ * Berechnungen und einem neuen Bild pro Filter.
+ */
+final class Baseline {
+
+	private Baseline() {
+	}
+
+	static int[] brightness(int[] src, int width, int height, int value) {
+		int[] out = new int[width * height];
+		for (int x = 0; x < width; ++x) {
+			for (int y = 0; y < height; ++y) {
+				int pixel = src[y * width + x];
+				int a = pixel >>> 24;
+				int r = clamp(((pixel >> 16) & 0xff) + value);
+				int g = clamp(((pixel >> 8) & 0xff) + value);
+				int b = clamp((pixel & 0xff) + value);
+				out[y * width + x] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+		return out;
+	}
+
+	static int[] contrast(int[] src, int width, int height, double value) {
+		int[] out = new int[width * height];
+		double contrast = Math.pow((100 + value) / 100, 2);
+		for (int x = 0; x < width; ++x) {
+			for (int y = 0; y < height; ++y) {
+				int pixel = src[y * width + x];
+				int a = pixel >>> 24;
+				int r = clamp((int) ((((((pixel >> 16) & 0xff) / 255.0) - 0.5) * contrast + 0.5) * 255.0));
+				int g = clamp((int) ((((((pixel >> 8) & 0xff) / 255.0) - 0.5) * contrast + 0.5) * 255.0));
+				int b = clamp((int) ((((pixel & 0xff) / 255.0 - 0.5) * contrast + 0.5) * 255.0));
+				out[y * width + x] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+		return out;
+	}
+
+	static int[] transparency(int[] src, int width, int height) {
+		int[] out = new int[width * height];
+		for (int index = 0; index < width * height; index++) {
+			int pixel = src[index];
+			int red = (pixel >> 16) & 0xff;
+			int green = (pixel >> 8) & 0xff;
+			int blue = pixel & 0xff;
+			int alpha = 255 - (int) (0.299 * red + 0.587 * green + 0.114 * blue);
+			out[index] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+		}
+		return out;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+}
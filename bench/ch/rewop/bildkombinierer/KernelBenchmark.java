@@ -0,0 +1,111 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Die Filter für neue Ebenen (Helligkeit 50, Kontrast 100, Transparenz) auf
+ * synthetischen Bildern: einmal wie früher in drei Durchgängen mit double
+ * Berechnungen und einem neuen Bild pro Filter, einmal als ein Durchgang mit
+ * den Tabellen-Kernels, seriell und parallel.
+ * 
+ * Der Zähler "megapixels" ergibt direkt Megapixel pro Sekunde, die Allokation
+ * pro Aufruf zeigt -prof gc.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Thread)
+public class KernelBenchmark {
+
+	@Param({ "1", "4", "12", "48" })
+	public int megapixels;
+
+	@Param({ "flat", "noisy", "gradient" })
+	public String content;
+
+	private int width;
+	private int height;
+	private int[] source;
+	private int[] pixels;
+	private PixelKernel fused;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megapixels;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		width = 4 * (int) Math.sqrt(megapixels * 1024 * 1024 / 12.0);
+		height = megapixels * 1024 * 1024 / width;
+		source = image(content, width, height);
+		pixels = new int[width * height];
+		fused = new KernelChain(new LookupTableKernel(PointOperations.brightness(50), PointOperations.contrast(100)),
+				new TransparencyKernel());
+	}
+
+	/**
+	 * Flach (eine Farbe), Rauschen oder ein Verlauf über das ganze Bild.
+	 */
+	static int[] image(String content, int width, int height) {
+		int[] image = new int[width * height];
+		Random random = new Random(42);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int argb;
+				if (content.equals("flat")) {
+					argb = 0xff8a7f70;
+				} else if (content.equals("noisy")) {
+					argb = 0xff000000 | random.nextInt(1 << 24);
+				} else {
+					int value = 255 * (x + y) / (width + height);
+					argb = 0xff000000 | (value << 16) | ((255 - value) << 8) | (value / 2);
+				}
+				image[y * width + x] = argb;
+			}
+		}
+		return image;
+	}
+
+	@Benchmark
+	public int[] baseline(Counters counters) {
+		counters.megapixels += megapixels;
+		int[] out = Baseline.brightness(source, width, height, 50);
+		out = Baseline.contrast(out, width, height, 100);
+		return Baseline.transparency(out, width, height);
+	}
+
+	@Benchmark
+	public int[] fused(Counters counters) {
+		counters.megapixels += megapixels;
+		System.arraycopy(source, 0, pixels, 0, pixels.length);
+		PixelEngine.run(fused, pixels, width, height);
+		return pixels;
+	}
+
+	@Benchmark
+	public int[] fusedParallel(Counters counters) {
+		counters.megapixels += megapixels;
+		System.arraycopy(source, 0, pixels, 0, pixels.length);
+		KernelExecutor.getDefault().run(fused, pixels, width, height);
+		return pixels;
+	}
+}
@@ -0,0 +1,109 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Die Schritte von {@link LayerMask} auf einer gefilterten Skizze, die als
+ * Maske gespeichert wird, und auf Rauschen, das als Bild bleibt. Die Prüfung
+ * (Farbe und Abweichung) läuft für jede neue Ebene, Extrahieren und Erweitern
+ * nur für Masken.
+ * 
+ * Der Zähler "megapixels" ergibt direkt Megapixel pro Sekunde.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Thread)
+public class LayerMaskBenchmark {
+
+	@Param({ "1", "12" })
+	public int megapixels;
+
+	@Param({ "sketch", "noisy" })
+	public String content;
+
+	private int count;
+	private int[] argb;
+	private int[] expanded;
+	private byte[] mask;
+	private int tint;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megapixels;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int width = 4 * (int) Math.sqrt(megapixels * 1024 * 1024 / 12.0);
+		int height = megapixels * 1024 * 1024 / width;
+		count = width * height;
+		argb = content.equals("sketch") ? sketch(width, height) : KernelBenchmark.image(content, width, height);
+		FilterGraph.parse("brightness=50;contrast=100;transparent").compile()
+				.apply(argb, width, height, KernelExecutor.getDefault());
+		expanded = new int[count];
+		mask = new byte[count];
+		tint = LayerMask.estimateTint(argb, count);
+		LayerMask.extract(argb, mask, count);
+	}
+
+	/**
+	 * Graue Bleistiftlinien auf leicht verrauschtem, weissem Papier.
+	 */
+	static int[] sketch(int width, int height) {
+		int[] argb = new int[width * height];
+		Random random = new Random(42);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				boolean line = (x + 2 * y) % 37 < 2 || Math.abs(x - y) < 2;
+				int value = line ? 60 + random.nextInt(20) : 250 + random.nextInt(6);
+				argb[y * width + x] = 0xff000000 | value << 16 | value << 8 | value;
+			}
+		}
+		return argb;
+	}
+
+	@Benchmark
+	public int estimateTint(Counters counters) {
+		counters.megapixels += megapixels;
+		return LayerMask.estimateTint(argb, count);
+	}
+
+	@Benchmark
+	public double error(Counters counters) {
+		counters.megapixels += megapixels;
+		return LayerMask.error(argb, count, tint);
+	}
+
+	@Benchmark
+	public byte[] extract(Counters counters) {
+		counters.megapixels += megapixels;
+		LayerMask.extract(argb, mask, count);
+		return mask;
+	}
+
+	@Benchmark
+	public int[] expand(Counters counters) {
+		counters.megapixels += megapixels;
+		LayerMask.expand(mask, tint, expanded, count);
+		return expanded;
+	}
+}
@@ -0,0 +1,127 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ein Export von 12 Megapixeln in Streifen von 512 Zeilen, mit threads = 0
+ * mit dem {@link PngEncoder} auf einem Thread, sonst mit dem
+ * {@link ParallelPngEncoder} mit so vielen Threads. Die Bytes werden nur
+ * gezählt, nicht geschrieben.
+ * 
+ * Der Zähler "megapixels" ergibt Megapixel pro Sekunde, "bytes" die Grösse
+ * der Datei, damit man sieht, was die Blockgrenzen an Kompression kosten.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class PngEncoderBenchmark {
+
+	private static final int BAND_ROWS = 512;
+
+	@Param({ "noisy", "gradient" })
+	public String content;
+
+	@Param({ "0", "1", "2", "4", "8" })
+	public int threads;
+
+	private int width;
+	private int height;
+	private int[] image;
+	private final CountingChannel channel = new CountingChannel();
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Size {
+		public long bytes;
+	}
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megapixels;
+	}
+
+	/**
+	 * Zählt die geschriebenen Bytes.
+	 */
+	static class CountingChannel extends OutputStream implements WritableByteChannel {
+		long count;
+
+		@Override
+		public int write(ByteBuffer buffer) {
+			int length = buffer.remaining();
+			buffer.position(buffer.limit());
+			count += length;
+			return length;
+		}
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			count += length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		width = 4000;
+		height = 3000;
+		image = KernelBenchmark.image(content, width, height);
+	}
+
+	@Benchmark
+	public void encode(Counters counters, Size size) throws IOException {
+		channel.count = 0;
+		if (threads == 0) {
+			BufferedOutputStream out = new BufferedOutputStream(channel, 64 * 1024);
+			PngEncoder png = new PngEncoder(out, width, height);
+			for (int top = 0; top < height; top += BAND_ROWS) {
+				png.writeRows(image, top * width, width, Math.min(BAND_ROWS, height - top));
+			}
+			png.finish();
+		} else {
+			ParallelPngEncoder png = new ParallelPngEncoder(channel, width, height, threads);
+			try {
+				for (int top = 0; top < height; top += BAND_ROWS) {
+					png.writeRows(image, top * width, width, Math.min(BAND_ROWS, height - top));
+				}
+				png.finish();
+			} finally {
+				png.abort();
+			}
+		}
+		counters.megapixels += width * height / 1e6;
+		size.bytes = channel.count;
+	}
+}
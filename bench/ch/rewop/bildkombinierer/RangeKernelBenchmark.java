@@ -0,0 +1,88 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Die Bereichs-Methode {@link BulkPixelKernel#apply(int[], int, int)}
+ * verglichen mit einem Aufruf von {@link PixelKernel#apply(int)} pro Pixel,
+ * so wie {@link PixelEngine} Kernels ohne Bereichs-Methode ausführt.
+ * 
+ * Beide kopieren zuerst das Quellbild, der Unterschied liegt also ganz in
+ * der Schleife. Der Zähler "megapixels" ergibt direkt Megapixel pro Sekunde.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Thread)
+public class RangeKernelBenchmark {
+
+	@Param({ "1", "12" })
+	public int megapixels;
+
+	@Param({ "noisy", "gradient" })
+	public String content;
+
+	@Param({ "lut", "transparency", "chain" })
+	public String kernel;
+
+	private int[] source;
+	private int[] pixels;
+	private BulkPixelKernel bulk;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megapixels;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int width = 4 * (int) Math.sqrt(megapixels * 1024 * 1024 / 12.0);
+		int height = megapixels * 1024 * 1024 / width;
+		source = KernelBenchmark.image(content, width, height);
+		pixels = new int[width * height];
+		LookupTableKernel lut = new LookupTableKernel(PointOperations.brightness(50), PointOperations.contrast(100));
+		if (kernel.equals("lut")) {
+			bulk = lut;
+		} else if (kernel.equals("transparency")) {
+			bulk = new TransparencyKernel();
+		} else {
+			bulk = new KernelChain(lut, new TransparencyKernel());
+		}
+	}
+
+	@Benchmark
+	public int[] range(Counters counters) {
+		counters.megapixels += megapixels;
+		System.arraycopy(source, 0, pixels, 0, pixels.length);
+		bulk.apply(pixels, 0, pixels.length);
+		return pixels;
+	}
+
+	@Benchmark
+	public int[] perPixel(Counters counters) {
+		counters.megapixels += megapixels;
+		System.arraycopy(source, 0, pixels, 0, pixels.length);
+		PixelKernel single = bulk;
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = single.apply(pixels[i]);
+		}
+		return pixels;
+	}
+}
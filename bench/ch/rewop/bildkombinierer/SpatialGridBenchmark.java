@@ -0,0 +1,121 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Punkt- und Bereichsabfragen im {@link SpatialGrid} mit Tausenden von
+ * Ebenen, verglichen mit dem Durchsuchen aller Bounding Boxes. Die Ebenen
+ * sind 100 - 700 Pixel gross und liegen verstreut auf einer Fläche von
+ * 4000 x 4000 Pixeln. Die Bereiche sind entweder so gross wie eine Kachel
+ * oder ein neu zu zeichnender Ausschnitt, oder so gross wie das Display.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpatialGridBenchmark {
+
+	private static final int QUERIES = 1024;
+
+	@Param({ "1000", "5000", "20000" })
+	public int layers;
+
+	@Param({ "512", "1920" })
+	public int area;
+
+	private float[][] boxes;
+	private SpatialGrid<float[]> grid;
+	private final float[] points = new float[2 * QUERIES];
+	private final List<float[]> result = new ArrayList<float[]>();
+	private int next;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		boxes = new float[layers][];
+		grid = new SpatialGrid<float[]>(256);
+		for (int i = 0; i < layers; i++) {
+			float left = random.nextFloat() * 4000;
+			float top = random.nextFloat() * 4000;
+			boxes[i] = new float[] { left, top, left + 100 + random.nextFloat() * 600,
+					top + 100 + random.nextFloat() * 600 };
+			grid.update(boxes[i], boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+		}
+		for (int i = 0; i < points.length; i++) {
+			points[i] = random.nextFloat() * 4000;
+		}
+	}
+
+	@Benchmark
+	public int pointGrid() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		result.clear();
+		grid.findContaining(points[i], points[i + 1], result);
+		return result.size();
+	}
+
+	@Benchmark
+	public int pointLinear() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		float x = points[i];
+		float y = points[i + 1];
+		int count = 0;
+		for (float[] box : boxes) {
+			if (box[0] <= x && x < box[2] && box[1] <= y && y < box[3]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int rectGrid() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		result.clear();
+		grid.findIntersecting(points[i], points[i + 1], points[i] + area, points[i + 1] + area, result);
+		return result.size();
+	}
+
+	@Benchmark
+	public int rectLinear() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		float left = points[i];
+		float top = points[i + 1];
+		float right = left + area;
+		float bottom = top + area;
+		int count = 0;
+		for (float[] box : boxes) {
+			if (box[0] < right && left < box[2] && box[1] < bottom && top < box[3]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Eine Ebene verschieben, wie bei jedem Frame während einer Geste.
+	 */
+	@Benchmark
+	public void move() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		float[] box = boxes[next % layers];
+		grid.update(box, points[i], points[i + 1], points[i] + box[2] - box[0], points[i + 1] + box[3] - box[1]);
+	}
+}
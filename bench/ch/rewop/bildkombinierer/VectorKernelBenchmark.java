@@ -0,0 +1,88 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Helligkeit und Kontrast ("points"), Transparenz und beide zusammen
+ * ("chain"), einmal mit den skalaren Kernels und einmal mit der Vector API
+ * aus desktop/, siehe {@link VectorKernels}. Braucht Java 16 oder neuer, die
+ * geforkte JVM erhält --add-modules jdk.incubator.vector.
+ * 
+ * Der Zähler "megapixels" ergibt direkt Megapixel pro Sekunde.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "--add-modules=jdk.incubator.vector" })
+@State(Scope.Thread)
+public class VectorKernelBenchmark {
+
+	@Param({ "1", "12" })
+	public int megapixels;
+
+	@Param({ "noisy", "gradient" })
+	public String content;
+
+	@Param({ "points", "transparency", "chain" })
+	public String kernel;
+
+	@Param({ "scalar", "vector" })
+	public String backend;
+
+	private int[] source;
+	private int[] pixels;
+	private BulkPixelKernel bulk;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megapixels;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int width = 4 * (int) Math.sqrt(megapixels * 1024 * 1024 / 12.0);
+		int height = megapixels * 1024 * 1024 / width;
+		source = KernelBenchmark.image(content, width, height);
+		pixels = new int[width * height];
+
+		boolean vector = backend.equals("vector");
+		if (vector && !VectorKernels.isAvailable()) {
+			throw new IllegalStateException("desktop/ is not compiled or jdk.incubator.vector is missing");
+		}
+		PointOperation[] operations = { PointOperations.brightness(50), PointOperations.contrast(100) };
+		BulkPixelKernel points = vector ? VectorKernels.points(operations) : new LookupTableKernel(operations);
+		BulkPixelKernel transparency = vector ? VectorKernels.transparency(new TransparencyKernel())
+				: new TransparencyKernel();
+		if (kernel.equals("points")) {
+			bulk = points;
+		} else if (kernel.equals("transparency")) {
+			bulk = transparency;
+		} else {
+			bulk = new KernelChain(points, transparency);
+		}
+	}
+
+	@Benchmark
+	public int[] apply(Counters counters) {
+		counters.megapixels += megapixels;
+		System.arraycopy(source, 0, pixels, 0, pixels.length);
+		bulk.apply(pixels, 0, pixels.length);
+		return pixels;
+	}
+}
@@ -0,0 +1,198 @@
+package ch.rewop.bildkombinierer;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Helligkeit, Kontrast und Transparenz mit der Java Vector API. Wird von
+ * {@link VectorKernels} über Reflection geladen und braucht Java 16 oder
+ * neuer mit --add-modules jdk.incubator.vector.
+ * 
+ * Die Kanäle werden aus den ARGB Werten ausgepackt, in allen Lanes
+ * gleichzeitig berechnet, begrenzt und wieder eingepackt. Die Pixel am Ende
+ * eines Bereichs, die keinen ganzen Vektor mehr füllen, und einzelne Pixel
+ * berechnet der skalare Kernel. Beide liefern dieselben Werte.
+ */
+class VectorBackend implements VectorKernels.Backend {
+
+	/**
+	 * Der Kontrast wird wie in {@link PointOperations} mit double
+	 * berechnet, nur so sind die Resultate dieselben. Es braucht dazu gleich
+	 * viele int wie double Lanes.
+	 * 
+	 * Alle Kernel rechnen mit denselben int Lanes. Mit verschiedenen Breiten
+	 * hintereinander in einer {@link KernelChain} übersetzt der JIT die
+	 * gemeinsamen Methoden der Vector API nicht mehr in SIMD Befehle.
+	 */
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Long> LONGS = VectorSpecies.of(long.class, DOUBLES.vectorShape());
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class,
+			VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	/**
+	 * 2^52: Zu einem double zwischen 0 und 2^31 addiert, steht die gerundete
+	 * Zahl in den unteren Bits. D2I wird von Java 17 nicht in SIMD Befehle
+	 * übersetzt, L2I schon.
+	 */
+	private static final double INTEGER_BITS = 0x1p52;
+
+	/**
+	 * Unterstützt werden eine Helligkeit, ein Kontrast oder eine Helligkeit
+	 * gefolgt von einem Kontrast, wie in den Filtern der App. Längere Folgen
+	 * rechnet die Tabelle.
+	 */
+	@Override
+	public BulkPixelKernel points(PointOperation[] operations) {
+		int brightness = 0;
+		double contrast = Double.NaN;
+		int i = 0;
+		if (i < operations.length && operations[i] instanceof PointOperations.Brightness) {
+			brightness = ((PointOperations.Brightness) operations[i++]).value;
+		}
+		if (i < operations.length && operations[i] instanceof PointOperations.Contrast) {
+			contrast = ((PointOperations.Contrast) operations[i++]).factor;
+		}
+		if (i == 0 || i != operations.length) {
+			return null;
+		}
+		return new PointsKernel(operations, brightness, contrast);
+	}
+
+	@Override
+	public BulkPixelKernel transparency(TransparencyKernel kernel) {
+		return new TransparencyVectorKernel(kernel);
+	}
+
+	/**
+	 * Helligkeit und Kontrast. Nach jeder Operation wird wie in
+	 * {@link LookupTableKernel#compile} auf 0 - 255 begrenzt, eine
+	 * Helligkeit von 0 ändert also nichts.
+	 * 
+	 * Die Species müssen Konstanten sein, sonst übersetzt der JIT die
+	 * Vektoren nicht in SIMD Befehle. Deshalb gibt es je eine Schleife mit
+	 * und ohne Kontrast.
+	 */
+	private static class PointsKernel implements BulkPixelKernel {
+		private final LookupTableKernel scalar;
+		private final int brightness;
+
+		/**
+		 * Der Faktor des Kontrasts, NaN ohne Kontrast.
+		 */
+		private final double contrast;
+
+		PointsKernel(PointOperation[] operations, int brightness, double contrast) {
+			this.scalar = new LookupTableKernel(operations);
+			this.brightness = brightness;
+			this.contrast = contrast;
+		}
+
+		@Override
+		public int apply(int argb) {
+			return scalar.apply(argb);
+		}
+
+		@Override
+		public void apply(int[] pixels, int from, int to) {
+			int end = Double.isNaN(contrast) ? applyBrightness(pixels, from, to) : applyContrast(pixels, from, to);
+			scalar.apply(pixels, end, to);
+		}
+
+		/**
+		 * Nur Helligkeit.
+		 */
+		private int applyBrightness(int[] pixels, int from, int to) {
+			int brightness = this.brightness;
+			int i = from;
+			int upper = from + INTS.loopBound(to - from);
+			for (; i < upper; i += INTS.length()) {
+				IntVector argb = IntVector.fromArray(INTS, pixels, i);
+				IntVector red = argb.lanewise(VectorOperators.LSHR, 16).and(0xff).add(brightness).max(0).min(255);
+				IntVector green = argb.lanewise(VectorOperators.LSHR, 8).and(0xff).add(brightness).max(0).min(255);
+				IntVector blue = argb.and(0xff).add(brightness).max(0).min(255);
+				argb.and(0xff000000).or(red.lanewise(VectorOperators.LSHL, 16))
+						.or(green.lanewise(VectorOperators.LSHL, 8)).or(blue).intoArray(pixels, i);
+			}
+			return i;
+		}
+
+		/**
+		 * Helligkeit und Kontrast.
+		 */
+		private int applyContrast(int[] pixels, int from, int to) {
+			int brightness = this.brightness;
+			double contrast = this.contrast;
+			int i = from;
+			int upper = from + INTS.loopBound(to - from);
+			for (; i < upper; i += INTS.length()) {
+				IntVector argb = IntVector.fromArray(INTS, pixels, i);
+				IntVector red = channel(argb.lanewise(VectorOperators.LSHR, 16).and(0xff), brightness, contrast);
+				IntVector green = channel(argb.lanewise(VectorOperators.LSHR, 8).and(0xff), brightness, contrast);
+				IntVector blue = channel(argb.and(0xff), brightness, contrast);
+				argb.and(0xff000000).or(red.lanewise(VectorOperators.LSHL, 16))
+						.or(green.lanewise(VectorOperators.LSHL, 8)).or(blue).intoArray(pixels, i);
+			}
+			return i;
+		}
+
+		/**
+		 * Wie PointOperations.Contrast in double, damit die Resultate
+		 * dieselben sind.
+		 */
+		private static IntVector channel(IntVector value, int brightness, double contrast) {
+			value = value.add(brightness).max(0).min(255);
+			DoubleVector x = (DoubleVector) value.convertShape(VectorOperators.I2D, DOUBLES, 0);
+			x = x.div(255.0).sub(0.5).mul(contrast).add(0.5).mul(255.0);
+			/*
+			 * Zuerst begrenzen, dann abschneiden ergibt für 0 - 255 dasselbe
+			 * wie der Cast und das Begrenzen im skalaren Code. Die Addition
+			 * rundet zur nächsten Zahl, wo das aufgerundet hat wird 1
+			 * abgezogen.
+			 */
+			x = x.max(0.0).min(255.0);
+			DoubleVector bits = x.add(INTEGER_BITS);
+			bits = bits.sub(1.0, bits.sub(INTEGER_BITS).compare(VectorOperators.GT, x));
+			LongVector longs = (LongVector) bits.convertShape(VectorOperators.REINTERPRET_D2L, LONGS, 0);
+			return (IntVector) longs.convertShape(VectorOperators.L2I, INTS, 0);
+		}
+	}
+
+	/**
+	 * Alpha = 255 - Helligkeit, mit den Festkomma-Gewichtungen des
+	 * {@link TransparencyKernel}.
+	 */
+	private static class TransparencyVectorKernel implements BulkPixelKernel {
+		private final TransparencyKernel scalar;
+
+		TransparencyVectorKernel(TransparencyKernel scalar) {
+			this.scalar = scalar;
+		}
+
+		@Override
+		public int apply(int argb) {
+			return scalar.apply(argb);
+		}
+
+		@Override
+		public void apply(int[] pixels, int from, int to) {
+			int weightRed = scalar.weightRed;
+			int weightGreen = scalar.weightGreen;
+			int weightBlue = scalar.weightBlue;
+			int i = from;
+			int upper = from + INTS.loopBound(to - from);
+			for (; i < upper; i += INTS.length()) {
+				IntVector argb = IntVector.fromArray(INTS, pixels, i);
+				IntVector luminance = argb.lanewise(VectorOperators.LSHR, 16).and(0xff).mul(weightRed)
+						.add(argb.lanewise(VectorOperators.LSHR, 8).and(0xff).mul(weightGreen))
+						.add(argb.and(0xff).mul(weightBlue)).lanewise(VectorOperators.ASHR, 16);
+				luminance.neg().add(255).lanewise(VectorOperators.LSHL, 24).or(argb.and(0x00ffffff))
+						.intoArray(pixels, i);
+			}
+			scalar.apply(pixels, i, to);
+		}
+	}
+}
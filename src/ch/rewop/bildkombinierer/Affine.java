@@ -0,0 +1,162 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Eine affine Transformation in der Ebene, in reinem Java, damit die
+ * Berechnungen für den Export auch ohne Android getestet werden können.
+ * 
+ * Die Methoden mit post verhalten sich wie die gleichnamigen Methoden von
+ * android.graphics.Matrix: die neue Transformation wird nach der bisherigen
+ * angewendet.
+ * 
+ * <pre>
+ * x' = a * x + b * y + c
+ * y' = d * x + e * y + f
+ * </pre>
+ */
+public final class Affine {
+
+	private double a = 1, b, c;
+	private double d, e = 1, f;
+
+	public Affine() {
+	}
+
+	public Affine(Affine other) {
+		a = other.a;
+		b = other.b;
+		c = other.c;
+		d = other.d;
+		e = other.e;
+		f = other.f;
+	}
+
+	/**
+	 * Die Transformation eines {@link Layer}: skaliert und rotiert um das
+	 * Zentrum des Bildes, danach verschoben an seine Position.
+	 */
+	public static Affine forLayer(float width, float height, float scaleFactor, float rotation, float posX,
+			float posY) {
+		float centerX = (int) width / 2;
+		float centerY = (int) height / 2;
+		Affine affine = new Affine();
+		affine.postScale(scaleFactor, scaleFactor, centerX, centerY);
+		affine.postRotate(rotation, centerX, centerY);
+		affine.postTranslate(posX, posY);
+		return affine;
+	}
+
+	public Affine postTranslate(double tx, double ty) {
+		c += tx;
+		f += ty;
+		return this;
+	}
+
+	public Affine postScale(double sx, double sy) {
+		a *= sx;
+		b *= sx;
+		c *= sx;
+		d *= sy;
+		e *= sy;
+		f *= sy;
+		return this;
+	}
+
+	public Affine postScale(double sx, double sy, double px, double py) {
+		postTranslate(-px, -py);
+		postScale(sx, sy);
+		return postTranslate(px, py);
+	}
+
+	/**
+	 * Rotiert um den Winkel in Grad um den Punkt (px, py).
+	 */
+	public Affine postRotate(double degrees, double px, double py) {
+		double radians = Math.toRadians(degrees);
+		double cos = Math.cos(radians);
+		double sin = Math.sin(radians);
+		postTranslate(-px, -py);
+		double na = cos * a - sin * d;
+		double nb = cos * b - sin * e;
+		double nc = cos * c - sin * f;
+		double nd = sin * a + cos * d;
+		double ne = sin * b + cos * e;
+		double nf = sin * c + cos * f;
+		a = na;
+		b = nb;
+		c = nc;
+		d = nd;
+		e = ne;
+		f = nf;
+		return postTranslate(px, py);
+	}
+
+	/**
+	 * Wendet zuerst other und danach diese Transformation an.
+	 */
+	public Affine preConcat(Affine other) {
+		double na = a * other.a + b * other.d;
+		double nb = a * other.b + b * other.e;
+		double nc = a * other.c + b * other.f + c;
+		double nd = d * other.a + e * other.d;
+		double ne = d * other.b + e * other.e;
+		double nf = d * other.c + e * other.f + f;
+		a = na;
+		b = nb;
+		c = nc;
+		d = nd;
+		e = ne;
+		f = nf;
+		return this;
+	}
+
+	/**
+	 * Liefert die Umkehrung oder null, wenn die Transformation nicht umkehrbar
+	 * ist.
+	 */
+	public Affine invert() {
+		double determinant = a * e - b * d;
+		if (determinant == 0 || Double.isNaN(determinant)) {
+			return null;
+		}
+		Affine inverse = new Affine();
+		inverse.a = e / determinant;
+		inverse.b = -b / determinant;
+		inverse.d = -d / determinant;
+		inverse.e = a / determinant;
+		inverse.c = -(inverse.a * c + inverse.b * f);
+		inverse.f = -(inverse.d * c + inverse.e * f);
+		return inverse;
+	}
+
+	public double mapX(double x, double y) {
+		return a * x + b * y + c;
+	}
+
+	public double mapY(double x, double y) {
+		return d * x + e * y + f;
+	}
+
+	/**
+	 * Bildet das Rechteck ab und liefert die achsenparallele Bounding Box des
+	 * Resultats als {left, top, right, bottom}.
+	 */
+	public double[] mapBounds(double left, double top, double right, double bottom) {
+		double[] xs = { mapX(left, top), mapX(right, top), mapX(left, bottom), mapX(right, bottom) };
+		double[] ys = { mapY(left, top), mapY(right, top), mapY(left, bottom), mapY(right, bottom) };
+		double[] bounds = { xs[0], ys[0], xs[0], ys[0] };
+		for (int i = 1; i < 4; i++) {
+			bounds[0] = Math.min(bounds[0], xs[i]);
+			bounds[1] = Math.min(bounds[1], ys[i]);
+			bounds[2] = Math.max(bounds[2], xs[i]);
+			bounds[3] = Math.max(bounds[3], ys[i]);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Der Faktor, um den Längen höchstens gestreckt werden.
+	 */
+	public double getMaxScale() {
+		return Math.max(Math.hypot(a, d), Math.hypot(b, e));
+	}
+}
@@ -0,0 +1,103 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.IOException;
+
+/**
+ * Verarbeitet ein Bild in voller Auflösung, ohne es je ganz im Speicher zu
+ * haben. Das Bild wird in horizontalen Streifen gelesen, jeder Streifen durch
+ * den Filter geschickt und an einen {@link BandSink} weitergegeben. Der
+ * Speicherbedarf hängt so nur von der Höhe der Streifen ab, nicht von der
+ * Grösse des Bildes.
+ * 
+ * Braucht der Filter Nachbarpixel, wird jeder Streifen oben und unten mit
+ * {@link CompiledFilter#getMargin()} zusätzlichen Zeilen gelesen und
+ * gefiltert, weitergegeben werden aber nur die Zeilen des Streifens selbst.
+ * Die Pixel sind so identisch mit denen, die man erhält, wenn man das ganze
+ * Bild auf einmal filtert.
+ */
+public class BandProcessor {
+
+	/**
+	 * Nimmt die fertig verarbeiteten Streifen entgegen, von oben nach unten.
+	 */
+	public interface BandSink {
+
+		/**
+		 * Die Pixel der Zeilen fromRow bis fromRow + rows, zeilenweise ab
+		 * Index 0. Das Array wird danach wiederverwendet, der Sink darf es
+		 * sich also nicht merken.
+		 */
+		void writeBand(int[] pixels, int width, int fromRow, int rows) throws IOException;
+	}
+
+	/**
+	 * Liefert die Zeilen eines Bildes, z.B. aus einer Datei, siehe
+	 * {@link RegionRowSource}.
+	 */
+	public interface RowSource {
+
+		int getWidth();
+
+		int getHeight();
+
+		/**
+		 * Schreibt die Zeilen fromRow bis fromRow + rows im nicht
+		 * vormultiplizierten ARGB Format zeilenweise ab Index 0 in pixels.
+		 */
+		void readRows(int[] pixels, int fromRow, int rows) throws IOException;
+	}
+
+	public static final int DEFAULT_BAND_HEIGHT = 256;
+
+	private final CompiledFilter filter;
+	private final int bandHeight;
+	private final KernelExecutor executor;
+
+	public BandProcessor(CompiledFilter filter) {
+		this(filter, DEFAULT_BAND_HEIGHT, KernelExecutor.getDefault());
+	}
+
+	/**
+	 * @param filter
+	 *            der Filter für jeden Streifen, oder null, um die Pixel
+	 *            unverändert weiterzugeben
+	 */
+	public BandProcessor(CompiledFilter filter, int bandHeight, KernelExecutor executor) {
+		if (bandHeight < 1) {
+			throw new IllegalArgumentException("bandHeight must be at least 1");
+		}
+		this.filter = filter;
+		this.bandHeight = bandHeight;
+		this.executor = executor;
+	}
+
+	/**
+	 * Verarbeitet das ganze Bild Streifen für Streifen.
+	 */
+	public void process(RowSource source, BandSink sink) throws IOException {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int margin = filter != null ? filter.getMargin() : 0;
+		PixelArrayPool arrays = PixelArrayPool.getDefault();
+		int[] band = arrays.obtain(width * (Math.min(bandHeight, height) + 2 * margin));
+		try {
+			for (int fromRow = 0; fromRow < height; fromRow += bandHeight) {
+				int rows = Math.min(bandHeight, height - fromRow);
+				int top = Math.max(0, fromRow - margin);
+				int bottom = Math.min(height, fromRow + rows + margin);
+				source.readRows(band, top, bottom - top);
+				if (filter != null) {
+					filter.apply(band, width, bottom - top, executor);
+				}
+
+				/* Vom gefilterten Bereich behalten wir nur den Streifen selbst. */
+				if (fromRow > top) {
+					System.arraycopy(band, (fromRow - top) * width, band, 0, width * rows);
+				}
+				sink.writeBand(band, width, fromRow, rows);
+			}
+		} finally {
+			arrays.release(band);
+		}
+	}
+}
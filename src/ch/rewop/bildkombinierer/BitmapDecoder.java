@@ -0,0 +1,80 @@
+package ch.rewop.bildkombinierer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Dekodiert Bilder nur in der Auflösung, die wir tatsächlich brauchen. Dazu
+ * werden zuerst nur die Abmessungen gelesen und daraus ein passender
+ * inSampleSize bestimmt, so dass der Decoder bereits beim Lesen jeden n-ten
+ * Pixel überspringt, statt das ganze Kamerabild in den Speicher zu laden.
+ */
+public final class BitmapDecoder {
+
+	private BitmapDecoder() {
+	}
+
+	/**
+	 * Liest nur die Abmessungen des Bildes, ohne Pixel zu dekodieren.
+	 */
+	public static BitmapFactory.Options readBounds(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		return options;
+	}
+
+	/**
+	 * Bestimmt die grösste Zweierpotenz, um die das Bild verkleinert werden
+	 * kann, ohne dass es in einer Richtung kleiner als verlangt wird. Der
+	 * Decoder rundet ohnehin auf Zweierpotenzen ab.
+	 */
+	public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	/**
+	 * Dekodiert das Bild so, dass es mindestens reqWidth x reqHeight gross
+	 * ist, aber höchstens doppelt so gross. Liefert null, wenn das Bild nicht
+	 * gelesen werden kann. Das Resultat ist veränderbar und kann deshalb nach
+	 * Gebrauch dem {@link BitmapPool} zurückgegeben werden.
+	 */
+	public static Bitmap decodeSampled(String path, int reqWidth, int reqHeight) {
+		BitmapFactory.Options bounds = readBounds(path);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+			return null;
+		}
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, reqWidth, reqHeight);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inMutable = true;
+
+		/*
+		 * Vor KitKat kann der Decoder ein bestehendes Bitmap nur ohne
+		 * inSampleSize und bei genau gleicher Grösse wiederverwenden.
+		 */
+		if (options.inSampleSize == 1) {
+			options.inBitmap = BitmapPool.getDefault().acquire(bounds.outWidth, bounds.outHeight);
+		}
+		try {
+			return BitmapFactory.decodeFile(path, options);
+		} catch (IllegalArgumentException e) {
+
+			/*
+			 * Das Bitmap aus dem Pool passt doch nicht, es geht zurück in den
+			 * Pool und wir versuchen es ohne.
+			 */
+			if (options.inBitmap == null) {
+				throw e;
+			}
+			BitmapPool.getDefault().release(options.inBitmap);
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(path, options);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package ch.rewop.bildkombinierer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Verbindet die Kernels mit den Android Bitmaps. Die Pixel Arrays und
+ * Bitmaps stammen aus dem {@link PixelArrayPool} und dem {@link BitmapPool},
+ * Zwischenresultate sollten nach Gebrauch dem BitmapPool zurückgegeben
+ * werden.
+ */
+public final class BitmapKernels {
+
+	private BitmapKernels() {
+	}
+
+	/**
+	 * Kopiert die Pixel des Bitmaps in einem Stück in ein int[], wendet den
+	 * Kernel darauf an und schreibt das Resultat in ein neues Bitmap. Der
+	 * Kernel läuft dabei auf allen CPU Kernen.
+	 */
+	public static Bitmap apply(Bitmap src, PixelKernel kernel) {
+		return apply(src, kernel, KernelExecutor.getDefault());
+	}
+
+	/**
+	 * Wie {@link #apply(Bitmap, PixelKernel)}, aber mit dem übergebenen
+	 * Executor.
+	 */
+	public static Bitmap apply(Bitmap src, PixelKernel kernel, KernelExecutor executor) {
+		int width = src.getWidth();
+		int height = src.getHeight();
+		PixelArrayPool arrays = PixelArrayPool.getDefault();
+		int[] data = arrays.obtain(width * height);
+		src.getPixels(data, 0, width, 0, 0, width, height);
+
+		executor.run(kernel, data, width, height);
+
+		Bitmap out = BitmapPool.getDefault().obtain(width, height);
+		out.setPixels(data, 0, width, 0, 0, width, height);
+		arrays.release(data);
+		return out;
+	}
+
+	/**
+	 * Wie {@link #apply(Bitmap, PixelKernel)}, aber mit einem ganzen Filter.
+	 */
+	public static Bitmap apply(Bitmap src, CompiledFilter filter) {
+		return apply(src, filter, 0, 0, src.getWidth(), src.getHeight());
+	}
+
+	/**
+	 * Filtert das ganze Bitmap, liefert aber nur den angegebenen Ausschnitt.
+	 * Der Rest dient als Rand, damit Nachbarschaftsoperationen auch an den
+	 * Kanten des Ausschnitts die richtigen Pixel sehen.
+	 */
+	public static Bitmap apply(Bitmap src, CompiledFilter filter, int left, int top, int width, int height) {
+		int srcWidth = src.getWidth();
+		int srcHeight = src.getHeight();
+		PixelArrayPool arrays = PixelArrayPool.getDefault();
+		int[] data = arrays.obtain(srcWidth * srcHeight);
+		src.getPixels(data, 0, srcWidth, 0, 0, srcWidth, srcHeight);
+
+		filter.apply(data, srcWidth, srcHeight, KernelExecutor.getDefault());
+
+		Bitmap out = BitmapPool.getDefault().obtain(width, height);
+		out.setPixels(data, top * srcWidth + left, srcWidth, 0, 0, width, height);
+		arrays.release(data);
+		return out;
+	}
+
+	/**
+	 * Skaliert das Bitmap mit bilinearer Filterung auf die angegebene Grösse,
+	 * wie Bitmap.createScaledBitmap, aber in ein Bitmap aus dem Pool. Hat das
+	 * Bitmap bereits die richtige Grösse, wird es selbst zurückgegeben.
+	 */
+	public static Bitmap scale(Bitmap src, int width, int height) {
+		if (src.getWidth() == width && src.getHeight() == height) {
+			return src;
+		}
+		Bitmap out = BitmapPool.getDefault().obtain(width, height);
+		out.eraseColor(0);
+		Canvas canvas = new Canvas(out);
+		canvas.drawBitmap(src, null, new Rect(0, 0, width, height), SCALE_PAINT);
+		return out;
+	}
+
+	private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+}
@@ -0,0 +1,71 @@
+package ch.rewop.bildkombinierer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Ein Pool für veränderbare ARGB_8888 Bitmaps, geordnet nach ihrer Grösse.
+ * Verworfene Bitmaps werden sofort recycled.
+ */
+public class BitmapPool extends LruPool<Long, Bitmap> {
+
+	private static BitmapPool defaultPool;
+
+	public BitmapPool(long maxBytes) {
+		super(maxBytes);
+	}
+
+	/**
+	 * Der gemeinsam verwendete Pool, er belegt höchstens 1/16 des Heaps.
+	 */
+	public static synchronized BitmapPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Liefert ein veränderbares Bitmap mit genau dieser Grösse, wenn möglich
+	 * aus dem Pool. Der Inhalt ist nicht definiert.
+	 */
+	public Bitmap obtain(int width, int height) {
+		Bitmap bitmap = acquire(key(width, height));
+		return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Entnimmt ein Bitmap dieser Grösse aus dem Pool oder liefert null, ohne
+	 * ein neues anzulegen.
+	 */
+	public Bitmap acquire(int width, int height) {
+		return acquire(key(width, height));
+	}
+
+	@Override
+	public void release(Bitmap bitmap) {
+		if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			bitmap.recycle();
+			return;
+		}
+		super.release(bitmap);
+	}
+
+	@Override
+	protected Long keyOf(Bitmap value) {
+		return key(value.getWidth(), value.getHeight());
+	}
+
+	@Override
+	protected long sizeOf(Bitmap value) {
+		return (long) value.getRowBytes() * value.getHeight();
+	}
+
+	@Override
+	protected void onEvicted(Bitmap value) {
+		value.recycle();
+	}
+
+	private static Long key(int width, int height) {
+		return ((long) width << 32) | height;
+	}
+}
@@ -0,0 +1,125 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Ein Weichzeichner, der jeden Kanal (auch Alpha) durch den Mittelwert über
+ * 2 * radius + 1 Pixel ersetzt. Der Filter ist separierbar: ein Durchgang in
+ * horizontaler und einer in vertikaler Richtung ergeben zusammen den Mittelwert
+ * über das ganze Quadrat, kosten aber pro Pixel unabhängig vom Radius nur
+ * einige Additionen.
+ * 
+ * Am Bildrand wird der letzte Pixel wiederholt.
+ */
+public class BoxBlur implements NeighbourhoodOperation {
+
+	private final int radius;
+	private final boolean horizontal;
+
+	/**
+	 * Gerundete Mittelwerte für alle möglichen Summen eines Kanals, damit in
+	 * der Schleife nicht dividiert werden muss.
+	 */
+	private final int[] average;
+
+	private BoxBlur(int radius, boolean horizontal) {
+		if (radius < 1) {
+			throw new IllegalArgumentException("radius must be at least 1");
+		}
+		this.radius = radius;
+		this.horizontal = horizontal;
+		int diameter = 2 * radius + 1;
+		average = new int[256 * diameter];
+		for (int sum = 0; sum < average.length; sum++) {
+			average[sum] = (sum + diameter / 2) / diameter;
+		}
+	}
+
+	public static BoxBlur horizontal(int radius) {
+		return new BoxBlur(radius, true);
+	}
+
+	public static BoxBlur vertical(int radius) {
+		return new BoxBlur(radius, false);
+	}
+
+	@Override
+	public int getRadius() {
+		return radius;
+	}
+
+	@Override
+	public void apply(int[] src, int[] dst, int width, int height, int fromRow, int toRow) {
+		if (horizontal) {
+			applyHorizontal(src, dst, width, fromRow, toRow);
+		} else {
+			applyVertical(src, dst, width, height, fromRow, toRow);
+		}
+	}
+
+	/**
+	 * Schiebt pro Zeile ein Fenster über die Pixel: der Pixel, der vorne
+	 * hineinkommt, wird addiert, der hinten hinausfällt, abgezogen.
+	 */
+	private void applyHorizontal(int[] src, int[] dst, int width, int fromRow, int toRow) {
+		int last = width - 1;
+		for (int y = fromRow; y < toRow; y++) {
+			int row = y * width;
+			int a = 0, r = 0, g = 0, b = 0;
+			for (int i = -radius; i <= radius; i++) {
+				int argb = src[row + Math.min(last, Math.max(0, i))];
+				a += argb >>> 24;
+				r += (argb >> 16) & 0xff;
+				g += (argb >> 8) & 0xff;
+				b += argb & 0xff;
+			}
+			for (int x = 0; x < width; x++) {
+				dst[row + x] = (average[a] << 24) | (average[r] << 16) | (average[g] << 8) | average[b];
+
+				int in = src[row + Math.min(last, x + radius + 1)];
+				int out = src[row + Math.max(0, x - radius)];
+				a += (in >>> 24) - (out >>> 24);
+				r += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+				g += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+				b += (in & 0xff) - (out & 0xff);
+			}
+		}
+	}
+
+	/**
+	 * Wie {@link #applyHorizontal}, aber mit einem Fenster pro Spalte. Die
+	 * Summen aller Spalten werden gleichzeitig Zeile für Zeile nachgeführt,
+	 * so wird der Speicher der Reihe nach gelesen statt spaltenweise
+	 * gesprungen.
+	 */
+	private void applyVertical(int[] src, int[] dst, int width, int height, int fromRow, int toRow) {
+		int last = height - 1;
+		int[] a = new int[width];
+		int[] r = new int[width];
+		int[] g = new int[width];
+		int[] b = new int[width];
+		for (int i = fromRow - radius; i <= fromRow + radius; i++) {
+			int row = Math.min(last, Math.max(0, i)) * width;
+			for (int x = 0; x < width; x++) {
+				int argb = src[row + x];
+				a[x] += argb >>> 24;
+				r[x] += (argb >> 16) & 0xff;
+				g[x] += (argb >> 8) & 0xff;
+				b[x] += argb & 0xff;
+			}
+		}
+		for (int y = fromRow; y < toRow; y++) {
+			int row = y * width;
+			int in = Math.min(last, y + radius + 1) * width;
+			int out = Math.max(0, y - radius) * width;
+			for (int x = 0; x < width; x++) {
+				dst[row + x] = (average[a[x]] << 24) | (average[r[x]] << 16) | (average[g[x]] << 8) | average[b[x]];
+
+				int added = src[in + x];
+				int removed = src[out + x];
+				a[x] += (added >>> 24) - (removed >>> 24);
+				r[x] += ((added >> 16) & 0xff) - ((removed >> 16) & 0xff);
+				g[x] += ((added >> 8) & 0xff) - ((removed >> 8) & 0xff);
+				b[x] += (added & 0xff) - (removed & 0xff);
+			}
+		}
+	}
+}
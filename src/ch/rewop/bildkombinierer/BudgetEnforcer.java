@@ -0,0 +1,204 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Der Teil von {@link MemoryBudget}, der nicht von Android abhängt: zählt den
+ * belegten Speicher und entscheidet, welche Ebenen herabgestuft werden.
+ * 
+ * Ein Bild kann gleichzeitig einer Ebene und einem Cache gehören, z.B. wenn
+ * die Pipeline es aus dem {@link LayerCache} geliefert hat. Jedes Bild wird
+ * deshalb nur einmal gezählt, bei der Ebene. Die Caches zählen nur die
+ * Bilder, die sonst niemand hält.
+ */
+class BudgetEnforcer {
+
+	/**
+	 * Um so viel werden Ebenen ausserhalb des Displays verkleinert.
+	 */
+	static final int OFFSCREEN_REDUCTION = 4;
+
+	/**
+	 * Eine Ebene, wie sie das Budget sieht.
+	 */
+	interface Item {
+
+		/**
+		 * Das Objekt, das die Pixel hält, oder null, wenn die Ebene noch kein
+		 * Bild hat. Verglichen wird die Identität.
+		 */
+		Object getPixels();
+
+		long getBytes();
+
+		/**
+		 * Ob die Ebene auf dem Display zu sehen ist.
+		 */
+		boolean isVisible();
+
+		/**
+		 * Der Faktor, mit dem die Ebene gezeichnet wird.
+		 */
+		float getScale();
+
+		/**
+		 * Ersetzt das Bild durch eine um reduction verkleinerte Kopie. Liefert
+		 * false, wenn das nicht geht.
+		 */
+		boolean downgrade(int reduction);
+	}
+
+	/**
+	 * Ein Cache oder Pool, der bei Bedarf verkleinert werden kann.
+	 */
+	interface Cache {
+
+		/**
+		 * Wie viele Bytes der Cache belegt, ohne die Objekte in shared, die
+		 * auch von Ebenen gehalten werden.
+		 */
+		long getBytes(Set<Object> shared);
+
+		/**
+		 * Verkleinert den Cache, bis er ohne die Objekte in shared höchstens
+		 * bytes belegt.
+		 */
+		void trimTo(long bytes, Set<Object> shared);
+	}
+
+	private final List<Cache> pools;
+	private final List<Cache> caches;
+
+	/**
+	 * @param pools
+	 *            werden beim Verkleinern immer geleert, sie sind am
+	 *            schnellsten wieder gefüllt
+	 * @param caches
+	 *            teilen sich beim Verkleinern den Platz, den die Ebenen übrig
+	 *            lassen
+	 */
+	BudgetEnforcer(List<Cache> pools, List<Cache> caches) {
+		this.pools = pools;
+		this.caches = caches;
+	}
+
+	/**
+	 * Wie viele Bytes die Bilder der Ebenen belegen. Die gezählten Bilder
+	 * kommen in pixels.
+	 */
+	static long getItemBytes(List<? extends Item> items, Set<Object> pixels) {
+		long bytes = 0;
+		for (Item item : items) {
+			Object value = item.getPixels();
+			if (value != null && pixels.add(value)) {
+				bytes += item.getBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Wie viele Bytes die Caches und Pools ohne die Objekte in shared belegen.
+	 */
+	long getCacheBytes(Set<Object> shared) {
+		long bytes = 0;
+		for (Cache pool : pools) {
+			bytes += pool.getBytes(shared);
+		}
+		for (Cache cache : caches) {
+			bytes += cache.getBytes(shared);
+		}
+		return bytes;
+	}
+
+	long getUsedBytes(List<? extends Item> items) {
+		Set<Object> pixels = newIdentitySet();
+		long bytes = getItemBytes(items, pixels);
+		return bytes + getCacheBytes(pixels);
+	}
+
+	/**
+	 * Verkleinert zuerst die Caches und stuft dann so lange Ebenen herab, bis
+	 * höchstens limit Bytes belegt sind oder keine Ebene mehr in Frage kommt.
+	 * 
+	 * @return die Anzahl herabgestufter Ebenen
+	 */
+	int enforce(List<? extends Item> items, long limit) {
+		Set<Object> pixels = newIdentitySet();
+		long itemBytes = getItemBytes(items, pixels);
+		if (itemBytes + getCacheBytes(pixels) <= limit) {
+			return 0;
+		}
+
+		/* Zuerst den Caches nur lassen, was die Ebenen übrig lassen. */
+		trimCaches(Math.max(0, limit - itemBytes), pixels);
+		if (itemBytes + getCacheBytes(pixels) <= limit) {
+			return 0;
+		}
+
+		int downgraded = 0;
+		for (Item item : candidates(items)) {
+			int reduction = !item.isVisible() ? OFFSCREEN_REDUCTION : item.getScale() <= 0.25f ? 4 : 2;
+			if (item.downgrade(reduction)) {
+				downgraded++;
+
+				/*
+				 * Das bisherige Bild der Ebene kann noch in einem Cache liegen.
+				 * Frei wird es erst, wenn auch der Cache es abgibt.
+				 */
+				pixels = newIdentitySet();
+				itemBytes = getItemBytes(items, pixels);
+				trimCaches(Math.max(0, limit - itemBytes), pixels);
+				if (itemBytes + getCacheBytes(pixels) <= limit) {
+					break;
+				}
+			}
+		}
+		return downgraded;
+	}
+
+	/**
+	 * Verkleinert die Caches zusammen auf höchstens bytes, ohne die Objekte in
+	 * shared. Die Pools werden immer geleert.
+	 */
+	void trimCaches(long bytes, Set<Object> shared) {
+		for (Cache pool : pools) {
+			pool.trimTo(0, shared);
+		}
+		for (Cache cache : caches) {
+			cache.trimTo(bytes / caches.size(), shared);
+		}
+	}
+
+	/**
+	 * Die Ebenen, die herabgestuft werden dürfen: zuerst alle ausserhalb des
+	 * Displays, dann die mit höchstens halber Grösse gezeichneten, die
+	 * kleinsten zuerst. Grösser gezeichnete Ebenen würden sofort wieder
+	 * hochgeladen.
+	 */
+	static <T extends Item> List<T> candidates(List<T> items) {
+		List<T> offscreen = new ArrayList<T>();
+		List<T> small = new ArrayList<T>();
+		for (T item : items) {
+			if (!item.isVisible()) {
+				offscreen.add(item);
+			} else if (item.getScale() <= 0.5f) {
+				int i = small.size();
+				while (i > 0 && small.get(i - 1).getScale() > item.getScale()) {
+					i--;
+				}
+				small.add(i, item);
+			}
+		}
+		offscreen.addAll(small);
+		return offscreen;
+	}
+
+	static Set<Object> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	}
+}
@@ -0,0 +1,19 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Ein {@link PixelKernel}, der auch einen ganzen Bereich des Bildes auf
+ * einmal verarbeiten kann.
+ * 
+ * In einer einfachen Schleife über das Array ohne Aufruf pro Pixel kann der
+ * JIT Compiler die Werte in Registern halten und auf der JVM die Schleife
+ * selbst vektorisieren (SIMD). Das Resultat muss identisch sein mit
+ * {@link PixelKernel#apply(int)} für jeden einzelnen Pixel.
+ */
+public interface BulkPixelKernel extends PixelKernel {
+
+	/**
+	 * Verarbeitet die Pixel from (inklusive) bis to (exklusive) und
+	 * überschreibt sie.
+	 */
+	void apply(int[] pixels, int from, int to);
+}
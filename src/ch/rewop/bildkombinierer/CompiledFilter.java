@@ -0,0 +1,88 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Ein mit {@link FilterGraph#compile()} übersetzter Filter. Er besteht aus
+ * einem Kernel, der alle Punkt- und Pixeloperationen vor der ersten
+ * Nachbarschaftsoperation in einem Durchgang erledigt, und danach aus je einer
+ * Nachbarschaftsoperation mit dem Kernel für die Operationen, die ihr folgen.
+ * 
+ * Ein zweites Array wird nur gebraucht, wenn der Filter
+ * Nachbarschaftsoperationen enthält.
+ */
+public class CompiledFilter {
+
+	private final String description;
+	private final PixelKernel first;
+	private final NeighbourhoodOperation[] operations;
+	private final PixelKernel[] following;
+	private final int margin;
+
+	CompiledFilter(String description, PixelKernel first, NeighbourhoodOperation[] operations,
+			PixelKernel[] following) {
+		this.description = description;
+		this.first = first;
+		this.operations = operations;
+		this.following = following;
+		int margin = 0;
+		for (NeighbourhoodOperation operation : operations) {
+			margin += operation.getRadius();
+		}
+		this.margin = margin;
+	}
+
+	/**
+	 * Ein Filter, der nur aus dem Kernel besteht.
+	 */
+	public static CompiledFilter of(PixelKernel kernel) {
+		return new CompiledFilter(null, kernel, new NeighbourhoodOperation[0], new PixelKernel[0]);
+	}
+
+	/**
+	 * Die Beschreibung, aus welcher der Filter erstellt wurde, oder null. Sie
+	 * dient dem {@link LayerCache} als Schlüssel.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * So viele Pixel Rand braucht ein Ausschnitt des Bildes, damit der Filter
+	 * darin dieselben Pixel berechnet wie im ganzen Bild.
+	 */
+	public int getMargin() {
+		return margin;
+	}
+
+	/**
+	 * Wie oft der Filter das ganze Bild durchläuft.
+	 */
+	public int getPasses() {
+		return (first != null ? 1 : 0) + operations.length;
+	}
+
+	/**
+	 * Wendet den Filter auf das ganze Bild an. Das Array wird dabei
+	 * überschrieben.
+	 */
+	public void apply(int[] pixels, int width, int height, KernelExecutor executor) {
+		if (first != null) {
+			executor.run(first, pixels, width, height);
+		}
+		if (operations.length == 0) {
+			return;
+		}
+
+		PixelArrayPool arrays = PixelArrayPool.getDefault();
+		int[] spare = arrays.obtain(width * height);
+		int[] src = pixels;
+		for (int i = 0; i < operations.length; i++) {
+			int[] dst = src == pixels ? spare : pixels;
+			executor.run(operations[i], following[i], src, dst, width, height);
+			src = dst;
+		}
+		if (src != pixels) {
+			System.arraycopy(src, 0, pixels, 0, width * height);
+		}
+		arrays.release(spare);
+	}
+}
@@ -1,24 +1,33 @@
 package ch.rewop.bildkombinierer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import eu.janmuller.android.simplecropimage.CropImage;
 
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.provider.MediaStore;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.ContentResolver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -33,10 +42,67 @@ import android.widget.Toast;
 public class Erfasser extends Activity {
 	private static final int CAPTURE_IMAGE_ACTIVITY_REQUEST_CODE = 1;
 	private static final int REQUEST_CODE_CROP_IMAGE = 0;
+	private static final String KEY_SESSION = "session";
+	private static final String KEY_FILTER = "filter";
+	private static final String KEY_IMAGE = "image";
+
+	/**
+	 * Die Filter, aus denen im Menü gewählt werden kann, als Beschreibung für
+	 * {@link FilterGraph#parse(String)}. Der erste ist der Standard.
+	 */
+	private static final String[] FILTER_NAMES = { "Skizze", "Skizze weich", "Foto" };
+	private static final String[] FILTERS = { "brightness=50;contrast=100;transparent",
+			"blur=1;brightness=50;contrast=100;transparent", "transparent=0.299,0.587,0.114,0.5" };
+
+	/**
+	 * Bis zu dieser mittleren Abweichung (0 - 255) werden Ebenen als Maske
+	 * mit einer Farbe gespeichert. Skizzen liegen deutlich darunter, farbige
+	 * Fotos weit darüber.
+	 */
+	private static final float MASK_ERROR = 4f;
+
+	/**
+	 * Export und Messwerte werden nacheinander auf einem eigenen Thread
+	 * geschrieben. Die Aufträge halten nur den Application Context, eine
+	 * Activity, die währenddessen gedreht oder geschlossen wird, kann also
+	 * freigegeben werden.
+	 */
+	private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "Erfasser");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
 	private Uri uriImage;
 	private Uri uriFolder;
 	private CustomLayout cl;
+	private TouchImageView layerView;
 	private AlertDialog.Builder alert;
+	private LayerPipeline pipeline;
+	private SessionStore session;
+	private String filterDescription;
+
+	/**
+	 * Wann die Kamera bzw. das Zuschneiden gestartet wurde, für
+	 * {@link Metrics}.
+	 */
+	private long cameraStartNanos;
+	private long cropStartNanos;
+
+	/**
+	 * Danach werden keine Ebenen mehr wiederhergestellt.
+	 */
+	private boolean destroyed;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -44,6 +110,62 @@ public class Erfasser extends Activity {
 		setContentView(R.layout.activity_erfasser);
 		
 		cl = (CustomLayout) findViewById(R.id.mainlayout);
+
+		// Alle Bilder werden als Ebenen von derselben View gezeichnet.
+		layerView = new TouchImageView(this);
+		cl.addView(layerView);
+		pipeline = new LayerPipeline(LayerCache.getInstance(this));
+		filterDescription = getPreferences(MODE_PRIVATE).getString(KEY_FILTER, FILTERS[0]);
+		layerView.setMaskErrorThreshold(MASK_ERROR);
+		layerView.setMemoryBudget(new MemoryBudget(MemoryBudget.defaultBudget(), LayerCache.getInstance(this)));
+		if (BuildConfig.DEBUG) {
+			Metrics.startAllocationCounting();
+		}
+
+		// Nach dem Drehen des Geräts oder wenn das System die App beendet hat,
+		// holen wir die Ebenen aus der gespeicherten Sitzung zurück.
+		session = SessionStore.getInstance(this);
+		if (savedInstanceState != null && savedInstanceState.getBoolean(KEY_SESSION)) {
+			restoreSession();
+		}
+
+		// Läuft gerade die Kamera oder das Zuschneiden, brauchen wir danach
+		// noch die Datei des Bildes.
+		if (savedInstanceState != null) {
+			uriImage = savedInstanceState.getParcelable(KEY_IMAGE);
+		}
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		layerView.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		layerView.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putBoolean(KEY_SESSION, true);
+		outState.putParcelable(KEY_IMAGE, uriImage);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		session.save(layerView.getLayers());
+	}
+
+	@Override
+	protected void onDestroy() {
+		destroyed = true;
+		pipeline.cancelAll();
+		super.onDestroy();
 	}
 
 	@Override
@@ -58,6 +180,56 @@ public class Erfasser extends Activity {
 			}
 		});
 
+		MenuItem menuItem_filter = menu.add("Filter wählen");
+		menuItem_filter.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				chooseFilter();
+				return false;
+			}
+		});
+
+		MenuItem menuItem_export = menu.add("Bild exportieren");
+		menuItem_export.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				exportImage();
+				return false;
+			}
+		});
+
+		MenuItem menuItem_layer = menu.add("Ebene in voller Grösse speichern");
+		menuItem_layer.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				saveTopLayer();
+				return false;
+			}
+		});
+
+		MenuItem menuItem_frames = menu.add("Leistung anzeigen");
+		menuItem_frames.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				layerView.setFrameMetricsEnabled(!layerView.isFrameMetricsEnabled());
+				return false;
+			}
+		});
+
+		MenuItem menuItem_metrics = menu.add("Messwerte speichern");
+		menuItem_metrics.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+
+			@Override
+			public boolean onMenuItemClick(MenuItem item) {
+				dumpMetrics();
+				return false;
+			}
+		});
+
 		MenuItem menuItem_logbuch = menu.add("Logbuch-Eintrag");
 		menuItem_logbuch.setOnMenuItemClickListener(new OnMenuItemClickListener() {
 
@@ -75,36 +247,35 @@ public class Erfasser extends Activity {
 	    super.onActivityResult(requestCode, resultCode, data);
 	    switch (requestCode) {
 	    case CAPTURE_IMAGE_ACTIVITY_REQUEST_CODE:
+	        if (cameraStartNanos != 0) {
+	            Metrics.record("camera", System.nanoTime() - cameraStartNanos);
+	            cameraStartNanos = 0;
+	        }
 	        if (resultCode == Activity.RESULT_OK) {
 	            Uri selectedImage = uriImage;
 	            getContentResolver().notifyChange(selectedImage, null);
-	            ContentResolver cr = getContentResolver();
-	            Bitmap bitmap;
-	            try {
-	                 bitmap = android.provider.MediaStore.Images.Media
-	                 .getBitmap(cr, selectedImage);
-	                Toast.makeText(this, selectedImage.toString(),
-	                        Toast.LENGTH_LONG).show();
-	            } catch (Exception e) {
+
+	            // Das Bild wird hier nicht dekodiert, das erledigt die
+	            // CropImage Activity. Danach lesen wir nur noch das
+	            // zugeschnittene Bild in der benötigten Grösse.
+	            if (!new File(selectedImage.getPath()).isFile()) {
 	                Toast.makeText(this, "Failed to load", Toast.LENGTH_SHORT)
 	                        .show();
-	                Log.e("Camera", e.toString());
+	                Log.e("Camera", "no image at " + selectedImage);
+	                break;
 	            }
+	            Toast.makeText(this, selectedImage.toString(),
+	                    Toast.LENGTH_LONG).show();
 	            runCropImage();
 	        }
 	        break;
 	    case REQUEST_CODE_CROP_IMAGE:
+	    	if (cropStartNanos != 0) {
+	    		Metrics.record("crop", System.nanoTime() - cropStartNanos);
+	    		cropStartNanos = 0;
+	    	}
 	    	if (resultCode == Activity.RESULT_OK) {
-	    		String path = uriImage.getPath();
-	    		Bitmap bitmap = BitmapFactory.decodeFile(path);
-
-	    		// cropped bitmap
-	            Toast.makeText(this, path,
-	            		Toast.LENGTH_LONG).show();
-	            TouchImageView tiv = new TouchImageView(this);
-	            
-	            tiv.setBitmap(modPic(bitmap));
-	            cl.addView(tiv);
+	    		addLayer(uriImage.getPath());
 	    	}
 
             break;
@@ -118,11 +289,14 @@ public class Erfasser extends Activity {
 		File imagesFolder = new File(Environment.getExternalStorageDirectory(), "MyImages");
         imagesFolder.mkdirs(); // <----
         uriFolder = Uri.fromFile(imagesFolder);
-        File image = new File(imagesFolder, "image_001.jpg");
+        // Jede Aufnahme bekommt eine eigene Datei, damit eine neue Aufnahme
+        // kein Bild überschreibt, das noch im Hintergrund verarbeitet wird.
+        File image = new File(imagesFolder, "image_" + System.currentTimeMillis() + ".jpg");
         uriImage = Uri.fromFile(image);
         intent.putExtra(MediaStore.EXTRA_OUTPUT, uriImage);
 
 	    // start the image capture Intent
+	    cameraStartNanos = System.nanoTime();
 	    startActivityForResult(intent, CAPTURE_IMAGE_ACTIVITY_REQUEST_CODE);
 	}
 	
@@ -144,110 +318,321 @@ public class Erfasser extends Activity {
 
 	    // start activity CropImage with certain request code and listen
 	    // for result
+	    cropStartNanos = System.nanoTime();
 	    startActivityForResult(intent, REQUEST_CODE_CROP_IMAGE);
 	} 
 	
-	private Bitmap modPic(Bitmap pic){
-		Bitmap bmOut;
-		
-		bmOut = doBrightness(pic, 50);
-		bmOut = doContrast(bmOut, 100);
-		
-		return bmOut;
+	/**
+	 * Fügt das zugeschnittene Bild als neue Ebene hinzu. Die Ebene erscheint
+	 * sofort als Platzhalter, das Bild selbst wird im Hintergrund dekodiert
+	 * und gefiltert und danach eingesetzt.
+	 * 
+	 * Dekodiert wird nur so gross, wie es die Ebene danach behält. Alles was
+	 * grösser ist, würde nur dekodiert, gefiltert und gleich wieder
+	 * weggeskaliert.
+	 */
+	private void addLayer(String path) {
+		BitmapFactory.Options bounds = BitmapDecoder.readBounds(path);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+			Toast.makeText(this, "Failed to load", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		float scale = TouchImageView.getDisplayScale(this, bounds.outWidth, bounds.outHeight);
+		int width = Math.max(1, (int) (bounds.outWidth * scale));
+		int height = Math.max(1, (int) (bounds.outHeight * scale));
+
+		CompiledFilter filter = modPic();
+		Layer layer = layerView.addLayer(width, height);
+		layer.setSource(path, filter);
+		if (!process(layer, path, width, height, filter)) {
+			return;
+		}
+
+		// cropped bitmap
+		Toast.makeText(this, path, Toast.LENGTH_LONG).show();
 	}
 	
-	private Bitmap doContrast(Bitmap pic, double value){
-		// image size
-	    int width = pic.getWidth();
-	    int height = pic.getHeight();
-	    // create output bitmap
-
-	    // create a mutable empty bitmap
-	    Bitmap bmOut = Bitmap.createBitmap(width, height, pic.getConfig());
-
-	    // create a canvas so that we can draw the bmOut Bitmap from source bitmap
-	    Canvas c = new Canvas();
-	    c.setBitmap(bmOut);
-
-	    // draw bitmap to bmOut from src bitmap so we can modify it
-	    c.drawBitmap(pic, 0, 0, new Paint(Color.BLACK));
-
-
-	    // color information
-	    int A, R, G, B;
-	    int pixel;
-	    // get contrast value
-	    double contrast = Math.pow((100 + value) / 100, 2);
-
-	    // scan through all pixels
-	    for(int x = 0; x < width; ++x) {
-	        for(int y = 0; y < height; ++y) {
-	            // get pixel color
-	            pixel = pic.getPixel(x, y);
-	            A = Color.alpha(pixel);
-	            // apply filter contrast for every channel R, G, B
-	            R = Color.red(pixel);
-	            R = (int)(((((R / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-	            if(R < 0) { R = 0; }
-	            else if(R > 255) { R = 255; }
-
-	            G = Color.green(pixel);
-	            G = (int)(((((G / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-	            if(G < 0) { G = 0; }
-	            else if(G > 255) { G = 255; }
-
-	            B = Color.blue(pixel);
-	            B = (int)(((((B / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-	            if(B < 0) { B = 0; }
-	            else if(B > 255) { B = 255; }
-
-	            // set new pixel color to output bitmap
-	            bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-	        }
-	    }
-	    return bmOut;
+	/**
+	 * Bereitet das Bild der Ebene im Hintergrund auf und setzt es danach ein.
+	 * Liefert false und entfernt die Ebene wieder, wenn gerade zu viele
+	 * Bilder verarbeitet werden.
+	 */
+	private boolean process(final Layer layer, String path, int width, int height, CompiledFilter filter) {
+		final long startNanos = System.nanoTime();
+		boolean accepted = pipeline.submit(path, width, height, filter, new LayerPipeline.Callback() {
+
+			@Override
+			public void onLayerReady(Bitmap bitmap) {
+				Metrics.record("layer", System.nanoTime() - startNanos);
+				layer.setProcessedBitmap(bitmap);
+				session.layerReady(layer, bitmap);
+			}
+
+			@Override
+			public void onLayerFailed(String path) {
+				layerView.removeLayer(layer);
+				Toast.makeText(Erfasser.this, "Failed to load", Toast.LENGTH_SHORT).show();
+			}
+		});
+		if (!accepted) {
+			layerView.removeLayer(layer);
+			Toast.makeText(this, "Bitte warten, es werden noch Bilder verarbeitet", Toast.LENGTH_SHORT).show();
+		}
+		return accepted;
 	}
-	
-	private Bitmap doBrightness(Bitmap src, int value) {
-	    // image size
-	    int width = src.getWidth();
-	    int height = src.getHeight();
-	    // create output bitmap
-	    Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-	    // color information
-	    int A, R, G, B;
-	    int pixel;
-	 
-	    // scan through all pixels
-	    for(int x = 0; x < width; ++x) {
-	        for(int y = 0; y < height; ++y) {
-	            // get pixel color
-	            pixel = src.getPixel(x, y);
-	            A = Color.alpha(pixel);
-	            R = Color.red(pixel);
-	            G = Color.green(pixel);
-	            B = Color.blue(pixel);
-	 
-	            // increase/decrease each channel
-	            R += value;
-	            if(R > 255) { R = 255; }
-	            else if(R < 0) { R = 0; }
-	 
-	            G += value;
-	            if(G > 255) { G = 255; }
-	            else if(G < 0) { G = 0; }
-	 
-	            B += value;
-	            if(B > 255) { B = 255; }
-	            else if(B < 0) { B = 0; }
-	 
-	            // apply new pixel color to output bitmap
-	            bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-	        }
-	    }
-	 
-	    // return final image
-	    return bmOut;
+
+	/**
+	 * Stellt die Ebenen der gespeicherten Sitzung wieder her. Die fertigen
+	 * Bilder werden im Hintergrund direkt aus den Sitzungsdateien gelesen, nur
+	 * Bilder, die beim Speichern noch in Arbeit waren, werden neu aufbereitet.
+	 */
+	private void restoreSession() {
+		final long startNanos = System.nanoTime();
+		session.restore(new SessionStore.RestoreCallback() {
+
+			@Override
+			public void onRestored(List<SessionStore.Entry> entries, List<Bitmap> bitmaps) {
+				if (destroyed) {
+					for (Bitmap bitmap : bitmaps) {
+						if (bitmap != null) {
+							BitmapPool.getDefault().release(bitmap);
+						}
+					}
+					return;
+				}
+				Metrics.Span span = Metrics.begin("restore_layers");
+				CompiledFilter current = modPic();
+				for (int i = 0; i < entries.size(); i++) {
+					restoreLayer(entries.get(i), bitmaps.get(i), current);
+				}
+				span.end();
+				Metrics.record("restore", System.nanoTime() - startNanos);
+			}
+		});
+	}
+
+	private void restoreLayer(SessionStore.Entry entry, Bitmap bitmap, CompiledFilter current) {
+		Layer layer = layerView.addLayer(entry.width, entry.height);
+		entry.applyTo(layer);
+		layerView.onLayerChanged(layer);
+		CompiledFilter filter = current;
+		if (entry.filter.length() > 0) {
+			try {
+				filter = FilterGraph.parse(entry.filter).compile();
+			} catch (IllegalArgumentException e) {
+				Log.e("Erfasser", "invalid filter in session: " + entry.filter, e);
+			}
+		}
+		layer.setSource(entry.sourcePath, filter);
+
+		if (bitmap != null) {
+			layer.setProcessedBitmap(bitmap);
+			session.restored(entry, layer);
+		} else if (new File(entry.sourcePath).isFile()) {
+			process(layer, entry.sourcePath, entry.width, entry.height, filter);
+		} else {
+			layerView.removeLayer(layer);
+		}
+	}
+
+	/**
+	 * Speichert alle Ebenen zusammen als PNG in voller Auflösung. Das
+	 * Berechnen dauert je nach Grösse der Originale eine Weile und läuft
+	 * deshalb im Hintergrund.
+	 */
+	private void exportImage() {
+		List<LayerExporter.Source> sources = LayerExporter.snapshot(layerView.getLayers());
+		if (sources.isEmpty()) {
+			Toast.makeText(this, "Keine Bilder zum Exportieren", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		File imagesFolder = new File(Environment.getExternalStorageDirectory(), "MyImages");
+		File file = new File(imagesFolder, "kombiniert_" + System.currentTimeMillis() + ".png");
+		Toast.makeText(this, "Bild wird exportiert...", Toast.LENGTH_SHORT).show();
+		BACKGROUND.execute(new ExportTask(getApplicationContext(), sources, layerView.getWidth(), layerView
+				.getHeight(), file));
+	}
+
+	/**
+	 * Speichert die oberste Ebene ohne Transformation, aber mit ihrem Filter,
+	 * in der vollen Auflösung der Originaldatei als PNG. Die Datei wird dazu
+	 * in Streifen gelesen, siehe {@link BandProcessor}.
+	 */
+	private void saveTopLayer() {
+		List<LayerExporter.Source> sources = LayerExporter.snapshot(layerView.getLayers());
+		if (sources.isEmpty()) {
+			Toast.makeText(this, "Keine Bilder zum Speichern", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		LayerExporter.Source top = sources.get(sources.size() - 1);
+		File imagesFolder = new File(Environment.getExternalStorageDirectory(), "MyImages");
+		File file = new File(imagesFolder, "ebene_" + System.currentTimeMillis() + ".png");
+		Toast.makeText(this, "Ebene wird gespeichert...", Toast.LENGTH_SHORT).show();
+		BACKGROUND.execute(new SaveLayerTask(getApplicationContext(), top.path, top.filter, file));
+	}
+
+	/**
+	 * Speichert die bisher gemessenen Laufzeiten, siehe {@link Metrics}.
+	 */
+	private void dumpMetrics() {
+		final Context context = getApplicationContext();
+		BACKGROUND.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					File file = Metrics.dump(context);
+					toast(context, file.getPath(), Toast.LENGTH_LONG);
+				} catch (IOException e) {
+					Log.e("Metrics", "could not write metrics", e);
+					toast(context, "Messwerte konnten nicht gespeichert werden", Toast.LENGTH_SHORT);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Zeigt die Meldung auf dem UI Thread an.
+	 */
+	private static void toast(final Context context, final String message, final int duration) {
+		MAIN.post(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(context, message, duration).show();
+			}
+		});
+	}
+
+	/**
+	 * Berechnet das exportierte Bild, siehe {@link #exportImage()}.
+	 */
+	private static class ExportTask implements Runnable {
+		private final Context context;
+		private final List<LayerExporter.Source> sources;
+		private final int width;
+		private final int height;
+		private final File file;
+
+		ExportTask(Context context, List<LayerExporter.Source> sources, int width, int height, File file) {
+			this.context = context;
+			this.sources = sources;
+			this.width = width;
+			this.height = height;
+			this.file = file;
+		}
+
+		@Override
+		public void run() {
+			LayerExporter exporter = new LayerExporter(Runtime.getRuntime().availableProcessors());
+			boolean success = false;
+			try {
+				file.getParentFile().mkdirs();
+				float scale = LayerExporter.suggestScale(sources, width, height);
+				exporter.exportPng(sources, width, height, scale, file);
+				success = true;
+			} catch (IOException e) {
+				Log.e("Export", "could not export to " + file, e);
+			} catch (RuntimeException e) {
+				Log.e("Export", "could not export to " + file, e);
+			} catch (OutOfMemoryError e) {
+				Log.e("Export", "out of memory exporting to " + file, e);
+			} finally {
+				exporter.shutdown();
+
+				/* Eine halb geschriebene Datei wäre kein gültiges PNG. */
+				if (!success) {
+					file.delete();
+				}
+				toast(context, success ? file.getPath() : "Export fehlgeschlagen", Toast.LENGTH_LONG);
+			}
+		}
+	}
+
+	/**
+	 * Filtert und speichert eine Originaldatei, siehe {@link #saveTopLayer()}.
+	 */
+	private static class SaveLayerTask implements Runnable {
+		private final Context context;
+		private final String path;
+		private final CompiledFilter filter;
+		private final File file;
+
+		SaveLayerTask(Context context, String path, CompiledFilter filter, File file) {
+			this.context = context;
+			this.path = path;
+			this.filter = filter;
+			this.file = file;
+		}
+
+		@Override
+		public void run() {
+			boolean success = false;
+			try {
+				file.getParentFile().mkdirs();
+				RegionRowSource source = new RegionRowSource(path);
+				try {
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+					try {
+						final PngEncoder png = new PngEncoder(out, source.getWidth(), source.getHeight());
+						new BandProcessor(filter).process(source, new BandProcessor.BandSink() {
+							@Override
+							public void writeBand(int[] pixels, int width, int fromRow, int rows)
+									throws IOException {
+								png.writeRows(pixels, 0, width, rows);
+							}
+						});
+						png.finish();
+						success = true;
+					} finally {
+						out.close();
+					}
+				} finally {
+					source.close();
+				}
+			} catch (IOException e) {
+				Log.e("Export", "could not save " + path + " to " + file, e);
+			} catch (RuntimeException e) {
+				Log.e("Export", "could not save " + path + " to " + file, e);
+			} catch (OutOfMemoryError e) {
+				Log.e("Export", "out of memory saving " + path + " to " + file, e);
+			} finally {
+				if (!success) {
+					file.delete();
+				}
+				toast(context, success ? file.getPath() : "Speichern fehlgeschlagen", Toast.LENGTH_LONG);
+			}
+		}
+	}
+
+	/**
+	 * Übersetzt den gewählten Filter. Alle Anpassungen am Bild bis zu einem
+	 * Weichzeichner werden dabei zu einem einzigen Kernel zusammengefasst,
+	 * damit das Bild nur einmal durchlaufen werden muss.
+	 */
+	private CompiledFilter modPic(){
+		return FilterGraph.parse(filterDescription).compile();
+	}
+
+	/**
+	 * Lässt den Filter für neue Ebenen wählen. Bestehende Ebenen behalten
+	 * ihren Filter.
+	 */
+	private void chooseFilter() {
+		int checked = 0;
+		for (int i = 0; i < FILTERS.length; i++) {
+			if (FILTERS[i].equals(filterDescription)) {
+				checked = i;
+			}
+		}
+		new AlertDialog.Builder(this)
+				.setTitle("Filter wählen")
+				.setSingleChoiceItems(FILTER_NAMES, checked, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						filterDescription = FILTERS[which];
+						getPreferences(MODE_PRIVATE).edit().putString(KEY_FILTER, filterDescription).apply();
+						dialog.dismiss();
+					}
+				}).show();
 	}
 	
 	//eintrag in logbuch
@@ -0,0 +1,201 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Eine Folge von Filtern, die auf ein Bild angewendet werden: Punktoperationen
+ * auf einzelnen Farbkanälen, Kernels auf einzelnen Pixeln und Operationen,
+ * die auch die Nachbarpixel lesen.
+ * 
+ * {@link #compile()} fasst aufeinanderfolgende Punktoperationen zu einer
+ * Tabelle und aufeinanderfolgende Punkt- und Pixeloperationen zu einem Kernel
+ * zusammen, der das Bild nur einmal durchläuft. Nur vor einer
+ * Nachbarschaftsoperation muss das Zwischenresultat ganz vorliegen. Das
+ * Resultat ist identisch mit dem Anwenden jedes Filters für sich.
+ * 
+ * Mit {@link #parse(String)} lässt sich ein Filter aus einer Beschreibung wie
+ * "brightness=50;contrast=100;transparent" erstellen.
+ */
+public class FilterGraph {
+
+	/**
+	 * Die Filter der Reihe nach, jeweils eine {@link PointOperation}, ein
+	 * {@link PixelKernel} oder eine {@link NeighbourhoodOperation}.
+	 */
+	private final List<Object> steps = new ArrayList<Object>();
+	private String description;
+
+	public FilterGraph point(PointOperation operation) {
+		steps.add(operation);
+		return this;
+	}
+
+	public FilterGraph pixel(PixelKernel kernel) {
+		steps.add(kernel);
+		return this;
+	}
+
+	public FilterGraph neighbourhood(NeighbourhoodOperation operation) {
+		steps.add(operation);
+		return this;
+	}
+
+	/**
+	 * Erstellt den Filter aus einer Beschreibung. Die Schritte sind durch ";"
+	 * getrennt, Parameter folgen nach "=" und sind durch "," getrennt:
+	 * 
+	 * <ul>
+	 * <li>brightness=Betrag, contrast=Stärke, gamma=Gamma, invert,
+	 * threshold=Schwelle: die {@link PointOperations}</li>
+	 * <li>transparent oder transparent=Rot,Grün,Blau[,Gamma]: der
+	 * {@link TransparencyKernel} mit eigener Gewichtung der Farben und einer
+	 * Gamma Kurve für den Alpha Wert</li>
+	 * <li>blur=Radius: ein {@link BoxBlur}</li>
+	 * </ul>
+	 * 
+	 * @throws IllegalArgumentException
+	 *             wenn die Beschreibung nicht gültig ist
+	 */
+	public static FilterGraph parse(String description) {
+		FilterGraph graph = new FilterGraph();
+		for (String step : description.split(";")) {
+			step = step.trim();
+			if (step.length() == 0) {
+				continue;
+			}
+			int equals = step.indexOf('=');
+			String name = equals < 0 ? step : step.substring(0, equals).trim();
+			String[] args = equals < 0 ? new String[0] : step.substring(equals + 1).split(",");
+			try {
+				graph.add(name, args);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid filter step: " + step, e);
+			}
+		}
+		graph.description = description;
+		return graph;
+	}
+
+	private void add(String name, String[] args) {
+		if (name.equals("brightness")) {
+			point(PointOperations.brightness(Integer.parseInt(single(name, args))));
+		} else if (name.equals("contrast")) {
+			point(PointOperations.contrast(Double.parseDouble(single(name, args))));
+		} else if (name.equals("gamma")) {
+			point(PointOperations.gamma(Double.parseDouble(single(name, args))));
+		} else if (name.equals("invert")) {
+			if (args.length != 0) {
+				throw new IllegalArgumentException("invert expects no parameters");
+			}
+			point(PointOperations.invert());
+		} else if (name.equals("threshold")) {
+			point(PointOperations.threshold(Integer.parseInt(single(name, args))));
+		} else if (name.equals("transparent")) {
+			pixel(transparency(args));
+		} else if (name.equals("blur")) {
+			int radius = Integer.parseInt(single(name, args));
+			neighbourhood(BoxBlur.horizontal(radius));
+			neighbourhood(BoxBlur.vertical(radius));
+		} else {
+			throw new IllegalArgumentException("unknown filter: " + name);
+		}
+	}
+
+	private static String single(String name, String[] args) {
+		if (args.length != 1) {
+			throw new IllegalArgumentException(name + " expects one parameter");
+		}
+		return args[0].trim();
+	}
+
+	private static TransparencyKernel transparency(String[] args) {
+		if (args.length == 0) {
+			return new TransparencyKernel();
+		}
+		if (args.length != 3 && args.length != 4) {
+			throw new IllegalArgumentException("transparent expects 0, 3 or 4 parameters");
+		}
+		double red = Double.parseDouble(args[0].trim());
+		double green = Double.parseDouble(args[1].trim());
+		double blue = Double.parseDouble(args[2].trim());
+		if (args.length == 3) {
+			return new TransparencyKernel(red, green, blue);
+		}
+		return new TransparencyKernel(red, green, blue, PointOperations.gamma(Double.parseDouble(args[3].trim())));
+	}
+
+	/**
+	 * Übersetzt den Graph in einen {@link CompiledFilter}. Spätere Änderungen
+	 * am Graph wirken sich nicht auf den übersetzten Filter aus.
+	 */
+	public CompiledFilter compile() {
+		List<PointOperation> points = new ArrayList<PointOperation>();
+		List<PixelKernel> kernels = new ArrayList<PixelKernel>();
+		PixelKernel first = null;
+		List<NeighbourhoodOperation> operations = new ArrayList<NeighbourhoodOperation>();
+		List<PixelKernel> following = new ArrayList<PixelKernel>();
+
+		for (Object step : steps) {
+			if (step instanceof PointOperation) {
+				points.add((PointOperation) step);
+				continue;
+			}
+			flush(points, kernels);
+			if (step instanceof TransparencyKernel) {
+				kernels.add(VectorKernels.transparency((TransparencyKernel) step));
+			} else if (step instanceof PixelKernel) {
+				kernels.add((PixelKernel) step);
+			} else {
+				PixelKernel fused = fuse(kernels);
+				if (operations.isEmpty()) {
+					first = fused;
+				} else {
+					following.set(following.size() - 1, fused);
+				}
+				operations.add((NeighbourhoodOperation) step);
+				following.add(null);
+			}
+		}
+		flush(points, kernels);
+		PixelKernel fused = fuse(kernels);
+		if (operations.isEmpty()) {
+			first = fused;
+		} else {
+			following.set(following.size() - 1, fused);
+		}
+
+		return new CompiledFilter(description, first,
+				operations.toArray(new NeighbourhoodOperation[operations.size()]),
+				following.toArray(new PixelKernel[following.size()]));
+	}
+
+	/**
+	 * Fasst die gesammelten Punktoperationen zu einer Tabelle zusammen. Auch
+	 * wo es die Vector API gibt: ein Zugriff pro Kanal ist schneller als der
+	 * Kontrast in double Lanes (siehe VectorKernelBenchmark).
+	 */
+	private static void flush(List<PointOperation> points, List<PixelKernel> kernels) {
+		if (!points.isEmpty()) {
+			kernels.add(new LookupTableKernel(points.toArray(new PointOperation[points.size()])));
+			points.clear();
+		}
+	}
+
+	/**
+	 * Fasst die gesammelten Kernels zu einem zusammen, null wenn es keine
+	 * gibt.
+	 */
+	private static PixelKernel fuse(List<PixelKernel> kernels) {
+		PixelKernel fused;
+		if (kernels.isEmpty()) {
+			fused = null;
+		} else if (kernels.size() == 1) {
+			fused = kernels.get(0);
+		} else {
+			fused = new KernelChain(kernels.toArray(new PixelKernel[kernels.size()]));
+		}
+		kernels.clear();
+		return fused;
+	}
+}
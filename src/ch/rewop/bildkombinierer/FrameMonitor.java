@@ -0,0 +1,199 @@
+package ch.rewop.bildkombinierer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.WindowManager;
+
+/**
+ * Misst für den {@link TouchImageView}, wie flüssig gezeichnet wird: die
+ * Abstände zwischen den Frames, ausgelassene Frames (Jank), die Dauer von
+ * onDraw abhängig von der Anzahl Ebenen und die Zeit von einem Touch Event
+ * bis zum Frame, in dem es angewendet wird.
+ * 
+ * Alle Werte landen als Wall Time in {@link Metrics} und werden mit den
+ * übrigen Messwerten gespeichert. Zusätzlich zeigt ein kleines Overlay die
+ * wichtigsten Werte direkt auf dem Display an.
+ * 
+ * Solange der Monitor läuft, wird in jedem Frame ein Callback ausgeführt.
+ * Er ist deshalb nur auf Wunsch eingeschaltet.
+ */
+class FrameMonitor implements Choreographer.FrameCallback {
+
+	/**
+	 * Ein Frame zählt als Jank, wenn er mehr als anderthalb Mal so lange wie
+	 * vorgesehen gedauert hat.
+	 */
+	private static final float JANK_FACTOR = 1.5f;
+
+	/**
+	 * So oft wird das Overlay aktualisiert. Jedes Neuzeichnen des Overlays
+	 * zeichnet auch die Ebenen darunter neu und würde sonst die Messung
+	 * verfälschen.
+	 */
+	private static final long OVERLAY_INTERVAL_NANOS = 500 * 1000 * 1000L;
+
+	/**
+	 * Die Namen der Stufen "draw_layers_1", "draw_layers_2", "draw_layers_4"
+	 * usw., damit endDraw keine Strings zusammensetzen muss.
+	 */
+	private static final String[] DRAW_LAYERS_STAGES = new String[31];
+
+	static {
+		for (int i = 0; i < DRAW_LAYERS_STAGES.length; i++) {
+			DRAW_LAYERS_STAGES[i] = "draw_layers_" + (1 << i);
+		}
+	}
+
+	private final View view;
+	private final long frameIntervalNanos;
+	private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint backgroundPaint = new Paint();
+	private final Rect overlayBounds = new Rect();
+	private final float lineHeight;
+
+	private boolean running;
+	private long lastFrameNanos;
+	private long lastOverlayNanos;
+	private long droppedFrames;
+	private long drawStartNanos;
+
+	FrameMonitor(View view) {
+		this.view = view;
+		Context context = view.getContext();
+		float refreshRate = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay()
+				.getRefreshRate();
+		frameIntervalNanos = (long) (1000000000L / Math.max(1f, refreshRate));
+
+		float density = context.getResources().getDisplayMetrics().density;
+		lineHeight = 14 * density;
+		textPaint.setColor(0xffffffff);
+		textPaint.setTextSize(12 * density);
+		backgroundPaint.setColor(0xa0000000);
+		overlayBounds.set(0, 0, (int) (220 * density), (int) (5 * lineHeight + 6 * density));
+	}
+
+	void start() {
+		if (!running) {
+			running = true;
+			lastFrameNanos = 0;
+			Choreographer.getInstance().postFrameCallback(this);
+			view.invalidate(overlayBounds);
+		}
+	}
+
+	void stop() {
+		if (running) {
+			running = false;
+			Choreographer.getInstance().removeFrameCallback(this);
+			view.invalidate(overlayBounds);
+		}
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		if (!running) {
+			return;
+		}
+		if (lastFrameNanos != 0) {
+			long interval = frameTimeNanos - lastFrameNanos;
+			Metrics.record("frame", interval);
+			if (interval > frameIntervalNanos * JANK_FACTOR) {
+				Metrics.record("jank", interval);
+				droppedFrames += Math.round((double) interval / frameIntervalNanos) - 1;
+			}
+		}
+		lastFrameNanos = frameTimeNanos;
+		if (frameTimeNanos - lastOverlayNanos > OVERLAY_INTERVAL_NANOS) {
+			lastOverlayNanos = frameTimeNanos;
+			view.invalidate(overlayBounds);
+		}
+		Choreographer.getInstance().postFrameCallback(this);
+	}
+
+	void beginDraw() {
+		drawStartNanos = System.nanoTime();
+	}
+
+	/**
+	 * Erfasst die Dauer von onDraw. Frames, die nur das Overlay
+	 * aktualisieren, zählen nicht.
+	 * 
+	 * @param clip
+	 *            der neu gezeichnete Bereich
+	 * @param layerCount
+	 *            die Anzahl Ebenen in der View
+	 * @param drawnLayers
+	 *            die Anzahl tatsächlich gezeichneter Ebenen
+	 */
+	void endDraw(Rect clip, int layerCount, int drawnLayers) {
+		if (!running || overlayBounds.contains(clip)) {
+			return;
+		}
+		long duration = System.nanoTime() - drawStartNanos;
+		Metrics.record("draw", duration);
+		Metrics.record(DRAW_LAYERS_STAGES[Integer.numberOfTrailingZeros(bucket(layerCount))], duration);
+		if (drawnLayers > 0) {
+			Metrics.record("draw_per_layer", duration / drawnLayers);
+		}
+	}
+
+	/**
+	 * Erfasst die Zeit vom ältesten Touch Messpunkt bis zu dem Frame, in dem
+	 * die Eingabe angewendet wurde.
+	 */
+	void inputApplied(long latencyMillis) {
+		if (running) {
+			Metrics.record("touch_latency", latencyMillis * 1000 * 1000);
+		}
+	}
+
+	/**
+	 * Zeichnet die Werte oben links über die Ebenen. Die Texte werden dabei
+	 * jedes Mal neu erstellt, was für eine Messanzeige vertretbar ist.
+	 */
+	void drawOverlay(Canvas canvas, int layerCount) {
+		if (!running) {
+			return;
+		}
+		Histogram frames = Metrics.getWallTime("frame");
+		Histogram draws = Metrics.getWallTime("draw");
+		Histogram touches = Metrics.getWallTime("touch_latency");
+
+		canvas.drawRect(overlayBounds, backgroundPaint);
+		float x = lineHeight / 2;
+		float y = lineHeight;
+		canvas.drawText("Ebenen: " + layerCount, x, y, textPaint);
+		canvas.drawText("Frame p50/p99: " + millis(frames.getValueAtPercentile(50)) + " / "
+				+ millis(frames.getValueAtPercentile(99)) + " ms", x, y += lineHeight, textPaint);
+		canvas.drawText("Jank: " + Metrics.getWallTime("jank").getCount() + " (" + droppedFrames + " Frames)", x,
+				y += lineHeight, textPaint);
+		canvas.drawText("onDraw p50/p99: " + millis(draws.getValueAtPercentile(50)) + " / "
+				+ millis(draws.getValueAtPercentile(99)) + " ms", x, y += lineHeight, textPaint);
+		canvas.drawText("Touch p50/p99: " + millis(touches.getValueAtPercentile(50)) + " / "
+				+ millis(touches.getValueAtPercentile(99)) + " ms", x, y += lineHeight, textPaint);
+	}
+
+	/**
+	 * Fasst die Anzahl Ebenen zu Zweierpotenzen zusammen, damit man sieht, ab
+	 * wie vielen Ebenen es eng wird.
+	 */
+	static int bucket(int layerCount) {
+		int bucket = 1;
+		while (bucket < layerCount && bucket < 1 << 30) {
+			bucket *= 2;
+		}
+		return bucket;
+	}
+
+	private static String millis(long micros) {
+		return String.valueOf(Math.round(micros / 100.0) / 10.0);
+	}
+}
@@ -0,0 +1,112 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.Arrays;
+
+/**
+ * Ein Histogramm für Messwerte wie Laufzeiten, das mit fester Grösse
+ * auskommt und trotzdem über viele Grössenordnungen genau bleibt.
+ * 
+ * Wie bei HdrHistogram ist jede Zweierpotenz in gleich viele Fächer
+ * aufgeteilt. Werte unter 64 werden exakt gezählt, grössere Werte mit einer
+ * Genauigkeit von etwa 3%. Werte ab 2^40 landen im obersten Fach.
+ */
+public class Histogram {
+
+	/**
+	 * In so viele Fächer wird jede Zweierpotenz aufgeteilt.
+	 */
+	private static final int SUB_BUCKETS = 32;
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * Zählt einen Wert. Negative Werte werden als 0 gezählt.
+	 */
+	public synchronized void record(long value) {
+		value = Math.max(0, value);
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Der Wert, unter dem percent Prozent aller Werte liegen. Liefert die
+	 * Mitte des Fachs, höchstens aber das gemessene Maximum.
+	 */
+	public synchronized long getValueAtPercentile(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(count * percent / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(max, (lowerBound(i) + lowerBound(i + 1) - 1) / 2);
+			}
+		}
+		return max;
+	}
+
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Das Fach für einen Wert. Die ersten 2 * SUB_BUCKETS Fächer enthalten
+	 * genau einen Wert, danach deckt jede Gruppe von SUB_BUCKETS Fächern eine
+	 * Zweierpotenz ab.
+	 */
+	static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Der kleinste Wert, der im Fach landet.
+	 */
+	static long lowerBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+}
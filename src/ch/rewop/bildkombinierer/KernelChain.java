@@ -0,0 +1,59 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Fasst mehrere Kernels zu einem einzigen zusammen. Jeder Pixel wird einmal
+ * gelesen, der Reihe nach durch alle Kernels geschickt und einmal
+ * geschrieben, statt für jeden Filter das ganze Bild zu durchlaufen und zu
+ * kopieren.
+ * 
+ * Können alle Kernels ganze Bereiche verarbeiten, arbeitet die Kette in
+ * Blöcken, die in den L1 Cache passen: jeder Kernel läuft über den ganzen
+ * Block, bevor der nächste folgt.
+ */
+public class KernelChain implements BulkPixelKernel {
+
+	/**
+	 * 4 KB, passt auch bei kleinen L1 Caches.
+	 */
+	private static final int BLOCK = 1024;
+
+	private final PixelKernel[] kernels;
+	private final BulkPixelKernel[] bulkKernels;
+
+	public KernelChain(PixelKernel... kernels) {
+		this.kernels = kernels.clone();
+		BulkPixelKernel[] bulk = new BulkPixelKernel[kernels.length];
+		for (int i = 0; i < kernels.length; i++) {
+			if (!(kernels[i] instanceof BulkPixelKernel)) {
+				bulk = null;
+				break;
+			}
+			bulk[i] = (BulkPixelKernel) kernels[i];
+		}
+		this.bulkKernels = bulk;
+	}
+
+	@Override
+	public int apply(int argb) {
+		for (PixelKernel kernel : kernels) {
+			argb = kernel.apply(argb);
+		}
+		return argb;
+	}
+
+	@Override
+	public void apply(int[] pixels, int from, int to) {
+		if (bulkKernels == null) {
+			for (int i = from; i < to; i++) {
+				pixels[i] = apply(pixels[i]);
+			}
+			return;
+		}
+		for (int start = from; start < to; start += BLOCK) {
+			int end = Math.min(to, start + BLOCK);
+			for (BulkPixelKernel kernel : bulkKernels) {
+				kernel.apply(pixels, start, end);
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Führt einen {@link PixelKernel} parallel auf mehreren Threads aus. Das Bild
+ * wird dazu in horizontale Streifen aufgeteilt, von denen jeder Thread einen
+ * bearbeitet. Da jeder Pixel unabhängig von den anderen berechnet wird und
+ * sich die Streifen nicht überschneiden, ist das Resultat identisch mit
+ * {@link PixelEngine#run(PixelKernel, int[], int, int)}.
+ * 
+ * Die Kernels müssen deshalb zustandslos sein, bzw. dürfen während apply nur
+ * lesend auf ihre Felder zugreifen.
+ */
+public class KernelExecutor {
+
+	/**
+	 * Unterhalb dieser Anzahl Pixel pro Streifen lohnt sich das Verteilen auf
+	 * mehrere Threads nicht mehr.
+	 */
+	private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+	private static KernelExecutor defaultExecutor;
+
+	private final int parallelism;
+	private final ExecutorService executor;
+
+	/**
+	 * Erstellt einen Executor, der höchstens parallelism Threads gleichzeitig
+	 * verwendet. Der aufrufende Thread zählt dabei mit, bei 1 wird also alles
+	 * seriell im aufrufenden Thread erledigt.
+	 */
+	public KernelExecutor(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		if (parallelism > 1) {
+			executor = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "KernelExecutor-" + ++count);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Der gemeinsam verwendete Executor mit einem Thread pro CPU Kern.
+	 */
+	public static synchronized KernelExecutor getDefault() {
+		if (defaultExecutor == null) {
+			defaultExecutor = new KernelExecutor(Runtime.getRuntime().availableProcessors());
+		}
+		return defaultExecutor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Wendet den Kernel auf das ganze Bild an und kehrt erst zurück, wenn alle
+	 * Streifen fertig sind. Das Array wird dabei direkt überschrieben.
+	 */
+	public void run(final PixelKernel kernel, final int[] pixels, final int width, int height) {
+		runBands(width, height, new Band() {
+			@Override
+			public void run(int fromRow, int toRow) {
+				PixelEngine.runRows(kernel, pixels, width, fromRow, toRow);
+			}
+		});
+	}
+
+	/**
+	 * Berechnet dst aus src mit der Operation und wendet danach, falls nicht
+	 * null, den Kernel auf dst an. Der Kernel läuft gleich pro Streifen, so
+	 * lange dessen Pixel noch im Cache sind, statt in einem eigenen Durchgang.
+	 */
+	public void run(final NeighbourhoodOperation operation, final PixelKernel kernel, final int[] src,
+			final int[] dst, final int width, final int height) {
+		runBands(width, height, new Band() {
+			@Override
+			public void run(int fromRow, int toRow) {
+				operation.apply(src, dst, width, height, fromRow, toRow);
+				if (kernel != null) {
+					PixelEngine.runRows(kernel, dst, width, fromRow, toRow);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Die Arbeit an einem horizontalen Streifen des Bildes.
+	 */
+	private interface Band {
+		void run(int fromRow, int toRow);
+	}
+
+	private void runBands(int width, int height, final Band task) {
+		int bands = Math.min(parallelism, Math.max(1, (width * height) / MIN_PIXELS_PER_BAND));
+		if (bands <= 1 || height < bands) {
+			task.run(0, height);
+			return;
+		}
+
+		/*
+		 * Die ersten Streifen geben wir an den Pool ab, den letzten
+		 * bearbeiten wir selbst, statt untätig zu warten.
+		 */
+		List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+		for (int band = 0; band < bands - 1; band++) {
+			final int fromRow = height * band / bands;
+			final int toRow = height * (band + 1) / bands;
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					task.run(fromRow, toRow);
+				}
+			}));
+		}
+		task.run(height * (bands - 1) / bands, height);
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for kernel", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("kernel failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Beendet die Threads des Executors. Danach kann er nicht mehr verwendet
+	 * werden.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Eine Ebene im {@link TouchImageView}: ein Bild mit Position, Skalierung und
+ * Rotation. Die Ebenen werden alle von derselben View gezeichnet, die
+ * Reihenfolge in der View bestimmt, welche Ebene zuoberst liegt.
+ */
+public class Layer {
+
+	/**
+	 * Die Position an der sich das Bild im Moment befindet
+	 */
+	float posX;
+	float posY;
+
+	float scaleFactor = 1f;
+
+	/**
+	 * Der ganze Winkel in Grad um den das Bild gedreht ist.
+	 */
+	float totalRotation = 0f;
+
+	/**
+	 * Die Reihenfolge der Ebene, höhere Werte liegen weiter oben.
+	 */
+	int z;
+
+	/**
+	 * Die Grösse des Bildes das wir rendern. Das Bild selbst liegt in der
+	 * pyramid, solange es noch aufbereitet wird ist nur bitmapSize gesetzt.
+	 */
+	private final RectF bitmapSize;
+
+	/**
+	 * Das Bild in mehreren Auflösungen, damit wir beim Zoomen nicht ein
+	 * hochskaliertes oder stark verkleinertes Bitmap zeichnen müssen.
+	 */
+	private LayerPyramid pyramid;
+	private String sourcePath;
+	private CompiledFilter sourceFilter;
+
+	/**
+	 * Die Transformation von Bild- auf View-Koordinaten und die Bounding Box
+	 * des transformierten Bildes. Beide werden bei jeder Änderung von
+	 * Position, Skalierung oder Rotation nachgeführt.
+	 */
+	private final Matrix transform = new Matrix();
+	private final Matrix inverse = new Matrix();
+	private final RectF boundingBox = new RectF();
+	private final float[] point = new float[2];
+
+	/**
+	 * Die View, in der die Ebene gezeichnet wird. Sie wird benachrichtigt,
+	 * wenn die Ebene neu gezeichnet werden muss, weil z.B. das Bild gesetzt
+	 * oder eine höher aufgelöste Stufe nachgeladen wurde.
+	 */
+	private final TouchImageView owner;
+	private final Runnable onChanged = new Runnable() {
+		@Override
+		public void run() {
+			owner.onLayerChanged(Layer.this);
+		}
+	};
+
+	Layer(int width, int height, TouchImageView owner) {
+		this.bitmapSize = new RectF(0, 0, width, height);
+		this.owner = owner;
+		updateTransform();
+	}
+
+	/**
+	 * Ersetzt den Platzhalter durch das fertig skalierte und gefilterte Bild.
+	 * Das Bild wird unverändert übernommen.
+	 */
+	public void setProcessedBitmap(Bitmap bitmap) {
+		if (pyramid != null) {
+			pyramid.release();
+		}
+		pyramid = new LayerPyramid(bitmap, onChanged);
+		if (sourcePath != null) {
+			pyramid.setSource(sourcePath, sourceFilter);
+		}
+		if (owner.getMaskErrorThreshold() > 0) {
+			pyramid.compact(owner.getMaskErrorThreshold());
+		}
+		bitmapSize.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+		updateTransform();
+		onChanged.run();
+	}
+
+	/**
+	 * Legt die Originaldatei und den Filter fest, mit denen beim Zoomen höher
+	 * aufgelöste Ausschnitte des Bildes nachgeladen werden.
+	 */
+	public void setSource(String path, CompiledFilter filter) {
+		sourcePath = path;
+		sourceFilter = filter;
+		if (pyramid != null) {
+			pyramid.setSource(path, filter);
+		}
+	}
+
+	/**
+	 * Das aufbereitete Bild oder null, solange es noch aufbereitet wird. Ist
+	 * die Ebene herabgestuft, ist es kleiner als die Ebene.
+	 */
+	public Bitmap getBitmap() {
+		return pyramid != null ? pyramid.getBase() : null;
+	}
+
+	/**
+	 * Wie viele Bytes das Bild der Ebene im Moment belegt.
+	 */
+	long getBitmapBytes() {
+		Bitmap bitmap = getBitmap();
+		return bitmap != null ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+	}
+
+	/**
+	 * Um diesen Faktor ist das Bild der Ebene im Moment verkleinert, siehe
+	 * {@link LayerPyramid#downgrade(int)}.
+	 */
+	int getReduction() {
+		return pyramid != null ? pyramid.getBaseReduction() : 1;
+	}
+
+	/**
+	 * Ersetzt das Bild durch eine um reduction verkleinerte Kopie. Die Ebene
+	 * behält ihre Grösse und wird wieder in voller Auflösung geladen, sobald
+	 * sie gross genug gezeichnet wird. Das geht nur mit einer Originaldatei.
+	 */
+	boolean downgrade(int reduction) {
+		if (pyramid == null || sourcePath == null || reduction <= pyramid.getBaseReduction()) {
+			return false;
+		}
+		pyramid.downgrade(reduction);
+		return true;
+	}
+
+	public RectF getBoundingBox() {
+		return boundingBox;
+	}
+
+	/**
+	 * Die Grösse der Ebene beim Skalierungsfaktor 1.
+	 */
+	int getWidth() {
+		return (int) bitmapSize.width();
+	}
+
+	int getHeight() {
+		return (int) bitmapSize.height();
+	}
+
+	String getSourcePath() {
+		return sourcePath;
+	}
+
+	CompiledFilter getSourceFilter() {
+		return sourceFilter;
+	}
+
+	/**
+	 * Sortiert die Liste von unten nach oben. Sortieren durch Einfügen, die
+	 * Listen sind kurz und meist schon fast sortiert. Legt keine Objekte an
+	 * und kann deshalb auch aus onDraw aufgerufen werden.
+	 */
+	static void sortByZ(List<Layer> layers) {
+		for (int i = 1; i < layers.size(); i++) {
+			Layer layer = layers.get(i);
+			int j = i - 1;
+			while (j >= 0 && layers.get(j).z > layer.z) {
+				layers.set(j + 1, layers.get(j));
+				j--;
+			}
+			layers.set(j + 1, layer);
+		}
+	}
+
+	/**
+	 * Berechnet die Transformation und die Bounding Box neu. Muss nach jeder
+	 * Änderung von Position, Skalierung oder Rotation aufgerufen werden.
+	 */
+	void updateTransform() {
+		float centerX = (int) bitmapSize.width() / 2;
+		float centerY = (int) bitmapSize.height() / 2;
+
+		/* Wir skalieren und rotieren das Bild um das Zentrum. */
+		transform.setScale(scaleFactor, scaleFactor, centerX, centerY);
+		transform.postRotate(totalRotation, centerX, centerY);
+		transform.postTranslate(posX, posY);
+
+		/*
+		 * Dieselbe Transformation wenden wir nun auch auf unsere Bounding Box
+		 * an.
+		 */
+		transform.mapRect(boundingBox, bitmapSize);
+		transform.invert(inverse);
+	}
+
+	/**
+	 * Prüft, ob der Punkt (in View-Koordinaten) im gedrehten Rechteck des
+	 * Bildes liegt. Die Ecken der Bounding Box eines gedrehten Bildes gehören
+	 * also nicht dazu. Ist alphaThreshold grösser als 0, muss der Pixel an
+	 * dieser Stelle zudem mindestens so deckend sein.
+	 */
+	boolean contains(float x, float y, int alphaThreshold) {
+		point[0] = x;
+		point[1] = y;
+		inverse.mapPoints(point);
+		if (!bitmapSize.contains(point[0], point[1])) {
+			return false;
+		}
+		Bitmap bitmap = getBitmap();
+		if (alphaThreshold <= 0 || bitmap == null) {
+			return true;
+		}
+		int pixelX = Math.min(bitmap.getWidth() - 1, (int) (point[0] * bitmap.getWidth() / bitmapSize.width()));
+		int pixelY = Math.min(bitmap.getHeight() - 1, (int) (point[1] * bitmap.getHeight() / bitmapSize.height()));
+		return (bitmap.getPixel(pixelX, pixelY) >>> 24) >= alphaThreshold;
+	}
+
+	void draw(Canvas canvas, Paint placeholderPaint) {
+		if (pyramid != null) {
+			pyramid.draw(canvas, transform, scaleFactor);
+		} else {
+
+			/*
+			 * Solange das Bild noch aufbereitet wird, zeichnen wir an seiner
+			 * Stelle ein halbtransparentes Rechteck.
+			 */
+			canvas.save();
+			canvas.concat(transform);
+			canvas.drawRect(bitmapSize, placeholderPaint);
+			canvas.restore();
+		}
+	}
+
+	/**
+	 * Gibt die zusätzlichen Auflösungsstufen frei, wenn die Ebene entfernt
+	 * wird.
+	 */
+	void release() {
+		if (pyramid != null) {
+			pyramid.release();
+			pyramid = null;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Merkt sich fertig aufbereitete Bilder, damit ein Foto, das nochmals
+ * hinzugefügt wird, nicht wieder dekodiert und gefiltert werden muss.
+ * 
+ * Der Schlüssel ist ein SHA-1 über den Inhalt der Originaldatei, die
+ * Parameter der Aufbereitung und die Zielgrösse. Ändert sich eines davon,
+ * ergibt sich ein anderer Schlüssel, veraltete Einträge gibt es also nicht.
+ * 
+ * Vor dem Cache im Cache Verzeichnis liegt ein kleiner Cache im Speicher. Beide
+ * sind in der Grösse begrenzt und werfen die am längsten nicht mehr
+ * verwendeten Bilder zuerst hinaus. Die Bilder im Speicher werden mit den
+ * Ebenen geteilt und dürfen deshalb nicht verändert oder freigegeben werden.
+ */
+public class LayerCache {
+
+	/**
+	 * So viel Platz dürfen die Bilder im Cache Verzeichnis belegen.
+	 */
+	private static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+
+	private static final String PIXELS = ".px";
+
+	private static LayerCache instance;
+
+	private final LruCache<String, Bitmap> memory = new LruCache<String, Bitmap>(
+			(int) (Runtime.getRuntime().maxMemory() / 1024 / 16)) {
+		@Override
+		protected int sizeOf(String key, Bitmap value) {
+			return kilobytes(value);
+		}
+	};
+
+	private final File directory;
+	private final long maxDiskBytes;
+
+	/**
+	 * Die Dateien im Cache Verzeichnis mit ihrer Grösse, die am längsten nicht
+	 * verwendete zuerst. Wird erst beim ersten Zugriff eingelesen.
+	 */
+	private LinkedHashMap<String, Long> files;
+	private long diskBytes;
+
+	public LayerCache(File directory, long maxDiskBytes) {
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	public static synchronized LayerCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new LayerCache(new File(context.getCacheDir(), "layers"), MAX_DISK_BYTES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Berechnet den Schlüssel für ein Bild. Liest dazu die ganze Datei und
+	 * sollte deshalb nicht im UI Thread aufgerufen werden.
+	 * 
+	 * @param params
+	 *            beschreibt die Aufbereitung, z.B. die Werte der Filter
+	 */
+	public static String key(String path, String params, int width, int height) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		digest.update((params + "\n" + width + "x" + height).getBytes("UTF-8"));
+
+		StringBuilder key = new StringBuilder(40);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Sucht das Bild zuerst im Speicher, dann im Cache Verzeichnis. Liefert null,
+	 * wenn es in keinem der beiden liegt.
+	 */
+	public Bitmap get(String key, int width, int height) {
+		Bitmap bitmap = memory.get(key);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		synchronized (this) {
+			loadFiles();
+			if (files.get(key) == null) {
+				return null;
+			}
+		}
+		File file = new File(directory, key + PIXELS);
+		try {
+			bitmap = PixelFile.read(file, width, height);
+		} catch (IOException e) {
+			Log.e("LayerCache", "could not read " + file, e);
+		}
+		synchronized (this) {
+			if (bitmap == null) {
+				remove(key);
+				file.delete();
+				return null;
+			}
+
+			/*
+			 * Als zuletzt verwendet markieren. Nach einem Neustart bestimmt
+			 * das Datum der Datei die Reihenfolge.
+			 */
+			files.get(key);
+			file.setLastModified(System.currentTimeMillis());
+		}
+		memory.put(key, bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Legt das Bild in beide Caches. Das Bild gehört danach auch dem Cache.
+	 */
+	public void put(String key, Bitmap bitmap) {
+		memory.put(key, bitmap);
+		File file = new File(directory, key + PIXELS);
+		try {
+			PixelFile.write(bitmap, file);
+		} catch (IOException e) {
+			Log.e("LayerCache", "could not write " + file, e);
+			return;
+		}
+		synchronized (this) {
+			loadFiles();
+			remove(key);
+			long length = file.length();
+			files.put(key, length);
+			diskBytes += length;
+			trim();
+		}
+	}
+
+	/**
+	 * Wie viele Bytes die Bilder im Speicher belegen.
+	 */
+	public long getMemoryBytes() {
+		return memory.size() * 1024L;
+	}
+
+	/**
+	 * Wie viele Bytes die Bilder im Speicher belegen, ohne die Bilder in
+	 * shared. Sie werden auch anderswo gehalten, z.B. von einer Ebene, und
+	 * würden beim Verkleinern des Caches nicht frei.
+	 */
+	public long getMemoryBytes(Set<Object> shared) {
+		return Math.max(0, getMemoryBytes() - getSharedBytes(shared));
+	}
+
+	private long getSharedBytes(Set<Object> shared) {
+		if (shared.isEmpty()) {
+			return 0;
+		}
+		long bytes = 0;
+		for (Bitmap bitmap : memory.snapshot().values()) {
+			if (shared.contains(bitmap)) {
+				bytes += kilobytes(bitmap) * 1024L;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Verkleinert den Cache im Speicher auf höchstens bytes. Die Bilder
+	 * bleiben auf der Disk.
+	 */
+	public void trimMemory(long bytes) {
+		memory.trimToSize((int) (bytes / 1024));
+	}
+
+	/**
+	 * Verkleinert den Cache im Speicher, bis er ohne die Bilder in shared
+	 * höchstens bytes belegt.
+	 */
+	public void trimMemory(long bytes, Set<Object> shared) {
+		trimMemory(bytes + getSharedBytes(shared));
+	}
+
+	/**
+	 * Liest die vorhandenen Dateien ein, die älteste zuerst.
+	 */
+	private void loadFiles() {
+		if (files != null) {
+			return;
+		}
+		files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		diskBytes = 0;
+		directory.mkdirs();
+		File[] existing = directory.listFiles();
+		if (existing == null) {
+			return;
+		}
+		Arrays.sort(existing, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (File file : existing) {
+			String name = file.getName();
+			if (name.endsWith(PIXELS)) {
+				files.put(name.substring(0, name.length() - PIXELS.length()), file.length());
+				diskBytes += file.length();
+			} else {
+
+				/* Übrig gebliebene temporäre Dateien. */
+				file.delete();
+			}
+		}
+		trim();
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			diskBytes -= eldest.getValue();
+			new File(directory, eldest.getKey() + PIXELS).delete();
+		}
+	}
+
+	private void remove(String key) {
+		Long length = files.remove(key);
+		if (length != null) {
+			diskBytes -= length;
+		}
+	}
+
+	/**
+	 * Die Grösse im Cache, in KB gerechnet.
+	 */
+	private static int kilobytes(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+	}
+}
@@ -0,0 +1,368 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * Setzt alle Ebenen zu einem Bild zusammen, und zwar in der Auflösung der
+ * Originaldateien statt in der Auflösung des Displays.
+ * 
+ * Das Bild entsteht nie als Ganzes im Speicher. Es wird in Kacheln berechnet,
+ * für jede Kachel wird aus jeder Originaldatei nur der Ausschnitt dekodiert
+ * und gefiltert, der die Kachel bedeckt, und mit der Transformation der Ebene
+ * hineingezeichnet. Eine Reihe von Kacheln ergibt einen Streifen, der sofort
+ * an einen {@link BandProcessor.BandSink} weitergegeben wird. Der
+ * Speicherbedarf hängt so nur von der Breite des Bildes und der Grösse der
+ * Kacheln ab.
+ * 
+ * Die Kacheln eines Streifens sind unabhängig voneinander und werden parallel
+ * berechnet.
+ */
+public class LayerExporter {
+
+	/**
+	 * Die Höhe der Streifen und die Breite der Kacheln in Pixeln des
+	 * exportierten Bildes.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * Grösser exportieren wir nicht, auch wenn die Originale es hergeben
+	 * würden.
+	 */
+	public static final int MAX_PIXELS = 48 * 1024 * 1024;
+
+	/**
+	 * Die Kacheln laufen bereits parallel, die Filter darin deshalb seriell.
+	 */
+	private static final KernelExecutor TILE_FILTER = new KernelExecutor(1);
+
+	/**
+	 * Was wir von einer Ebene für den Export brauchen. Die Werte werden im UI
+	 * Thread kopiert, damit die Ebene während des Exports weiter verschoben
+	 * werden kann.
+	 */
+	public static class Source {
+		final String path;
+		final CompiledFilter filter;
+		final int width;
+		final int height;
+		final Affine transform;
+
+		/**
+		 * @param width
+		 *            die Breite der Ebene in der View
+		 * @param transform
+		 *            bildet die Ebene auf die View ab
+		 */
+		public Source(String path, CompiledFilter filter, int width, int height, Affine transform) {
+			this.path = path;
+			this.filter = filter;
+			this.width = width;
+			this.height = height;
+			this.transform = transform;
+		}
+	}
+
+	/**
+	 * Eine geöffnete Originaldatei und die Abbildung ihrer Pixel auf das
+	 * exportierte Bild.
+	 */
+	private static class OpenSource {
+		final Source source;
+		final BitmapRegionDecoder decoder;
+		final Affine toOutput;
+		final double[] bounds;
+
+		OpenSource(Source source, BitmapRegionDecoder decoder, Affine toOutput) {
+			this.source = source;
+			this.decoder = decoder;
+			this.toOutput = toOutput;
+			this.bounds = toOutput.mapBounds(0, 0, decoder.getWidth(), decoder.getHeight());
+		}
+	}
+
+	private final int parallelism;
+	private final ExecutorService executor;
+
+	/**
+	 * Erstellt einen Exporter, der höchstens parallelism Kacheln
+	 * gleichzeitig berechnet. Der aufrufende Thread zählt dabei mit.
+	 */
+	public LayerExporter(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		if (parallelism > 1) {
+			executor = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "LayerExporter-" + ++count);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Kopiert die Ebenen, die eine Originaldatei haben, von unten nach oben.
+	 * Muss im UI Thread aufgerufen werden.
+	 */
+	public static List<Source> snapshot(List<Layer> layers) {
+		List<Source> sources = new ArrayList<Source>();
+		List<Layer> sorted = new ArrayList<Layer>(layers);
+		Layer.sortByZ(sorted);
+		for (Layer layer : sorted) {
+			if (layer.getSourcePath() != null) {
+				sources.add(new Source(layer.getSourcePath(), layer.getSourceFilter(), layer.getWidth(),
+						layer.getHeight(), Affine.forLayer(layer.getWidth(), layer.getHeight(), layer.scaleFactor,
+								layer.totalRotation, layer.posX, layer.posY)));
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Der Faktor zwischen View und exportiertem Bild, bei dem die Ebene mit
+	 * der höchsten Auflösung gerade in ihrer vollen Auflösung erscheint.
+	 * Höchstens so gross, dass das Bild nicht mehr als {@link #MAX_PIXELS}
+	 * hat.
+	 */
+	public static float suggestScale(List<Source> sources, int viewWidth, int viewHeight) {
+		double scale = 1;
+		for (Source source : sources) {
+			BitmapFactory.Options bounds = BitmapDecoder.readBounds(source.path);
+			if (bounds.outWidth > 0) {
+				scale = Math.max(scale, (double) bounds.outWidth / source.width);
+			}
+		}
+		double maxScale = Math.sqrt((double) MAX_PIXELS / ((long) viewWidth * viewHeight));
+		return (float) Math.min(scale, maxScale);
+	}
+
+	/**
+	 * Exportiert die Ebenen als PNG Datei. Die View wird dabei mit scale
+	 * vergrössert, Bereiche ohne Ebene bleiben transparent. Die Streifen
+	 * werden, wo möglich, parallel komprimiert, während bereits die nächsten
+	 * berechnet werden.
+	 */
+	public void exportPng(List<Source> sources, int viewWidth, int viewHeight, float scale, File file)
+			throws IOException {
+		int width = Math.max(1, Math.round(viewWidth * scale));
+		int height = Math.max(1, Math.round(viewHeight * scale));
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			if (ParallelPngEncoder.isSupported()) {
+				final ParallelPngEncoder png = new ParallelPngEncoder(out.getChannel(), width, height, parallelism);
+				try {
+					export(sources, scale, width, height, new BandProcessor.BandSink() {
+						@Override
+						public void writeBand(int[] pixels, int width, int fromRow, int rows) throws IOException {
+							png.writeRows(pixels, 0, width, rows);
+						}
+					});
+					png.finish();
+				} finally {
+					png.abort();
+				}
+			} else {
+				OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+				final PngEncoder png = new PngEncoder(buffered, width, height);
+				export(sources, scale, width, height, new BandProcessor.BandSink() {
+					@Override
+					public void writeBand(int[] pixels, int width, int fromRow, int rows) throws IOException {
+						png.writeRows(pixels, 0, width, rows);
+					}
+				});
+				png.finish();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Berechnet das Bild Streifen für Streifen und gibt jeden Streifen an den
+	 * Sink weiter.
+	 */
+	public void export(List<Source> sources, float scale, final int width, int height, BandProcessor.BandSink sink)
+			throws IOException {
+		final List<OpenSource> open = new ArrayList<OpenSource>();
+		Metrics.Span span = Metrics.begin("export");
+		try {
+			for (Source source : sources) {
+				BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(source.path, false);
+
+				/*
+				 * Originalpixel -> Ebene in der View -> View -> exportiertes
+				 * Bild.
+				 */
+				Affine toOutput = new Affine().postScale((double) source.width / decoder.getWidth(),
+						(double) source.height / decoder.getHeight());
+				toOutput = new Affine(source.transform).preConcat(toOutput).postScale(scale, scale);
+				open.add(new OpenSource(source, decoder, toOutput));
+			}
+
+			final int[] band = new int[width * TILE_SIZE];
+			for (int top = 0; top < height; top += TILE_SIZE) {
+				final int rows = Math.min(TILE_SIZE, height - top);
+				Arrays.fill(band, 0, width * rows, 0);
+				renderBand(open, band, width, top, rows);
+				sink.writeBand(band, width, top, rows);
+			}
+		} finally {
+			for (OpenSource source : open) {
+				source.decoder.recycle();
+			}
+			span.end(width, height);
+		}
+	}
+
+	/**
+	 * Verteilt die Kacheln des Streifens auf die Threads. Da sich die Kacheln
+	 * nicht überschneiden, können alle direkt in den Streifen schreiben.
+	 */
+	private void renderBand(final List<OpenSource> sources, final int[] band, final int width, final int top,
+			final int rows) throws IOException {
+		int tiles = (width + TILE_SIZE - 1) / TILE_SIZE;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < tiles; i++) {
+			final int left = i * TILE_SIZE;
+			final int columns = Math.min(TILE_SIZE, width - left);
+			if (executor != null && i % parallelism != 0) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						renderTile(sources, band, width, left, top, columns, rows);
+					}
+				}));
+			} else {
+				renderTile(sources, band, width, left, top, columns, rows);
+			}
+		}
+		/*
+		 * Auch wenn eine Kachel fehlschlägt, warten wir auf alle anderen,
+		 * bevor der Aufrufer die Decoder freigibt.
+		 */
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new IOException("export interrupted");
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException("export tile failed", failure);
+		}
+	}
+
+	/**
+	 * Zeichnet alle Ebenen, welche die Kachel bedecken, von unten nach oben
+	 * hinein.
+	 */
+	private void renderTile(List<OpenSource> sources, int[] band, int width, int left, int top, int columns,
+			int rows) {
+		Metrics.Span span = Metrics.begin("export_tile");
+		for (OpenSource source : sources) {
+			if (source.bounds[2] <= left || source.bounds[0] >= left + columns || source.bounds[3] <= top
+					|| source.bounds[1] >= top + rows) {
+				continue;
+			}
+
+			/*
+			 * Der Ausschnitt der Originaldatei, der die Kachel bedeckt.
+			 */
+			int sourceWidth = source.decoder.getWidth();
+			int sourceHeight = source.decoder.getHeight();
+			int[] area = TileCompositor.sourceRegion(source.toOutput, sourceWidth, sourceHeight, left, top, left
+					+ columns, top + rows);
+			if (area == null) {
+				continue;
+			}
+			Rect region = new Rect(area[0], area[1], area[2], area[3]);
+
+			/*
+			 * Wird die Ebene verkleinert exportiert, lassen wir den Decoder
+			 * gleich jeden n-ten Pixel überspringen.
+			 */
+			double outputScale = source.toOutput.getMaxScale();
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			options.inSampleSize = BitmapDecoder.calculateInSampleSize(region.width(), region.height(),
+					Math.max(1, (int) Math.ceil(region.width() * outputScale)),
+					Math.max(1, (int) Math.ceil(region.height() * outputScale)));
+
+			/* Rand für die Interpolation und den Filter. */
+			CompiledFilter filter = source.source.filter;
+			int margin = TileCompositor.getPadding(filter != null ? filter.getMargin() : 0, options.inSampleSize);
+			TileCompositor.pad(area, margin, sourceWidth, sourceHeight);
+			region.set(area[0], area[1], area[2], area[3]);
+			Bitmap bitmap = source.decoder.decodeRegion(region, options);
+			if (bitmap == null) {
+				continue;
+			}
+			int regionWidth = bitmap.getWidth();
+			int regionHeight = bitmap.getHeight();
+			int[] pixels = PixelArrayPool.getDefault().obtain(regionWidth * regionHeight);
+			bitmap.getPixels(pixels, 0, regionWidth, 0, 0, regionWidth, regionHeight);
+			bitmap.recycle();
+			if (filter != null) {
+				filter.apply(pixels, regionWidth, regionHeight, TILE_FILTER);
+			}
+
+			/* Pixel des Ausschnitts -> Originalpixel -> Kachel. */
+			Affine toTile = new Affine().postScale((double) region.width() / regionWidth,
+					(double) region.height() / regionHeight).postTranslate(region.left, region.top);
+			toTile = new Affine(source.toOutput).preConcat(toTile).postTranslate(-left, -top);
+			TileCompositor.composite(pixels, regionWidth, regionHeight, toTile, band, left, width, columns, rows);
+			PixelArrayPool.getDefault().release(pixels);
+		}
+		span.end(columns, rows);
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Ein gleichmässiges Gitter über die Bounding Boxes der Ebenen. Jede Zelle
+ * kennt die Ebenen, deren Bounding Box sie berührt. Damit müssen wir bei
+ * einem Touch oder beim Neuzeichnen eines Bereichs nur die Ebenen der
+ * betroffenen Zellen prüfen, statt alle.
+ * 
+ * Das Gitter selbst ist ein {@link SpatialGrid}, hier kommen die genauen
+ * Tests gegen das gedrehte Bild und die Sortierung nach z dazu. Die Abfragen
+ * werden aus onDraw und onTouchEvent aufgerufen und legen keine Objekte an.
+ */
+class LayerIndex {
+
+	/**
+	 * Die Kantenlänge einer Zelle in Pixeln.
+	 */
+	private static final int CELL_SIZE = 256;
+
+	private final SpatialGrid<Layer> grid = new SpatialGrid<Layer>(CELL_SIZE);
+
+	/**
+	 * Wird bei jeder Punktabfrage wiederverwendet.
+	 */
+	private final List<Layer> candidates = new ArrayList<Layer>();
+
+	/**
+	 * Trägt die Ebene ein oder aktualisiert ihre Zellen, nachdem sich ihre
+	 * Bounding Box geändert hat.
+	 */
+	void update(Layer layer) {
+		RectF box = layer.getBoundingBox();
+		grid.update(layer, box.left, box.top, box.right, box.bottom);
+	}
+
+	void remove(Layer layer) {
+		grid.remove(layer);
+	}
+
+	/**
+	 * Sucht die oberste Ebene, die den Punkt tatsächlich enthält. Geprüft wird
+	 * das gedrehte Rechteck des Bildes, nicht nur die Bounding Box. Ist
+	 * alphaThreshold grösser als 0, muss der Pixel an dieser Stelle zudem
+	 * mindestens so deckend sein.
+	 */
+	Layer findTopmost(float x, float y, int alphaThreshold) {
+		grid.findContaining(x, y, candidates);
+		Layer topmost = null;
+		for (int i = 0; i < candidates.size(); i++) {
+			Layer layer = candidates.get(i);
+			if ((topmost == null || layer.z > topmost.z) && layer.contains(x, y, alphaThreshold)) {
+				topmost = layer;
+			}
+		}
+		candidates.clear();
+		return topmost;
+	}
+
+	/**
+	 * Fügt alle Ebenen, deren Bounding Box den Bereich schneidet, zu result
+	 * hinzu, jede nur einmal und nach z sortiert, die unterste zuerst.
+	 */
+	void findIntersecting(Rect area, List<Layer> result) {
+		result.clear();
+		grid.findIntersecting(area.left, area.top, area.right, area.bottom, result);
+		Layer.sortByZ(result);
+	}
+}
@@ -0,0 +1,92 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Rechnet ein Bild in eine Maske mit einer einzigen Farbe um und zurück.
+ * 
+ * Die aufbereiteten Bilder sind oft fast einfarbig: der
+ * {@link TransparencyKernel} macht helle Stellen durchsichtig, übrig bleiben
+ * dunkle Linien in ähnlicher Farbe. Solche Bilder lassen sich als ALPHA_8
+ * Maske mit einer Farbe speichern, mit einem statt vier Bytes pro Pixel.
+ * Gezeichnet wird die Maske mit der Farbe im Paint, erweitert wird sie also
+ * erst beim Zeichnen.
+ * 
+ * Ob sich das lohnt, entscheidet {@link #error(int[], int, int)}: die
+ * mittlere Abweichung der Farben, so wie sie auf dem Display erscheinen.
+ * 
+ * Alle Pixel liegen im nicht vormultiplizierten ARGB Format vor, wie es
+ * Bitmap.getPixels liefert.
+ */
+public final class LayerMask {
+
+	private LayerMask() {
+	}
+
+	/**
+	 * Die Farbe, die das Bild am besten wiedergibt: der Mittelwert aller
+	 * Farben, gewichtet mit ihrem Alpha Wert. Das Resultat ist deckend.
+	 */
+	public static int estimateTint(int[] argb, int count) {
+		long red = 0;
+		long green = 0;
+		long blue = 0;
+		long weight = 0;
+		for (int i = 0; i < count; i++) {
+			int pixel = argb[i];
+			int alpha = pixel >>> 24;
+			red += alpha * ((pixel >> 16) & 0xff);
+			green += alpha * ((pixel >> 8) & 0xff);
+			blue += alpha * (pixel & 0xff);
+			weight += alpha;
+		}
+		if (weight == 0) {
+			return 0xff000000;
+		}
+		return 0xff000000 | (int) ((red + weight / 2) / weight) << 16 | (int) ((green + weight / 2) / weight) << 8
+				| (int) ((blue + weight / 2) / weight);
+	}
+
+	/**
+	 * Die Wurzel der mittleren quadratischen Abweichung (0 - 255) zwischen dem
+	 * Bild und der Maske mit der Farbe tint. Verglichen werden die mit Alpha
+	 * multiplizierten Farben, also das, was über einem Hintergrund zu sehen
+	 * ist. Durchsichtige Pixel tragen deshalb keinen Fehler bei.
+	 */
+	public static double error(int[] argb, int count, int tint) {
+		int tintRed = (tint >> 16) & 0xff;
+		int tintGreen = (tint >> 8) & 0xff;
+		int tintBlue = tint & 0xff;
+		long sum = 0;
+		for (int i = 0; i < count; i++) {
+			int pixel = argb[i];
+			int alpha = pixel >>> 24;
+			int red = alpha * (((pixel >> 16) & 0xff) - tintRed);
+			int green = alpha * (((pixel >> 8) & 0xff) - tintGreen);
+			int blue = alpha * ((pixel & 0xff) - tintBlue);
+			sum += (long) red * red + (long) green * green + (long) blue * blue;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		return Math.sqrt(sum / (3.0 * count)) / 255;
+	}
+
+	/**
+	 * Übernimmt nur den Alpha Kanal.
+	 */
+	public static void extract(int[] argb, byte[] mask, int count) {
+		for (int i = 0; i < count; i++) {
+			mask[i] = (byte) (argb[i] >>> 24);
+		}
+	}
+
+	/**
+	 * Erweitert die Maske wieder zu ARGB Pixeln in der Farbe tint. Auf dem
+	 * Gerät erledigt das Canvas beim Zeichnen.
+	 */
+	public static void expand(byte[] mask, int tint, int[] argb, int count) {
+		int color = tint & 0xffffff;
+		for (int i = 0; i < count; i++) {
+			argb[i] = (mask[i] & 0xff) << 24 | color;
+		}
+	}
+}
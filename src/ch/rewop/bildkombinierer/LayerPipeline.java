@@ -0,0 +1,257 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Bereitet neue Bilder im Hintergrund auf, damit der UI Thread während dem
+ * Dekodieren und Filtern nicht blockiert wird.
+ * 
+ * Jeder Auftrag durchläuft die Stufen Dekodieren, Skalieren und Filtern und
+ * wird danach auf dem UI Thread an den {@link Callback} ausgeliefert. Die
+ * Aufträge werden der Reihe nach von einem einzigen Thread abgearbeitet (die
+ * Filter selbst laufen über den {@link KernelExecutor} auf allen Kernen).
+ * Die Warteschlange ist begrenzt, damit bei vielen Aufträgen nicht beliebig
+ * viel Speicher belegt wird.
+ * 
+ * Mit einem {@link LayerCache} werden Bilder, die bereits einmal mit
+ * denselben Parametern aufbereitet wurden, direkt aus dem Cache geliefert.
+ */
+public class LayerPipeline {
+
+	/**
+	 * Wird auf dem UI Thread aufgerufen, sobald ein Auftrag fertig ist. Für
+	 * abgebrochene Aufträge wird keine der Methoden aufgerufen.
+	 */
+	public interface Callback {
+
+		void onLayerReady(Bitmap bitmap);
+
+		void onLayerFailed(String path);
+	}
+
+	/**
+	 * Wie viele Aufträge höchstens auf ihre Bearbeitung warten dürfen.
+	 */
+	private static final int QUEUE_CAPACITY = 4;
+
+	private final LayerCache cache;
+	private final ThreadPoolExecutor executor;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final Set<Job> jobs = new HashSet<Job>();
+
+	public LayerPipeline() {
+		this(null);
+	}
+
+	/**
+	 * @param cache
+	 *            der Cache für aufbereitete Bilder oder null
+	 */
+	public LayerPipeline(LayerCache cache) {
+		this.cache = cache;
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								runnable.run();
+							}
+						}, "LayerPipeline");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Gibt ein Bild zur Aufbereitung in Auftrag. Es wird so dekodiert und
+	 * skaliert, dass es genau width x height gross ist, und danach mit dem
+	 * Filter gefiltert.
+	 * 
+	 * Aufträge mit demselben Bild, derselben Beschreibung des Filters
+	 * ({@link CompiledFilter#getDescription()}) und derselben Grösse liefern
+	 * dasselbe Resultat, es wird deshalb im Cache gesucht. Filter ohne
+	 * Beschreibung verwenden den Cache nicht.
+	 * 
+	 * @return false, wenn die Warteschlange voll ist oder die Pipeline bereits
+	 *         abgebrochen wurde.
+	 */
+	public boolean submit(String path, int width, int height, CompiledFilter filter, Callback callback) {
+		Job job = new Job(path, width, height, filter, callback);
+		synchronized (jobs) {
+			jobs.add(job);
+		}
+		try {
+			executor.execute(job);
+			return true;
+		} catch (RejectedExecutionException e) {
+			finish(job);
+			return false;
+		}
+	}
+
+	/**
+	 * Bricht alle laufenden und wartenden Aufträge ab und beendet den Thread.
+	 * Muss aufgerufen werden, wenn die Activity zerstört wird.
+	 */
+	public void cancelAll() {
+		synchronized (jobs) {
+			for (Job job : jobs) {
+				job.cancelled = true;
+			}
+			jobs.clear();
+		}
+		executor.shutdownNow();
+		mainHandler.removeCallbacksAndMessages(null);
+	}
+
+	private void finish(Job job) {
+		synchronized (jobs) {
+			jobs.remove(job);
+		}
+	}
+
+	private class Job implements Runnable {
+
+		private final String path;
+		private final int width;
+		private final int height;
+		private final CompiledFilter filter;
+		private final String params;
+		private final Callback callback;
+
+		private volatile boolean cancelled;
+
+		/**
+		 * Das Resultat liegt auch im Cache und darf deshalb nicht in den
+		 * {@link BitmapPool} zurück.
+		 */
+		private boolean cached;
+
+		Job(String path, int width, int height, CompiledFilter filter, Callback callback) {
+			this.path = path;
+			this.width = width;
+			this.height = height;
+			this.filter = filter;
+			this.params = filter.getDescription();
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			Bitmap result = null;
+			try {
+				if (!cancelled) {
+					result = process();
+				}
+			} catch (RuntimeException e) {
+				Log.e("LayerPipeline", "processing failed for " + path, e);
+				result = null;
+			} catch (OutOfMemoryError e) {
+				Log.e("LayerPipeline", "out of memory for " + path, e);
+				result = null;
+			}
+			deliver(result);
+		}
+
+		/**
+		 * Dekodieren, Skalieren und Filtern, ausser das Resultat liegt bereits
+		 * im Cache. Zwischen den Stufen prüfen wir, ob der Auftrag inzwischen
+		 * abgebrochen wurde.
+		 */
+		private Bitmap process() {
+			String key = null;
+			if (cache != null && params != null) {
+				Metrics.Span span = Metrics.begin("hash");
+				try {
+					key = LayerCache.key(path, params, width, height);
+				} catch (IOException e) {
+					Log.e("LayerPipeline", "could not read " + path, e);
+					return null;
+				} finally {
+					span.end();
+				}
+				span = Metrics.begin("cache_get");
+				Bitmap hit = cache.get(key, width, height);
+				span.end(width, height);
+				if (hit != null) {
+					cached = true;
+					return hit;
+				}
+			}
+
+			BitmapPool pool = BitmapPool.getDefault();
+			Metrics.Span span = Metrics.begin("decode");
+			Bitmap decoded = BitmapDecoder.decodeSampled(path, width, height);
+			if (decoded == null) {
+				span.end();
+				return null;
+			}
+			span.end(decoded.getWidth(), decoded.getHeight());
+			if (cancelled) {
+				pool.release(decoded);
+				return null;
+			}
+
+			span = Metrics.begin("scale");
+			Bitmap scaled = BitmapKernels.scale(decoded, width, height);
+			if (scaled != decoded) {
+				pool.release(decoded);
+			}
+			span.end(width, height);
+			if (cancelled) {
+				pool.release(scaled);
+				return null;
+			}
+
+			span = Metrics.begin("filter");
+			Bitmap filtered = BitmapKernels.apply(scaled, filter);
+			pool.release(scaled);
+			span.end(width, height);
+			if (key != null && !cancelled) {
+				span = Metrics.begin("cache_put");
+				cache.put(key, filtered);
+				cached = true;
+				span.end(width, height);
+			}
+			return filtered;
+		}
+
+		/**
+		 * Liefert das Resultat auf dem UI Thread aus.
+		 */
+		private void deliver(final Bitmap result) {
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					finish(Job.this);
+					if (cancelled) {
+						if (result != null && !cached) {
+							BitmapPool.getDefault().release(result);
+						}
+					} else if (result != null) {
+						callback.onLayerReady(result);
+					} else {
+						callback.onLayerFailed(path);
+					}
+				}
+			});
+		}
+	}
+}
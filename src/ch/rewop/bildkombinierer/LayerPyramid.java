@@ -0,0 +1,554 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+/**
+ * Hält ein Bild in mehreren Auflösungen, damit beim Zeichnen immer eine
+ * passende Auflösung verwendet werden kann.
+ * 
+ * Die Basisstufe ist das aufbereitete Bild in der Grösse, in der es beim
+ * Skalierungsfaktor 1 gezeichnet wird. Wird das Bild verkleinert, verwenden
+ * wir um Zweierpotenzen verkleinerte Kopien der Basisstufe. Wird es
+ * vergrössert, laden wir aus der Originaldatei nur die sichtbaren Kacheln in
+ * der doppelten oder vierfachen Auflösung nach.
+ * 
+ * Wird der Speicher knapp, kann die Basisstufe mit {@link #downgrade(int)}
+ * durch eine verkleinerte Kopie ersetzt werden. Sobald das Bild wieder gross
+ * genug gezeichnet wird, laden wir sie aus der Originaldatei neu.
+ * 
+ * Ist das Bild fast einfarbig, kann die Basisstufe mit {@link #compact(double)}
+ * als ALPHA_8 Maske mit einer Farbe gespeichert werden, siehe
+ * {@link LayerMask}.
+ * 
+ * Alle Stufen ausser der Basisstufe werden im Hintergrund erstellt und in
+ * einem gemeinsamen Cache mit begrenzter Grösse gehalten. Stufen, die lange
+ * nicht mehr gezeichnet wurden, fallen aus dem Cache und werden bei Bedarf
+ * neu erstellt. Bis eine Stufe bereit ist, wird die Basisstufe gezeichnet.
+ */
+public class LayerPyramid {
+
+	/**
+	 * Die Kantenlänge der nachgeladenen Kacheln in Pixeln der jeweiligen
+	 * Stufe.
+	 */
+	private static final int TILE_SIZE = 512;
+
+	/**
+	 * Mehr als die vierfache Auflösung der Basisstufe laden wir nicht nach.
+	 * Die Basisstufe nimmt bereits 80% des Displays ein.
+	 */
+	private static final int MAX_DETAIL = 4;
+
+	/**
+	 * Der Cache für alle Stufen aller Ebenen, gross höchstens ein Achtel des
+	 * Heaps. Die Grösse wird in KB gerechnet. Die Schlüssel enthalten die Id
+	 * der Pyramide in den oberen 32 Bit, siehe {@link #keyFor(int)}.
+	 */
+	private static final LruCache<Long, Bitmap> levels = new LruCache<Long, Bitmap>(
+			(int) (Runtime.getRuntime().maxMemory() / 1024 / 8)) {
+		@Override
+		protected int sizeOf(Long key, Bitmap value) {
+			return value.getRowBytes() * value.getHeight() / 1024;
+		}
+
+		/**
+		 * Die Stufen und Kacheln gehören nur dem Cache. Was verdrängt, ersetzt
+		 * oder entfernt wird, geht deshalb zurück in den {@link BitmapPool}.
+		 * Das geschieht wie jeder Zugriff auf den Cache im UI Thread, also nie
+		 * während eine Stufe gezeichnet wird.
+		 */
+		@Override
+		protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+			if (oldValue != newValue) {
+				BitmapPool.getDefault().release(oldValue);
+			}
+		}
+	};
+
+	private static final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "LayerPyramid");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static int nextId;
+
+	private final int id;
+
+	/**
+	 * Die Art des Eintrags in den obersten Bits der Schlüssel innerhalb einer
+	 * Pyramide. Kacheln enthalten zusätzlich Detailstufe, Spalte und Zeile
+	 * (je 12 Bit, bei {@link #TILE_SIZE} reicht das für über 2 Millionen Pixel
+	 * Breite).
+	 */
+	private static final int KEY_REDUCED = 1 << 28;
+	private static final int KEY_TILE = 2 << 28;
+	private static final int KEY_MASK = 3 << 28;
+	private static final int KEY_BASE = 4 << 28;
+
+	/**
+	 * Die Schlüssel für {@link #levels} und {@link #pending}, einmal pro
+	 * Stufe oder Kachel angelegt, damit beim Zeichnen keine neuen Objekte
+	 * entstehen. Nur im UI Thread verwendet.
+	 */
+	private final SparseArray<Long> keys = new SparseArray<Long>();
+
+	/**
+	 * Die Grösse der Basisstufe in voller Auflösung. Die Basisstufe selbst
+	 * ist um baseReduction kleiner, solange sie herabgestuft ist.
+	 */
+	private final int width;
+	private final int height;
+	private Bitmap base;
+	private int baseReduction = 1;
+	private final Runnable onLevelReady;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final Set<Long> pending = new HashSet<Long>();
+
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	/**
+	 * Zeichnet ALPHA_8 Masken in der Farbe der Ebene.
+	 */
+	private final Paint tintPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private volatile boolean masked;
+	private final Matrix matrix = new Matrix();
+	private final Matrix inverse = new Matrix();
+	private final RectF visible = new RectF();
+	private final Rect clip = new Rect();
+
+	private String sourcePath;
+	private CompiledFilter filter;
+	private BitmapRegionDecoder decoder;
+	private volatile boolean sourceFailed;
+	private volatile boolean released;
+
+	/**
+	 * @param onLevelReady
+	 *            wird auf dem UI Thread aufgerufen, sobald eine neue Stufe
+	 *            oder Kachel bereit ist und das Bild neu gezeichnet werden
+	 *            sollte.
+	 */
+	public LayerPyramid(Bitmap base, Runnable onLevelReady) {
+		this.id = nextId++;
+		this.base = base;
+		this.width = base.getWidth();
+		this.height = base.getHeight();
+		this.onLevelReady = onLevelReady;
+	}
+
+	/**
+	 * Legt fest, aus welcher Datei und mit welchem Filter höher aufgelöste
+	 * Kacheln nachgeladen werden. Ohne Quelle wird beim Vergrössern die
+	 * Basisstufe hochskaliert.
+	 */
+	public void setSource(String path, CompiledFilter filter) {
+		this.sourcePath = path;
+		this.filter = filter;
+	}
+
+	public Bitmap getBase() {
+		return base;
+	}
+
+	/**
+	 * Um diesen Faktor ist die Basisstufe im Moment verkleinert.
+	 */
+	public int getBaseReduction() {
+		return baseReduction;
+	}
+
+	/**
+	 * Prüft im Hintergrund, ob sich das Bild als Maske mit einer Farbe
+	 * speichern lässt, und ersetzt die Basisstufe, wenn die Abweichung
+	 * höchstens maxError (0 - 255) beträgt. Die Kacheln werden danach
+	 * ebenfalls als Maske geladen.
+	 */
+	public void compact(final double maxError) {
+		final Long key = keyFor(KEY_MASK);
+		if (masked || !pending.add(key)) {
+			return;
+		}
+		final Bitmap source = base;
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap mask = null;
+				int tint = 0;
+				if (!released) {
+					int count = source.getWidth() * source.getHeight();
+					int[] pixels = PixelArrayPool.getDefault().obtain(count);
+					source.getPixels(pixels, 0, source.getWidth(), 0, 0, source.getWidth(), source.getHeight());
+					tint = LayerMask.estimateTint(pixels, count);
+					double error = LayerMask.error(pixels, count, tint);
+					PixelArrayPool.getDefault().release(pixels);
+					if (error <= maxError) {
+						mask = source.extractAlpha();
+					}
+				}
+				final Bitmap compacted = mask;
+				final int color = tint;
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						pending.remove(key);
+						if (compacted != null && !released && base == source) {
+							tintPaint.setColor(color);
+							masked = true;
+							base = compacted;
+							onLevelReady.run();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Ersetzt die Basisstufe durch eine um reduction verkleinerte Kopie, um
+	 * Speicher freizugeben. Die bisherige Basisstufe wird nicht freigegeben,
+	 * da sie noch anderswo, z.B. im {@link LayerCache}, verwendet werden kann.
+	 */
+	public void downgrade(int reduction) {
+		if (reduction <= baseReduction) {
+			return;
+		}
+		Bitmap reduced = BitmapKernels.scale(base, Math.max(1, width / reduction), Math.max(1, height / reduction));
+		base = masked ? toMask(reduced) : reduced;
+		baseReduction = reduction;
+	}
+
+	/**
+	 * Zeichnet das Bild. Die Transformation bildet Koordinaten der
+	 * Basisstufe auf die Leinwand ab, der Skalierungsfaktor bestimmt, welche
+	 * Stufe gezeichnet wird.
+	 */
+	public void draw(Canvas canvas, Matrix transform, float scaleFactor) {
+		if (baseReduction > 1 && scaleFactor * baseReduction > 1.25f && sourcePath != null && !sourceFailed) {
+			requestUpgrade();
+		}
+		if (scaleFactor < 0.75f) {
+			drawReduced(canvas, transform, scaleFactor);
+			return;
+		}
+		drawBase(canvas, transform);
+		if (scaleFactor > 1.25f && sourcePath != null && !sourceFailed) {
+			drawTiles(canvas, transform, scaleFactor);
+		}
+	}
+
+	/**
+	 * Gibt die Stufen dieser Ebene frei. Danach darf die Pyramide nicht mehr
+	 * verwendet werden.
+	 */
+	public void release() {
+		released = true;
+		synchronized (this) {
+			if (decoder != null) {
+				decoder.recycle();
+				decoder = null;
+			}
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			levels.remove(keys.valueAt(i));
+		}
+	}
+
+	private void drawBase(Canvas canvas, Matrix transform) {
+		if (baseReduction == 1) {
+			canvas.drawBitmap(base, transform, paintFor(base));
+			return;
+		}
+		matrix.set(transform);
+		matrix.preScale((float) width / base.getWidth(), (float) height / base.getHeight());
+		canvas.drawBitmap(base, matrix, paintFor(base));
+	}
+
+	private Paint paintFor(Bitmap bitmap) {
+		return bitmap.getConfig() == Bitmap.Config.ALPHA_8 ? tintPaint : paint;
+	}
+
+	/**
+	 * Übernimmt den Alpha Kanal eines gepoolten Bitmaps als Maske und gibt
+	 * das Bitmap zurück in den Pool.
+	 */
+	private static Bitmap toMask(Bitmap bitmap) {
+		Bitmap mask = bitmap.extractAlpha();
+		BitmapPool.getDefault().release(bitmap);
+		return mask;
+	}
+
+	/**
+	 * Verwendet die Stufe 1/2, 1/4, ... die am nächsten über dem
+	 * Skalierungsfaktor liegt.
+	 */
+	private void drawReduced(Canvas canvas, Matrix transform, float scaleFactor) {
+		int reduction = 1;
+		while (reduction * 2 * scaleFactor <= 1f && width / (reduction * 2) > 0 && height / (reduction * 2) > 0) {
+			reduction *= 2;
+		}
+		/*
+		 * Eine Maske braucht nur ein Byte pro Pixel, dafür legen wir keine
+		 * zusätzlichen Stufen an.
+		 */
+		if (reduction <= baseReduction || masked) {
+			drawBase(canvas, transform);
+			return;
+		}
+		Long key = keyFor(KEY_REDUCED | reduction);
+		Bitmap level = levels.get(key);
+		if (level == null) {
+			requestReduced(key, reduction);
+			drawBase(canvas, transform);
+			return;
+		}
+		matrix.set(transform);
+		matrix.preScale((float) width / level.getWidth(), (float) height / level.getHeight());
+		canvas.drawBitmap(level, matrix, paint);
+	}
+
+	/**
+	 * Zeichnet über die Basisstufe die sichtbaren Kacheln der Stufe 2x oder
+	 * 4x, soweit sie schon geladen sind.
+	 */
+	private void drawTiles(Canvas canvas, Matrix transform, float scaleFactor) {
+		int detail = scaleFactor > 2.5f ? MAX_DETAIL : 2;
+		int levelWidth = width * detail;
+		int levelHeight = height * detail;
+
+		/* Welcher Teil der Basisstufe ist auf der Leinwand sichtbar? */
+		canvas.getClipBounds(clip);
+		if (!transform.invert(inverse)) {
+			return;
+		}
+		visible.set(clip.left, clip.top, clip.right, clip.bottom);
+		inverse.mapRect(visible);
+
+		int firstColumn = Math.max(0, (int) (visible.left * detail) / TILE_SIZE);
+		int lastColumn = Math.min((levelWidth - 1) / TILE_SIZE, (int) (visible.right * detail) / TILE_SIZE);
+		int firstRow = Math.max(0, (int) (visible.top * detail) / TILE_SIZE);
+		int lastRow = Math.min((levelHeight - 1) / TILE_SIZE, (int) (visible.bottom * detail) / TILE_SIZE);
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				Long key = keyFor(KEY_TILE | (detail << 24) | (column << 12) | row);
+				Bitmap tile = levels.get(key);
+				if (tile == null) {
+					requestTile(key, detail, column, row);
+					continue;
+				}
+				matrix.set(transform);
+				matrix.preScale(1f / detail, 1f / detail);
+				matrix.preTranslate(column * TILE_SIZE, row * TILE_SIZE);
+				canvas.drawBitmap(tile, matrix, paintFor(tile));
+			}
+		}
+	}
+
+	private void requestReduced(final Long key, final int reduction) {
+		if (!pending.add(key)) {
+			return;
+		}
+		final Bitmap source = base;
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap level = null;
+				if (!released) {
+					level = BitmapKernels.scale(source, width / reduction, height / reduction);
+				}
+				deliver(key, level);
+			}
+		});
+	}
+
+	private void requestTile(final Long key, final int detail, final int column, final int row) {
+		if (!pending.add(key)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap tile = null;
+				if (!released) {
+					try {
+						tile = loadTile(detail, column, row);
+					} catch (IOException e) {
+
+						/*
+						 * Die Datei ist nicht mehr lesbar, wir versuchen es
+						 * nicht bei jedem Zeichnen wieder.
+						 */
+						Log.e("LayerPyramid", "could not load tile from " + sourcePath, e);
+						sourceFailed = true;
+					}
+				}
+				deliver(key, tile);
+			}
+		});
+	}
+
+	/**
+	 * Dekodiert den Ausschnitt der Originaldatei, der zur Kachel gehört,
+	 * skaliert ihn auf die Grösse der Kachel und filtert ihn mit demselben
+	 * Filter wie die Basisstufe. Braucht der Filter Nachbarpixel, wird ein
+	 * entsprechender Rand mitgeladen und nach dem Filtern wieder
+	 * abgeschnitten.
+	 */
+	private Bitmap loadTile(int detail, int column, int row) throws IOException {
+		int levelWidth = width * detail;
+		int levelHeight = height * detail;
+		int left = column * TILE_SIZE;
+		int top = row * TILE_SIZE;
+		int width = Math.min(TILE_SIZE, levelWidth - left);
+		int height = Math.min(TILE_SIZE, levelHeight - top);
+		int margin = filter.getMargin();
+		int outerLeft = Math.max(0, left - margin);
+		int outerTop = Math.max(0, top - margin);
+		int outerWidth = Math.min(levelWidth, left + width + margin) - outerLeft;
+		int outerHeight = Math.min(levelHeight, top + height + margin) - outerTop;
+
+		Bitmap region;
+		synchronized (this) {
+			if (released) {
+				return null;
+			}
+			if (decoder == null) {
+				decoder = BitmapRegionDecoder.newInstance(sourcePath, false);
+			}
+			float toSource = (float) decoder.getWidth() / levelWidth;
+			Rect source = new Rect((int) (outerLeft * toSource), (int) (outerTop * toSource), Math.min(
+					decoder.getWidth(), (int) Math.ceil((outerLeft + outerWidth) * toSource)), Math.min(
+					decoder.getHeight(), (int) Math.ceil((outerTop + outerHeight) * toSource)));
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			options.inSampleSize = BitmapDecoder.calculateInSampleSize(source.width(), source.height(), outerWidth,
+					outerHeight);
+			region = decoder.decodeRegion(source, options);
+		}
+		if (region == null) {
+			return null;
+		}
+		Bitmap scaled = BitmapKernels.scale(region, outerWidth, outerHeight);
+		if (scaled != region) {
+			region.recycle();
+		}
+		Bitmap tile = BitmapKernels.apply(scaled, filter, left - outerLeft, top - outerTop, width, height);
+		BitmapPool.getDefault().release(scaled);
+		return masked ? toMask(tile) : tile;
+	}
+
+	/**
+	 * Lädt die Basisstufe in voller Auflösung neu, nachdem sie herabgestuft
+	 * wurde.
+	 */
+	private void requestUpgrade() {
+		final Long key = keyFor(KEY_BASE);
+		if (!pending.add(key)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap full = null;
+				if (!released) {
+					Bitmap decoded = BitmapDecoder.decodeSampled(sourcePath, width, height);
+					if (decoded != null) {
+						Bitmap scaled = BitmapKernels.scale(decoded, width, height);
+						if (scaled != decoded) {
+							BitmapPool.getDefault().release(decoded);
+						}
+						full = BitmapKernels.apply(scaled, filter);
+						BitmapPool.getDefault().release(scaled);
+						if (masked) {
+							full = toMask(full);
+						}
+					} else {
+						sourceFailed = true;
+					}
+				}
+				final Bitmap upgraded = full;
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						pending.remove(key);
+						if (upgraded != null && !released) {
+							base = upgraded;
+							baseReduction = 1;
+							onLevelReady.run();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Wie viele Bytes die Stufen und Kacheln aller Ebenen im Cache belegen.
+	 */
+	public static long getCacheBytes() {
+		return levels.size() * 1024L;
+	}
+
+	/**
+	 * Verkleinert den Cache aller Ebenen auf höchstens bytes.
+	 */
+	public static void trimCache(long bytes) {
+		levels.trimToSize((int) (bytes / 1024));
+	}
+
+	/**
+	 * Liefert den Schlüssel für einen Eintrag dieser Pyramide, siehe
+	 * {@link #keys}.
+	 */
+	private Long keyFor(int local) {
+		Long key = keys.get(local);
+		if (key == null) {
+			key = ((long) id << 32) | (local & 0xffffffffL);
+			keys.put(local, key);
+		}
+		return key;
+	}
+
+	private void deliver(final Long key, final Bitmap level) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				pending.remove(key);
+				if (level != null && !released) {
+					levels.put(key, level);
+					onLevelReady.run();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,55 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Übersetzt eine Kette von {@link PointOperation}s in eine Tabelle mit 256
+ * Einträgen. Pro Pixel sind danach nur noch drei Tabellenzugriffe nötig, egal
+ * wie viele oder wie teure Operationen (z.B. Math.pow) in der Kette sind.
+ * 
+ * Die Operationen werden auf Rot, Grün und Blau angewendet, der Alpha Wert
+ * bleibt unverändert. Nach jeder Operation wird auf 0 - 255 begrenzt, genau
+ * so wie wenn die Filter einzeln nacheinander angewendet würden.
+ */
+public class LookupTableKernel implements BulkPixelKernel {
+
+	private final int[] table;
+
+	public LookupTableKernel(PointOperation... operations) {
+		this.table = compile(operations);
+	}
+
+	/**
+	 * Berechnet für jeden möglichen Farbwert das Resultat der ganzen Kette.
+	 */
+	static int[] compile(PointOperation... operations) {
+		int[] table = new int[256];
+		for (int value = 0; value < 256; value++) {
+			int result = value;
+			for (PointOperation operation : operations) {
+				result = PixelEngine.clamp(operation.apply(result));
+			}
+			table[value] = result;
+		}
+		return table;
+	}
+
+	@Override
+	public int apply(int argb) {
+		int[] table = this.table;
+		return (argb & 0xff000000)
+				| (table[(argb >> 16) & 0xff] << 16)
+				| (table[(argb >> 8) & 0xff] << 8)
+				| table[argb & 0xff];
+	}
+
+	@Override
+	public void apply(int[] pixels, int from, int to) {
+		int[] table = this.table;
+		for (int i = from; i < to; i++) {
+			int argb = pixels[i];
+			pixels[i] = (argb & 0xff000000)
+					| (table[(argb >> 16) & 0xff] << 16)
+					| (table[(argb >> 8) & 0xff] << 8)
+					| table[argb & 0xff];
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Ein Pool für grosse, wiederverwendbare Objekte wie Pixel Arrays oder
+ * Bitmaps. Statt sie nach Gebrauch dem Garbage Collector zu überlassen, werden
+ * sie mit {@link #release(Object)} zurückgegeben und bei der nächsten
+ * Anfrage derselben Grösse mit {@link #acquire(Object)} wieder ausgegeben.
+ * 
+ * Der Pool belegt höchstens maxBytes. Wird die Grenze überschritten, werden
+ * die am längsten nicht mehr verwendeten Objekte verworfen.
+ */
+abstract class LruPool<K, V> {
+
+	/**
+	 * Die Objekte im Pool, das am längsten nicht verwendete zuvorderst. Es
+	 * sind typischerweise nur wenige, eine Liste genügt deshalb.
+	 */
+	private final LinkedList<V> entries = new LinkedList<V>();
+
+	private long maxBytes;
+	private long bytes;
+
+	protected LruPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Der Schlüssel, unter dem ein Objekt wiederverwendet werden kann.
+	 */
+	protected abstract K keyOf(V value);
+
+	/**
+	 * Die Anzahl Bytes, die ein Objekt belegt.
+	 */
+	protected abstract long sizeOf(V value);
+
+	/**
+	 * Wird aufgerufen, wenn ein Objekt aus dem Pool verworfen wird.
+	 */
+	protected void onEvicted(V value) {
+	}
+
+	/**
+	 * Entnimmt ein Objekt mit dem passenden Schlüssel aus dem Pool oder
+	 * liefert null, wenn keines vorhanden ist.
+	 */
+	public synchronized V acquire(K key) {
+		Iterator<V> iterator = entries.descendingIterator();
+		while (iterator.hasNext()) {
+			V value = iterator.next();
+			if (keyOf(value).equals(key)) {
+				iterator.remove();
+				bytes -= sizeOf(value);
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gibt ein Objekt an den Pool zurück. Es darf danach vom Aufrufer nicht
+	 * mehr verwendet werden.
+	 */
+	public synchronized void release(V value) {
+		long size = sizeOf(value);
+		if (size > maxBytes) {
+			onEvicted(value);
+			return;
+		}
+		entries.addLast(value);
+		bytes += size;
+		trimTo(maxBytes);
+	}
+
+	/**
+	 * Setzt die maximale Grösse neu und verwirft wenn nötig sofort Objekte.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trimTo(maxBytes);
+	}
+
+	/**
+	 * Verwirft so lange die ältesten Objekte, bis der Pool höchstens noch
+	 * size Bytes belegt.
+	 */
+	public synchronized void trimTo(long size) {
+		while (bytes > size && !entries.isEmpty()) {
+			V value = entries.removeFirst();
+			bytes -= sizeOf(value);
+			onEvicted(value);
+		}
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
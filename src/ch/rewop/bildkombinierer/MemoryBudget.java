@@ -0,0 +1,204 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.RectF;
+
+/**
+ * Hält den Speicher, den die Bilder der Ebenen und die Caches zusammen
+ * belegen, unter einem Budget.
+ * 
+ * Wird das Budget überschritten, werden zuerst die Caches verkleinert:
+ * {@link BitmapPool}, {@link PixelArrayPool}, die Stufen der
+ * {@link LayerPyramid} und der Speicher des {@link LayerCache}. Reicht das
+ * nicht, werden die Bilder von Ebenen herabgestuft, zuerst die ausserhalb
+ * des Displays, dann die, die nur klein gezeichnet werden. Herabgestufte
+ * Ebenen werden automatisch wieder in voller Auflösung geladen, sobald sie
+ * gross genug gezeichnet werden.
+ * 
+ * Gezählt und entschieden wird im {@link BudgetEnforcer}, hier werden nur die
+ * Ebenen und Caches für ihn aufbereitet.
+ */
+public class MemoryBudget {
+
+	private final LayerCache cache;
+	private final BudgetEnforcer enforcer;
+	private long budget;
+
+	/**
+	 * @param cache
+	 *            der Cache für aufbereitete Bilder oder null
+	 */
+	public MemoryBudget(long budget, final LayerCache cache) {
+		this.budget = budget;
+		this.cache = cache;
+
+		List<BudgetEnforcer.Cache> pools = Arrays.<BudgetEnforcer.Cache> asList(new BudgetEnforcer.Cache() {
+			@Override
+			public long getBytes(Set<Object> shared) {
+				return BitmapPool.getDefault().getBytes();
+			}
+
+			@Override
+			public void trimTo(long bytes, Set<Object> shared) {
+				BitmapPool.getDefault().trimTo(bytes);
+			}
+		}, new BudgetEnforcer.Cache() {
+			@Override
+			public long getBytes(Set<Object> shared) {
+				return PixelArrayPool.getDefault().getBytes();
+			}
+
+			@Override
+			public void trimTo(long bytes, Set<Object> shared) {
+				PixelArrayPool.getDefault().trimTo(bytes);
+			}
+		});
+
+		/* Die Stufen der Pyramiden gehören nie einer Ebene. */
+		List<BudgetEnforcer.Cache> caches = new ArrayList<BudgetEnforcer.Cache>();
+		caches.add(new BudgetEnforcer.Cache() {
+			@Override
+			public long getBytes(Set<Object> shared) {
+				return LayerPyramid.getCacheBytes();
+			}
+
+			@Override
+			public void trimTo(long bytes, Set<Object> shared) {
+				LayerPyramid.trimCache(bytes);
+			}
+		});
+		if (cache != null) {
+			caches.add(new BudgetEnforcer.Cache() {
+				@Override
+				public long getBytes(Set<Object> shared) {
+					return cache.getMemoryBytes(shared);
+				}
+
+				@Override
+				public void trimTo(long bytes, Set<Object> shared) {
+					cache.trimMemory(bytes, shared);
+				}
+			});
+		}
+		enforcer = new BudgetEnforcer(pools, caches);
+	}
+
+	/**
+	 * Die Hälfte des Heaps. Bis Android 7 liegen auch die Pixel der Bitmaps
+	 * im Heap, der Rest bleibt für Zwischenresultate beim Aufbereiten.
+	 */
+	public static long defaultBudget() {
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Wie viele Bytes die Caches belegen, ohne die Bilder, die auch Ebenen
+	 * gehören.
+	 */
+	public long getCacheBytes(List<Layer> layers) {
+		Set<Object> pixels = BudgetEnforcer.newIdentitySet();
+		BudgetEnforcer.getItemBytes(items(layers, new RectF()), pixels);
+		return enforcer.getCacheBytes(pixels);
+	}
+
+	/**
+	 * Wie viele Bytes die Bilder der Ebenen belegen. Ein Bild, das mehrere
+	 * Ebenen teilen, zählt nur einmal.
+	 */
+	public static long getLayerBytes(List<Layer> layers) {
+		return BudgetEnforcer.getItemBytes(items(layers, new RectF()), BudgetEnforcer.newIdentitySet());
+	}
+
+	public long getUsedBytes(List<Layer> layers) {
+		return enforcer.getUsedBytes(items(layers, new RectF()));
+	}
+
+	/**
+	 * Sorgt dafür, dass das Budget eingehalten wird.
+	 * 
+	 * @param viewport
+	 *            der sichtbare Bereich in View-Koordinaten
+	 * @return die Anzahl herabgestufter Ebenen
+	 */
+	public int enforce(List<Layer> layers, RectF viewport) {
+		return enforcer.enforce(items(layers, viewport), budget);
+	}
+
+	/**
+	 * Reagiert auf onTrimMemory. Solange die App sichtbar ist, wird das
+	 * Budget je nach Dringlichkeit vorübergehend verkleinert. Ist sie nicht
+	 * mehr sichtbar, werden die Caches geleert und alle Ebenen herabgestuft.
+	 * 
+	 * @return die Anzahl herabgestufter Ebenen
+	 */
+	public int onTrimMemory(int level, List<Layer> layers, RectF viewport) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			enforcer.trimCaches(0, Collections.<Object> emptySet());
+			return enforcer.enforce(items(layers, new RectF()), 0);
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			return enforcer.enforce(items(layers, viewport), budget / 2);
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return enforcer.enforce(items(layers, viewport), budget * 3 / 4);
+		}
+		return 0;
+	}
+
+	private static List<LayerItem> items(List<Layer> layers, RectF viewport) {
+		List<LayerItem> items = new ArrayList<LayerItem>(layers.size());
+		for (Layer layer : layers) {
+			items.add(new LayerItem(layer, viewport));
+		}
+		return items;
+	}
+
+	private static class LayerItem implements BudgetEnforcer.Item {
+		private final Layer layer;
+		private final RectF viewport;
+
+		LayerItem(Layer layer, RectF viewport) {
+			this.layer = layer;
+			this.viewport = viewport;
+		}
+
+		@Override
+		public Object getPixels() {
+			return layer.getBitmap();
+		}
+
+		@Override
+		public long getBytes() {
+			return layer.getBitmapBytes();
+		}
+
+		@Override
+		public boolean isVisible() {
+			return RectF.intersects(layer.getBoundingBox(), viewport);
+		}
+
+		@Override
+		public float getScale() {
+			return layer.scaleFactor;
+		}
+
+		@Override
+		public boolean downgrade(int reduction) {
+			return layer.downgrade(reduction);
+		}
+	}
+}
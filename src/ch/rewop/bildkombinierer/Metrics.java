@@ -0,0 +1,265 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+
+/**
+ * Misst, wie lange die einzelnen Stufen beim Hinzufügen und Verarbeiten eines
+ * Bildes dauern.
+ * 
+ * Eine Messung beginnt mit {@link #begin(String)} und endet mit
+ * {@link Span#end(int, int)} im selben Thread. Pro Stufe werden Wall Time,
+ * CPU Zeit des Threads, allozierte Bytes und die Anzahl Pixel in je einem
+ * {@link Histogram} gesammelt. Ab Android 4.3 erscheint jede Messung zudem
+ * als Abschnitt in systrace. Da wir gegen Android 4.1 kompilieren, wird
+ * android.os.Trace über Reflection aufgerufen. Stufen, die über mehrere
+ * Threads oder Activities laufen, wie die Kamera, werden mit
+ * {@link #record(String, long)} nur als Wall Time erfasst.
+ * 
+ * Mit {@link #dump(Context)} werden alle Werte als JSON und CSV gespeichert,
+ * um verschiedene Geräte und Versionen vergleichen zu können.
+ */
+public final class Metrics {
+
+	/**
+	 * Die gesammelten Werte einer Stufe. Zeiten in Mikrosekunden.
+	 */
+	private static class Stage {
+		final Histogram wall = new Histogram();
+		final Histogram cpu = new Histogram();
+		final Histogram allocated = new Histogram();
+		final Histogram pixels = new Histogram();
+	}
+
+	/**
+	 * Eine laufende Messung.
+	 */
+	public static final class Span {
+		private final String stage;
+		private final long startNanos;
+		private final long startCpuNanos;
+		private final long startAllocated;
+		private final boolean traced;
+
+		private Span(String stage) {
+			this.stage = stage;
+			this.traced = invoke(TRACE_BEGIN, stage);
+			this.startAllocated = countingAllocations ? Debug.getThreadAllocSize() : 0;
+			this.startCpuNanos = Debug.threadCpuTimeNanos();
+			this.startNanos = System.nanoTime();
+		}
+
+		public void end() {
+			end(0, 0);
+		}
+
+		/**
+		 * Beendet die Messung. width und height sind die Abmessungen des
+		 * verarbeiteten Bildes, oder 0.
+		 */
+		public void end(int width, int height) {
+			long wallNanos = System.nanoTime() - startNanos;
+			long cpuNanos = Debug.threadCpuTimeNanos() - startCpuNanos;
+			long allocated = countingAllocations ? Debug.getThreadAllocSize() - startAllocated : -1;
+			if (traced) {
+				invoke(TRACE_END);
+			}
+
+			Stage values = stage(stage);
+			values.wall.record(wallNanos / 1000);
+			if (cpuNanos >= 0) {
+				values.cpu.record(cpuNanos / 1000);
+			}
+			if (allocated >= 0) {
+				values.allocated.record(allocated);
+			}
+			if (width > 0 && height > 0) {
+				values.pixels.record((long) width * height);
+			}
+		}
+	}
+
+	/**
+	 * Trace.beginSection(String) und Trace.endSection(), erst ab Android 4.3
+	 * (API 18) vorhanden, sonst null.
+	 */
+	private static final Method TRACE_BEGIN = findTrace("beginSection", String.class);
+	private static final Method TRACE_END = findTrace("endSection");
+
+	private static final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+	private static volatile boolean countingAllocations;
+
+	private Metrics() {
+	}
+
+	public static Span begin(String stage) {
+		return new Span(stage);
+	}
+
+	private static Method findTrace(String name, Class<?>... parameterTypes) {
+		if (Build.VERSION.SDK_INT < 18) {
+			return null;
+		}
+		try {
+			return Class.forName("android.os.Trace").getMethod(name, parameterTypes);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ruft die statische Methode auf. Liefert false, wenn es sie nicht gibt
+	 * oder der Aufruf fehlschlägt, die Messung selbst soll daran nie
+	 * scheitern.
+	 */
+	private static boolean invoke(Method method, Object... args) {
+		if (method == null) {
+			return false;
+		}
+		try {
+			method.invoke(null, args);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Erfasst die Wall Time einer Stufe, die nicht in einem einzigen Thread
+	 * gemessen werden kann.
+	 */
+	public static void record(String stage, long wallNanos) {
+		stage(stage).wall.record(wallNanos / 1000);
+	}
+
+	/**
+	 * Die Wall Time der Stufe in Mikrosekunden, z.B. für eine Anzeige.
+	 */
+	public static Histogram getWallTime(String stage) {
+		return stage(stage).wall;
+	}
+
+	/**
+	 * Zählt ab jetzt die allozierten Bytes pro Thread. Das verlangsamt jede
+	 * Allokation und sollte deshalb nur in Debug Builds eingeschaltet werden.
+	 */
+	@SuppressWarnings("deprecation")
+	public static synchronized void startAllocationCounting() {
+		if (!countingAllocations) {
+			Debug.startAllocCounting();
+			countingAllocations = true;
+		}
+	}
+
+	public static void reset() {
+		synchronized (stages) {
+			stages.clear();
+		}
+	}
+
+	private static Stage stage(String name) {
+		synchronized (stages) {
+			Stage stage = stages.get(name);
+			if (stage == null) {
+				stage = new Stage();
+				stages.put(name, stage);
+			}
+			return stage;
+		}
+	}
+
+	/**
+	 * Speichert alle Werte als metrics_[Zeit].json und .csv im Verzeichnis
+	 * metrics der App und liefert die JSON Datei.
+	 */
+	public static File dump(Context context) throws IOException {
+		File directory = context.getExternalFilesDir("metrics");
+		if (directory == null) {
+			directory = new File(context.getFilesDir(), "metrics");
+		}
+		directory.mkdirs();
+		String name = "metrics_" + System.currentTimeMillis();
+
+		List<String> names;
+		List<Stage> values;
+		synchronized (stages) {
+			names = new ArrayList<String>(stages.keySet());
+			values = new ArrayList<Stage>(stages.values());
+		}
+
+		File json = new File(directory, name + ".json");
+		Writer out = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+		try {
+			out.write("{\n  \"device\": \"" + escape(Build.MANUFACTURER + " " + Build.MODEL) + "\",\n");
+			out.write("  \"sdk\": " + Build.VERSION.SDK_INT + ",\n");
+			out.write("  \"build\": \"" + escape(Build.FINGERPRINT) + "\",\n");
+			out.write("  \"debug\": " + BuildConfig.DEBUG + ",\n");
+			out.write("  \"stages\": {");
+			for (int i = 0; i < names.size(); i++) {
+				Stage stage = values.get(i);
+				out.write(i == 0 ? "\n" : ",\n");
+				out.write("    \"" + escape(names.get(i)) + "\": {\n");
+				out.write("      \"wall_us\": " + json(stage.wall) + ",\n");
+				out.write("      \"cpu_us\": " + json(stage.cpu) + ",\n");
+				out.write("      \"allocated_bytes\": " + json(stage.allocated) + ",\n");
+				out.write("      \"pixels\": " + json(stage.pixels) + "\n");
+				out.write("    }");
+			}
+			out.write("\n  }\n}\n");
+		} finally {
+			out.close();
+		}
+
+		Writer csv = new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".csv")), "UTF-8");
+		try {
+			csv.write("stage,metric,count,min,p50,p90,p99,max,mean\n");
+			for (int i = 0; i < names.size(); i++) {
+				Stage stage = values.get(i);
+				csv(csv, names.get(i), "wall_us", stage.wall);
+				csv(csv, names.get(i), "cpu_us", stage.cpu);
+				csv(csv, names.get(i), "allocated_bytes", stage.allocated);
+				csv(csv, names.get(i), "pixels", stage.pixels);
+			}
+		} finally {
+			csv.close();
+		}
+		return json;
+	}
+
+	private static String json(Histogram histogram) {
+		return String.format(Locale.US,
+				"{\"count\": %d, \"min\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d, \"mean\": %.1f}",
+				histogram.getCount(), histogram.getMin(), histogram.getValueAtPercentile(50),
+				histogram.getValueAtPercentile(90), histogram.getValueAtPercentile(99), histogram.getMax(),
+				histogram.getMean());
+	}
+
+	private static void csv(Writer out, String stage, String metric, Histogram histogram) throws IOException {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+		out.write(String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%d,%d,%.1f\n", stage, metric, histogram.getCount(),
+				histogram.getMin(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+				histogram.getValueAtPercentile(99), histogram.getMax(), histogram.getMean()));
+	}
+
+	private static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,24 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Eine Operation, deren Resultat nicht nur vom Pixel selbst, sondern auch von
+ * seinen Nachbarn abhängt, zum Beispiel ein Weichzeichner. Sie kann deshalb
+ * nicht wie ein {@link PixelKernel} im selben Array arbeiten, sondern liest
+ * aus einem Array und schreibt in ein anderes.
+ */
+public interface NeighbourhoodOperation {
+
+	/**
+	 * Wie viele Pixel die Operation höchstens in jede Richtung liest. Wer nur
+	 * einen Ausschnitt des Bildes filtert, muss mindestens so viel Rand
+	 * mitgeben, damit die Pixel an den Kanten stimmen.
+	 */
+	int getRadius();
+
+	/**
+	 * Berechnet die Zeilen fromRow (inklusive) bis toRow (exklusive) von dst
+	 * aus src. src darf dabei nicht verändert werden, die Zeilen können also
+	 * parallel berechnet werden.
+	 */
+	void apply(int[] src, int[] dst, int width, int height, int fromRow, int toRow);
+}
@@ -0,0 +1,311 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Schreibt ein PNG Bild wie der {@link PngEncoder}, komprimiert die Zeilen
+ * aber auf mehreren Threads gleichzeitig.
+ * 
+ * Jeder Block von Zeilen wird unabhängig zu einem eigenen Deflate Block
+ * komprimiert, der mit einem Sync Flush auf einer Byte Grenze endet. Die
+ * Blöcke können deshalb einfach hintereinander gehängt werden und ergeben
+ * zusammen einen gültigen Deflate Stream (wie bei pigz). Damit die
+ * Kompression an den Blockgrenzen nicht schlechter wird, erhält jeder Block
+ * die letzten 32 KB des vorherigen Blocks als Wörterbuch.
+ * 
+ * Die fertigen Blöcke werden in der richtigen Reihenfolge direkt in den
+ * Channel geschrieben. Im Speicher sind nur die Blöcke, die gerade
+ * komprimiert werden oder auf ihre Vorgänger warten.
+ * 
+ * Der Sync Flush ist erst ab Android 4.4 verfügbar, siehe
+ * {@link #isSupported()}. Da wir gegen Android 4.1 kompilieren, rufen wir ihn
+ * über Reflection auf.
+ */
+public class ParallelPngEncoder {
+
+	/**
+	 * So gross ist das Wörterbuch von Deflate.
+	 */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	/**
+	 * Mindestens so viele unkomprimierte Bytes kommen in einen Block. Kleinere
+	 * Blöcke lohnen das Verteilen nicht.
+	 */
+	private static final int MIN_BLOCK_SIZE = 128 * 1024;
+
+	/**
+	 * Der Wert von Deflater.SYNC_FLUSH, der erst mit API 19 dazukommt.
+	 */
+	private static final int SYNC_FLUSH = 2;
+
+	/**
+	 * Deflater.deflate(byte[], int, int, int), oder null, wenn es die Methode
+	 * nicht gibt.
+	 */
+	private static final Method DEFLATE_FLUSH = findDeflateFlush();
+
+	private final WritableByteChannel channel;
+	private final int width;
+	private final int height;
+	private final int parallelism;
+	private final ExecutorService executor;
+	private final int blockRows;
+
+	/**
+	 * Die Blöcke in der Reihenfolge, in der sie geschrieben werden müssen.
+	 */
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private final Adler32 adler = new Adler32();
+
+	private byte[] block;
+	private int blockLength;
+	private byte[] dictionary;
+	private int rowsWritten;
+
+	/**
+	 * Schreibt den Kopf des Bildes. Danach müssen mit
+	 * {@link #writeRows(int[], int, int, int)} genau height Zeilen folgen.
+	 * 
+	 * @param parallelism
+	 *            wie viele Blöcke höchstens gleichzeitig komprimiert werden
+	 */
+	public ParallelPngEncoder(WritableByteChannel channel, int width, int height, int parallelism)
+			throws IOException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		this.parallelism = parallelism;
+		this.blockRows = Math.max(1, MIN_BLOCK_SIZE / PngEncoder.rowBytes(width));
+		this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ParallelPngEncoder-" + ++count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		head.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+		PngEncoder.writeChunk(head, "IHDR", PngEncoder.header(width, height));
+
+		/* Der zlib Kopf: Deflate mit 32 KB Fenster, Standardkompression. */
+		PngEncoder.writeChunk(head, "IDAT", new byte[] { 0x78, (byte) 0x9c });
+		write(head.toByteArray());
+	}
+
+	/**
+	 * Prüft, ob Deflater einen Sync Flush unterstützt. Auf älteren Geräten
+	 * muss der {@link PngEncoder} verwendet werden.
+	 */
+	public static boolean isSupported() {
+		return DEFLATE_FLUSH != null;
+	}
+
+	private static Method findDeflateFlush() {
+		try {
+			return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static int deflateSyncFlush(Deflater deflater, byte[] buffer) {
+		try {
+			return (Integer) DEFLATE_FLUSH.invoke(deflater, buffer, 0, buffer.length, SYNC_FLUSH);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Filtert rows Zeilen im nicht vormultiplizierten ARGB Format und gibt
+	 * volle Blöcke zur Kompression weiter. Das Array kann danach sofort
+	 * wiederverwendet werden.
+	 */
+	public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+		int rowBytes = PngEncoder.rowBytes(width);
+		byte[] row = new byte[rowBytes];
+		for (int y = 0; y < rows; y++) {
+			if (block == null) {
+				block = new byte[blockRows * rowBytes];
+				blockLength = 0;
+			}
+			PngEncoder.filterRow(argb, offset + y * stride, width, row);
+			System.arraycopy(row, 0, block, blockLength, rowBytes);
+			blockLength += rowBytes;
+			if (blockLength == block.length) {
+				submitBlock(false);
+			}
+		}
+		rowsWritten += rows;
+	}
+
+	/**
+	 * Schreibt die restlichen Blöcke und schliesst das Bild ab. Der Channel
+	 * selbst wird nicht geschlossen.
+	 */
+	public void finish() throws IOException {
+		if (rowsWritten != height) {
+			throw new IllegalStateException("expected " + height + " rows, got " + rowsWritten);
+		}
+		try {
+			if (block == null) {
+				block = new byte[0];
+				blockLength = 0;
+			}
+			submitBlock(true);
+			while (!pending.isEmpty()) {
+				writeOldest();
+			}
+
+			/* Die Adler-32 Prüfsumme beendet den zlib Stream. */
+			ByteArrayOutputStream tail = new ByteArrayOutputStream();
+			ByteArrayOutputStream checksum = new ByteArrayOutputStream(4);
+			PngEncoder.writeInt(checksum, (int) adler.getValue());
+			PngEncoder.writeChunk(tail, "IDAT", checksum.toByteArray());
+			PngEncoder.writeChunk(tail, "IEND", new byte[0]);
+			write(tail.toByteArray());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Bricht das Kodieren ab, ohne das Bild abzuschliessen.
+	 */
+	public void abort() {
+		executor.shutdownNow();
+		pending.clear();
+	}
+
+	private void submitBlock(final boolean last) throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		final byte[] preset = dictionary;
+		adler.update(data, 0, length);
+
+		/* Die letzten 32 KB werden das Wörterbuch des nächsten Blocks. */
+		if (length > 0) {
+			int dictionaryLength = Math.min(DICTIONARY_SIZE, length);
+			dictionary = new byte[dictionaryLength];
+			System.arraycopy(data, length - dictionaryLength, dictionary, 0, dictionaryLength);
+		}
+		block = null;
+
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(data, length, preset, last);
+			}
+		}));
+
+		/* Nicht beliebig viele Blöcke auf Vorrat halten. */
+		while (pending.size() > parallelism * 2) {
+			writeOldest();
+		}
+	}
+
+	/**
+	 * Komprimiert einen Block zu rohen Deflate Daten. Alle Blöcke ausser dem
+	 * letzten enden mit einem Sync Flush.
+	 */
+	static byte[] compress(byte[] data, int length, byte[] dictionary, boolean last) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(data, 0, length);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} else {
+				int count;
+				do {
+					count = deflateSyncFlush(deflater, buffer);
+					out.write(buffer, 0, count);
+				} while (count == buffer.length || !deflater.needsInput());
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeOldest() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("encoding interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("compression failed", e.getCause());
+		}
+		if (compressed.length > 0) {
+			writeIdat(compressed);
+		}
+	}
+
+	/**
+	 * Schreibt die Daten als IDAT Chunk, ohne sie nochmals zu kopieren.
+	 */
+	private void writeIdat(byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] type = { 'I', 'D', 'A', 'T' };
+		crc.update(type);
+		crc.update(data);
+
+		ByteBuffer head = ByteBuffer.allocate(8);
+		head.putInt(data.length).put(type).flip();
+		ByteBuffer tail = ByteBuffer.allocate(4);
+		tail.putInt((int) crc.getValue()).flip();
+		write(head);
+		write(ByteBuffer.wrap(data));
+		write(tail);
+	}
+
+	private void write(byte[] data) throws IOException {
+		write(ByteBuffer.wrap(data));
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
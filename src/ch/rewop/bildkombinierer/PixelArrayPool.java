@@ -0,0 +1,52 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Ein Pool für int[] Pixel Arrays. Die Grösse der Arrays wird auf ein
+ * Vielfaches von {@link #BUCKET} aufgerundet, damit Bilder mit ähnlicher
+ * Grösse dieselben Arrays verwenden können. Ein Array aus dem Pool kann also
+ * etwas länger sein als verlangt.
+ */
+public class PixelArrayPool extends LruPool<Integer, int[]> {
+
+	private static final int BUCKET = 4096;
+
+	private static PixelArrayPool defaultPool;
+
+	public PixelArrayPool(long maxBytes) {
+		super(maxBytes);
+	}
+
+	/**
+	 * Der gemeinsam verwendete Pool, er belegt höchstens 1/16 des Heaps.
+	 */
+	public static synchronized PixelArrayPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new PixelArrayPool(Runtime.getRuntime().maxMemory() / 16);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Liefert ein Array mit mindestens length Elementen, wenn möglich aus dem
+	 * Pool. Der Inhalt ist nicht definiert.
+	 */
+	public int[] obtain(int length) {
+		int size = bucket(length);
+		int[] array = acquire(size);
+		return array != null ? array : new int[size];
+	}
+
+	@Override
+	protected Integer keyOf(int[] value) {
+		return value.length;
+	}
+
+	@Override
+	protected long sizeOf(int[] value) {
+		return value.length * 4L;
+	}
+
+	private static int bucket(int length) {
+		return (length + BUCKET - 1) / BUCKET * BUCKET;
+	}
+}
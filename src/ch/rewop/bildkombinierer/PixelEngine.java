@@ -0,0 +1,50 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Wendet einen {@link PixelKernel} auf ein Bild an, das zeilenweise (row-major)
+ * als int[] im ARGB Format vorliegt.
+ * 
+ * Im Gegensatz zu Bitmap.getPixel/setPixel, welche für jeden Pixel einen
+ * JNI-Aufruf machen, arbeiten wir hier direkt auf dem Array. Die Pixel werden
+ * nur am Anfang und am Ende mit getPixels/setPixels in einem Stück kopiert.
+ */
+public final class PixelEngine {
+
+	private PixelEngine() {
+	}
+
+	/**
+	 * Wendet den Kernel auf das ganze Bild an. Das Array wird dabei direkt
+	 * überschrieben.
+	 */
+	public static void run(PixelKernel kernel, int[] pixels, int width, int height) {
+		runRows(kernel, pixels, width, 0, height);
+	}
+
+	/**
+	 * Wendet den Kernel auf die Zeilen fromRow (inklusive) bis toRow
+	 * (exklusive) an.
+	 */
+	public static void runRows(PixelKernel kernel, int[] pixels, int width, int fromRow, int toRow) {
+		int end = toRow * width;
+		if (kernel instanceof BulkPixelKernel) {
+			((BulkPixelKernel) kernel).apply(pixels, fromRow * width, end);
+			return;
+		}
+		for (int index = fromRow * width; index < end; index++) {
+			pixels[index] = kernel.apply(pixels[index]);
+		}
+	}
+
+	/**
+	 * Begrenzt einen Farbwert auf den gültigen Bereich 0 - 255.
+	 */
+	static int clamp(int value) {
+		if (value < 0) {
+			return 0;
+		} else if (value > 255) {
+			return 255;
+		}
+		return value;
+	}
+}
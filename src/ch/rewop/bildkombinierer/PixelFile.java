@@ -0,0 +1,63 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.graphics.Bitmap;
+
+/**
+ * Speichert die Pixel eines ARGB_8888 Bitmaps roh, ohne Kompression, in einer
+ * Datei. Geschrieben und gelesen wird über eine gemappte Datei, die Pixel
+ * werden also direkt zwischen Bitmap und Datei kopiert. Die Grösse des
+ * Bildes steht nicht in der Datei, sie muss beim Lesen bekannt sein.
+ */
+public final class PixelFile {
+
+	private PixelFile() {
+	}
+
+	/**
+	 * Schreibt zuerst in eine temporäre Datei, damit nie eine halbe Datei
+	 * unter dem endgültigen Namen liegt.
+	 */
+	public static void write(Bitmap bitmap, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			long length = (long) bitmap.getRowBytes() * bitmap.getHeight();
+			out.setLength(length);
+			MappedByteBuffer mapped = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			bitmap.copyPixelsToBuffer(mapped);
+			mapped.force();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("could not rename " + temp);
+		}
+	}
+
+	/**
+	 * Liest die Pixel in ein Bitmap aus dem {@link BitmapPool}. Liefert null,
+	 * wenn die Datei fehlt oder nicht zur Grösse passt.
+	 */
+	public static Bitmap read(File file, int width, int height) throws IOException {
+		long length = (long) width * height * 4;
+		if (file.length() != length) {
+			return null;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			Bitmap bitmap = BitmapPool.getDefault().obtain(width, height);
+			bitmap.copyPixelsFromBuffer(mapped);
+			return bitmap;
+		} finally {
+			in.close();
+		}
+	}
+}
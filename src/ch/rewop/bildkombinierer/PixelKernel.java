@@ -0,0 +1,17 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Ein Kernel verarbeitet einen einzelnen Pixel im Bitmap.Config.ARGB_8888
+ * Format (0xAARRGGBB) und liefert den neuen Pixel zurück.
+ * 
+ * Die Kernels sind reines Java ohne Abhängigkeiten zu Android, damit sie
+ * auch auf einer normalen JVM mit synthetischen Bildern getestet und
+ * gemessen werden können.
+ */
+public interface PixelKernel {
+
+	/**
+	 * Berechnet aus dem übergebenen Pixel den neuen Pixel.
+	 */
+	int apply(int argb);
+}
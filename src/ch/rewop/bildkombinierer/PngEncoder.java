@@ -0,0 +1,152 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Schreibt ein PNG Bild (8 Bit RGBA) Zeile für Zeile in einen Stream, ohne
+ * das ganze Bild im Speicher zu halten. So können auch Bilder gespeichert
+ * werden, die viel grösser sind als ein Bitmap sein dürfte.
+ */
+public class PngEncoder {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	/**
+	 * So viele komprimierte Bytes sammeln wir, bevor wir einen IDAT Chunk
+	 * schreiben.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Der PNG Filter "Sub": jedes Byte wird als Differenz zum entsprechenden
+	 * Byte des Pixels links davon gespeichert.
+	 */
+	static final int FILTER_SUB = 1;
+
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final DeflaterOutputStream deflater;
+	private final byte[] row;
+	private int rowsWritten;
+
+	/**
+	 * Schreibt den Kopf des Bildes. Danach müssen mit
+	 * {@link #writeRows(int[], int, int, int)} genau height Zeilen folgen.
+	 */
+	public PngEncoder(OutputStream out, int width, int height) throws IOException {
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.row = new byte[rowBytes(width)];
+
+		out.write(SIGNATURE);
+		writeChunk(out, "IHDR", header(width, height));
+		deflater = new DeflaterOutputStream(new IdatStream(), new Deflater(Deflater.DEFAULT_COMPRESSION), CHUNK_SIZE);
+	}
+
+	/**
+	 * Schreibt rows Zeilen im nicht vormultiplizierten ARGB Format.
+	 */
+	public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+		for (int y = 0; y < rows; y++) {
+			filterRow(argb, offset + y * stride, width, row);
+			deflater.write(row);
+		}
+		rowsWritten += rows;
+	}
+
+	/**
+	 * Schliesst das Bild ab. Der Stream selbst wird nicht geschlossen.
+	 */
+	public void finish() throws IOException {
+		if (rowsWritten != height) {
+			throw new IllegalStateException("expected " + height + " rows, got " + rowsWritten);
+		}
+		deflater.finish();
+		deflater.flush();
+		writeChunk(out, "IEND", new byte[0]);
+		out.flush();
+	}
+
+	/**
+	 * Die Anzahl Bytes einer gefilterten Zeile, inklusive Filter Byte.
+	 */
+	static int rowBytes(int width) {
+		return 1 + width * 4;
+	}
+
+	/**
+	 * Wandelt eine Zeile ARGB Pixel in eine mit "Sub" gefilterte RGBA Zeile.
+	 */
+	static void filterRow(int[] argb, int offset, int width, byte[] row) {
+		row[0] = FILTER_SUB;
+		int previous = 0;
+		for (int x = 0, i = 1; x < width; x++, i += 4) {
+			int pixel = argb[offset + x];
+			row[i] = (byte) ((pixel >> 16) - (previous >> 16));
+			row[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+			row[i + 2] = (byte) (pixel - previous);
+			row[i + 3] = (byte) ((pixel >>> 24) - (previous >>> 24));
+			previous = pixel;
+		}
+	}
+
+	static byte[] header(int width, int height) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		writeInt(header, width);
+		writeInt(header, height);
+		header.write(8); // Bit pro Kanal
+		header.write(6); // RGBA
+		header.write(0); // Deflate
+		header.write(0); // Filter Methode
+		header.write(0); // kein Interlacing
+		return header.toByteArray();
+	}
+
+	static void writeChunk(OutputStream out, String type, byte[] data) throws IOException {
+		writeChunk(out, type, data, 0, data.length);
+	}
+
+	static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+
+		writeInt(out, length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		writeInt(out, (int) crc.getValue());
+	}
+
+	static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Verpackt die komprimierten Daten in IDAT Chunks.
+	 */
+	private class IdatStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			if (length > 0) {
+				writeChunk(out, "IDAT", data, offset, length);
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Eine Operation auf einem einzelnen Farbkanal. Das Resultat hängt nur vom
+ * 8-bit Eingabewert ab, deshalb kann eine Kette solcher Operationen mit
+ * {@link LookupTableKernel} vorab in eine Tabelle mit 256 Einträgen
+ * übersetzt werden.
+ */
+public interface PointOperation {
+
+	/**
+	 * Berechnet aus einem Farbwert (0 - 255) den neuen Farbwert. Das Resultat
+	 * darf ausserhalb von 0 - 255 liegen, es wird beim Kompilieren begrenzt.
+	 */
+	int apply(int value);
+}
@@ -0,0 +1,94 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Die verfügbaren Operationen auf einzelnen Farbkanälen.
+ */
+public final class PointOperations {
+
+	private PointOperations() {
+	}
+
+	/**
+	 * Erhöht (oder verringert bei negativem Wert) die Helligkeit um einen
+	 * festen Betrag.
+	 */
+	public static PointOperation brightness(int value) {
+		return new Brightness(value);
+	}
+
+	/**
+	 * Verstärkt den Kontrast, indem der Abstand zum mittleren Grau mit einem
+	 * Faktor ((100 + value) / 100)^2 multipliziert wird.
+	 */
+	public static PointOperation contrast(double value) {
+		return new Contrast(Math.pow((100 + value) / 100, 2));
+	}
+
+	/**
+	 * Helligkeit und Kontrast sind eigene Klassen, damit
+	 * {@link VectorKernels} ihre Parameter lesen und sie ohne Tabelle
+	 * berechnen kann.
+	 */
+	static final class Brightness implements PointOperation {
+		final int value;
+
+		Brightness(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public int apply(int channel) {
+			return channel + value;
+		}
+	}
+
+	static final class Contrast implements PointOperation {
+		final double factor;
+
+		Contrast(double factor) {
+			this.factor = factor;
+		}
+
+		@Override
+		public int apply(int channel) {
+			return (int) (((((channel / 255.0) - 0.5) * factor) + 0.5) * 255.0);
+		}
+	}
+
+	/**
+	 * Gamma Korrektur, Werte kleiner als 1 hellen das Bild auf, grössere
+	 * dunkeln es ab.
+	 */
+	public static PointOperation gamma(final double gamma) {
+		return new PointOperation() {
+			@Override
+			public int apply(int channel) {
+				return (int) Math.round(255.0 * Math.pow(channel / 255.0, gamma));
+			}
+		};
+	}
+
+	/**
+	 * Invertiert den Farbwert.
+	 */
+	public static PointOperation invert() {
+		return new PointOperation() {
+			@Override
+			public int apply(int channel) {
+				return 255 - channel;
+			}
+		};
+	}
+
+	/**
+	 * Setzt alle Werte unterhalb der Schwelle auf 0, alle anderen auf 255.
+	 */
+	public static PointOperation threshold(final int threshold) {
+		return new PointOperation() {
+			@Override
+			public int apply(int channel) {
+				return channel < threshold ? 0 : 255;
+			}
+		};
+	}
+}
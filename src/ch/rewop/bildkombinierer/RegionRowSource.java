@@ -0,0 +1,67 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * Liest die Zeilen einer Bilddatei mit einem {@link BitmapRegionDecoder},
+ * ohne das ganze Bild zu dekodieren. Nach Gebrauch muss {@link #close()}
+ * aufgerufen werden.
+ */
+public class RegionRowSource implements BandProcessor.RowSource, Closeable {
+
+	/**
+	 * So viele Zeilen dekodieren wir über und unter den verlangten Zeilen
+	 * zusätzlich und werfen sie wieder weg. Ein JPEG ist in Blöcken von
+	 * höchstens 16 Zeilen gespeichert, deren Farbanteile beim Dekodieren mit
+	 * den Nachbarzeilen interpoliert werden. Mit diesem Rand entsprechen auch
+	 * die Zeilen an den Grenzen genau dem vollständig dekodierten Bild.
+	 */
+	private static final int OVERLAP = 16;
+
+	private final String path;
+	private final BitmapRegionDecoder decoder;
+	private final BitmapFactory.Options options = new BitmapFactory.Options();
+	private final Rect region = new Rect();
+
+	public RegionRowSource(String path) throws IOException {
+		this.path = path;
+		this.decoder = BitmapRegionDecoder.newInstance(path, false);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+	}
+
+	@Override
+	public int getWidth() {
+		return decoder.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return decoder.getHeight();
+	}
+
+	@Override
+	public void readRows(int[] pixels, int fromRow, int rows) throws IOException {
+		int width = decoder.getWidth();
+		int top = Math.max(0, fromRow - OVERLAP);
+		int bottom = Math.min(decoder.getHeight(), fromRow + rows + OVERLAP);
+		region.set(0, top, width, bottom);
+
+		Bitmap decoded = decoder.decodeRegion(region, options);
+		if (decoded == null) {
+			throw new IOException("could not decode rows " + fromRow + " - " + (fromRow + rows) + " of " + path);
+		}
+		decoded.getPixels(pixels, 0, width, 0, fromRow - top, width, rows);
+		decoded.recycle();
+	}
+
+	@Override
+	public void close() {
+		decoder.recycle();
+	}
+}
@@ -0,0 +1,357 @@
+package ch.rewop.bildkombinierer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Speichert die Ebenen, damit sie nach dem Drehen des Geräts oder wenn das
+ * System den Prozess beendet hat, wieder hergestellt werden können, ohne die
+ * Bilder nochmals zu dekodieren und zu filtern.
+ * 
+ * Jede Ebene hat eine Datei mit den rohen Pixeln ihres aufbereiteten Bildes.
+ * Sie wird einmal geschrieben, sobald das Bild fertig ist. Der Index enthält
+ * die Transformationen aller Ebenen und verweist auf diese Dateien. Er ist
+ * klein und wird bei jedem {@link #save(List)} neu geschrieben. Beides
+ * geschieht im Hintergrund, in der Reihenfolge der Aufrufe.
+ * 
+ * Beim Wiederherstellen werden die Pixel direkt aus der gemappten Datei ins
+ * Bitmap kopiert. Auch das geschieht im Hintergrund, nach allen zuvor
+ * begonnenen Schreibvorgängen.
+ */
+public class SessionStore {
+
+	private static final int MAGIC = 0x424b5332; // "BKS2"
+
+	private static final String INDEX = "index";
+	private static final String PIXELS = ".px";
+
+	private static SessionStore instance;
+
+	/**
+	 * Eine Ebene, wie sie im Index steht.
+	 */
+	public static class Entry {
+		public final String pixels;
+		public final String sourcePath;
+		/**
+		 * Die Beschreibung des Filters der Ebene, leer wenn sie keine hat.
+		 */
+		public final String filter;
+		public final int width;
+		public final int height;
+		final float posX;
+		final float posY;
+		final float scaleFactor;
+		final float totalRotation;
+
+		Entry(String pixels, String sourcePath, String filter, int width, int height, float posX, float posY,
+				float scaleFactor, float totalRotation) {
+			this.pixels = pixels;
+			this.sourcePath = sourcePath;
+			this.filter = filter;
+			this.width = width;
+			this.height = height;
+			this.posX = posX;
+			this.posY = posY;
+			this.scaleFactor = scaleFactor;
+			this.totalRotation = totalRotation;
+		}
+
+		/**
+		 * Überträgt Position, Skalierung und Rotation auf die Ebene.
+		 */
+		public void applyTo(Layer layer) {
+			layer.posX = posX;
+			layer.posY = posY;
+			layer.scaleFactor = scaleFactor;
+			layer.totalRotation = totalRotation;
+		}
+	}
+
+	/**
+	 * Wird auf dem UI Thread aufgerufen, sobald {@link #restore(RestoreCallback)}
+	 * die Sitzung gelesen hat.
+	 */
+	public interface RestoreCallback {
+
+		/**
+		 * @param bitmaps
+		 *            das Bild zu jedem Eintrag, null wenn der Eintrag ohne
+		 *            Pixel gespeichert wurde oder die Datei fehlt. Die Bilder
+		 *            stammen aus dem {@link BitmapPool}.
+		 */
+		void onRestored(List<Entry> entries, List<Bitmap> bitmaps);
+	}
+
+	private final File directory;
+	private final ExecutorService writer;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Wie viele Aufrufe von {@link #restore(RestoreCallback)} noch nicht
+	 * ausgeliefert sind. Solange speichert {@link #save(List)} nichts, sonst
+	 * würde es die Sitzung überschreiben und ihre Pixeldateien löschen, bevor
+	 * die Ebenen wieder da sind. Nur im UI Thread verwendet.
+	 */
+	private int restoring;
+
+	/**
+	 * Die Pixeldateien der Ebenen, deren Bild bereits gespeichert wird. Nur im
+	 * UI Thread verwendet.
+	 */
+	private final Map<Layer, String> stored = new IdentityHashMap<Layer, String>();
+	private long nextName;
+
+	private SessionStore(File directory) {
+		this.directory = directory;
+		this.nextName = System.currentTimeMillis();
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "SessionStore");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Es gibt nur eine Instanz pro Prozess, damit eine neue Activity erst
+	 * liest, wenn die alte fertig geschrieben hat.
+	 */
+	public static synchronized SessionStore getInstance(Context context) {
+		if (instance == null) {
+			File directory = new File(context.getApplicationContext().getFilesDir(), "session");
+			directory.mkdirs();
+			instance = new SessionStore(directory);
+		}
+		return instance;
+	}
+
+	/**
+	 * Schreibt die Pixel des fertig aufbereiteten Bildes der Ebene im
+	 * Hintergrund. Das Bild darf danach nicht mehr verändert werden.
+	 * Übergeben wird das Bild selbst, da die Ebene es herabstufen oder als
+	 * Maske speichern kann.
+	 */
+	public void layerReady(Layer layer, final Bitmap bitmap) {
+		if (stored.containsKey(layer)) {
+			return;
+		}
+		final String name = Long.toString(nextName++, 36) + PIXELS;
+		stored.put(layer, name);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					PixelFile.write(bitmap, new File(directory, name));
+				} catch (IOException e) {
+					Log.e("SessionStore", "could not store layer " + name, e);
+				} catch (IllegalStateException e) {
+
+					/* Das Bild wurde inzwischen freigegeben. */
+					new File(directory, name).delete();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schreibt den Index im Hintergrund neu und löscht die Pixeldateien von
+	 * Ebenen, die nicht mehr existieren. Muss im UI Thread aufgerufen werden.
+	 */
+	public void save(List<Layer> layers) {
+		if (restoring > 0) {
+			return;
+		}
+		List<Layer> sorted = new ArrayList<Layer>(layers);
+		Layer.sortByZ(sorted);
+		final List<Entry> entries = new ArrayList<Entry>();
+		for (Layer layer : sorted) {
+			if (layer.getSourcePath() == null) {
+				continue;
+			}
+
+			/*
+			 * Ebenen, deren Bild noch aufbereitet wird, speichern wir ohne
+			 * Pixel. Sie werden beim Wiederherstellen neu aufbereitet.
+			 */
+			String pixels = stored.get(layer);
+			CompiledFilter filter = layer.getSourceFilter();
+			String description = filter != null ? filter.getDescription() : null;
+			entries.add(new Entry(pixels == null ? "" : pixels, layer.getSourcePath(), description == null ? ""
+					: description, layer.getWidth(), layer.getHeight(), layer.posX, layer.posY, layer.scaleFactor,
+					layer.totalRotation));
+		}
+		stored.keySet().retainAll(layers);
+
+		/*
+		 * Die Pixeldateien von Ebenen, die noch nicht im Index stehen, werden
+		 * eventuell gerade geschrieben und dürfen nicht gelöscht werden.
+		 */
+		final Set<String> used = new HashSet<String>(stored.values());
+
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeIndex(entries);
+					deleteUnused(used);
+				} catch (IOException e) {
+					Log.e("SessionStore", "could not store session", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Liest den Index und die Bilder der Ebenen im Hintergrund, nachdem alle
+	 * ausstehenden Schreibvorgänge beendet sind, und liefert sie auf dem UI
+	 * Thread an den Callback. Ist keine Sitzung gespeichert oder kann sie
+	 * nicht gelesen werden, sind die Listen leer. Muss im UI Thread
+	 * aufgerufen werden.
+	 */
+	public void restore(final RestoreCallback callback) {
+		restoring++;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Entry> entries;
+				try {
+					entries = readIndex();
+				} catch (IOException e) {
+					Log.e("SessionStore", "could not read session", e);
+					entries = new ArrayList<Entry>();
+				}
+				final List<Entry> restored = entries;
+				final List<Bitmap> bitmaps = new ArrayList<Bitmap>(entries.size());
+				for (Entry entry : entries) {
+					bitmaps.add(readPixels(entry));
+				}
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						restoring--;
+						callback.onRestored(restored, bitmaps);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Merkt sich, dass das Bild der Ebene bereits in der Pixeldatei des
+	 * Eintrags steht und nicht nochmals geschrieben werden muss.
+	 */
+	public void restored(Entry entry, Layer layer) {
+		if (entry.pixels.length() > 0) {
+			stored.put(layer, entry.pixels);
+		}
+	}
+
+	private List<Entry> readIndex() throws IOException {
+		File index = new File(directory, INDEX);
+		if (!index.isFile()) {
+			return new ArrayList<Entry>();
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a session index");
+			}
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt(), in
+						.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+			}
+			return entries;
+		} finally {
+			in.close();
+		}
+	}
+
+	private Bitmap readPixels(Entry entry) {
+		if (entry.pixels.length() == 0) {
+			return null;
+		}
+		try {
+			return PixelFile.read(new File(directory, entry.pixels), entry.width, entry.height);
+		} catch (IOException e) {
+			Log.e("SessionStore", "could not restore layer " + entry.pixels, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Schreibt zuerst in eine temporäre Datei, damit beim Beenden des
+	 * Prozesses nie ein halber Index übrig bleibt.
+	 */
+	private void writeIndex(List<Entry> entries) throws IOException {
+		File temp = new File(directory, INDEX + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.pixels);
+				out.writeUTF(entry.sourcePath);
+				out.writeUTF(entry.filter);
+				out.writeInt(entry.width);
+				out.writeInt(entry.height);
+				out.writeFloat(entry.posX);
+				out.writeFloat(entry.posY);
+				out.writeFloat(entry.scaleFactor);
+				out.writeFloat(entry.totalRotation);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(new File(directory, INDEX))) {
+			throw new IOException("could not rename " + temp);
+		}
+	}
+
+	private void deleteUnused(Set<String> used) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(PIXELS) && !used.contains(file.getName())) {
+				file.delete();
+			}
+		}
+	}
+}
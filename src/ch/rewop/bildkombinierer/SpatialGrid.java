@@ -0,0 +1,247 @@
+package ch.rewop.bildkombinierer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ein gleichmässiges Gitter über achsenparallele Rechtecke. Jede Zelle kennt
+ * die Einträge, deren Rechteck sie berührt, so müssen Abfragen nur die
+ * Einträge der betroffenen Zellen prüfen statt alle.
+ * 
+ * Das Gitter ist nicht begrenzt. Die Zellen werden über ihre Koordinaten auf
+ * eine feste Anzahl Listen verteilt, weit auseinander liegende Zellen können
+ * also dieselbe Liste teilen. Das kostet höchstens einige zusätzliche
+ * Vergleiche, da jede Abfrage die Rechtecke der Einträge ohnehin prüft. Dafür
+ * braucht es keine Schlüssel, und Abfragen legen keine Objekte an.
+ * 
+ * Grosse Einträge stehen in vielen Zellen. Berührt eine Bereichsabfrage so
+ * viele Zellen, dass sie mehr Einträge prüfen müsste, als es überhaupt gibt,
+ * geht sie stattdessen alle Einträge einmal durch.
+ */
+class SpatialGrid<T> {
+
+	private static final int BUCKETS = 1024;
+	private static final int SCAN_FACTOR = 4;
+
+	private static class Entry<T> {
+		final T item;
+		float left, top, right, bottom;
+		int cellLeft, cellTop, cellRight, cellBottom;
+
+		/**
+		 * Die Position in {@link SpatialGrid#all}.
+		 */
+		int index;
+
+		/**
+		 * Die letzte Bereichsabfrage, die den Eintrag geliefert hat.
+		 */
+		int query;
+
+		Entry(T item) {
+			this.item = item;
+		}
+
+		boolean intersects(float l, float t, float r, float b) {
+			return left < r && l < right && top < b && t < bottom;
+		}
+
+		boolean contains(float x, float y) {
+			return left <= x && x < right && top <= y && y < bottom;
+		}
+	}
+
+	private final float cellSize;
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final List<Entry<T>>[] buckets = new List[BUCKETS];
+	private final Map<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+	private final List<Entry<T>> all = new ArrayList<Entry<T>>();
+
+	/**
+	 * Die Anzahl Einträge in allen Listen zusammen.
+	 */
+	private long memberships;
+
+	/**
+	 * Zählt die Bereichsabfragen, damit jeder Eintrag nur einmal geliefert
+	 * wird, auch wenn er in mehreren Zellen steht.
+	 */
+	private int query;
+
+	SpatialGrid(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Trägt den Eintrag ein oder aktualisiert sein Rechteck.
+	 */
+	void update(T item, float left, float top, float right, float bottom) {
+		Entry<T> entry = entries.get(item);
+		int cellLeft = cell(left);
+		int cellTop = cell(top);
+		int cellRight = cell(right);
+		int cellBottom = cell(bottom);
+		if (entry == null) {
+			entry = new Entry<T>(item);
+			entry.index = all.size();
+			entries.put(item, entry);
+			all.add(entry);
+		} else if (entry.cellLeft != cellLeft || entry.cellTop != cellTop || entry.cellRight != cellRight
+				|| entry.cellBottom != cellBottom) {
+			removeFromCells(entry);
+		} else {
+			entry.left = left;
+			entry.top = top;
+			entry.right = right;
+			entry.bottom = bottom;
+			return;
+		}
+		entry.left = left;
+		entry.top = top;
+		entry.right = right;
+		entry.bottom = bottom;
+		entry.cellLeft = cellLeft;
+		entry.cellTop = cellTop;
+		entry.cellRight = cellRight;
+		entry.cellBottom = cellBottom;
+
+		memberships += cells(cellLeft, cellTop, cellRight, cellBottom);
+		if (coversAll(cellLeft, cellTop, cellRight, cellBottom)) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				add(bucket, entry);
+			}
+			return;
+		}
+		for (int y = cellTop; y <= cellBottom; y++) {
+			for (int x = cellLeft; x <= cellRight; x++) {
+				add(bucket(x, y), entry);
+			}
+		}
+	}
+
+	private void add(int bucket, Entry<T> entry) {
+		List<Entry<T>> list = buckets[bucket];
+		if (list == null) {
+			list = new ArrayList<Entry<T>>(4);
+			buckets[bucket] = list;
+		}
+		list.add(entry);
+	}
+
+	void remove(T item) {
+		Entry<T> entry = entries.remove(item);
+		if (entry != null) {
+			removeFromCells(entry);
+			Entry<T> last = all.remove(all.size() - 1);
+			if (last != entry) {
+				last.index = entry.index;
+				all.set(entry.index, last);
+			}
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Fügt alle Einträge, deren Rechteck den Punkt enthält, zu result hinzu.
+	 * Ein Eintrag kann dabei mehrfach vorkommen.
+	 */
+	void findContaining(float x, float y, List<T> result) {
+		List<Entry<T>> list = buckets[bucket(cell(x), cell(y))];
+		if (list == null) {
+			return;
+		}
+		for (int i = 0; i < list.size(); i++) {
+			Entry<T> entry = list.get(i);
+			if (entry.contains(x, y)) {
+				result.add(entry.item);
+			}
+		}
+	}
+
+	/**
+	 * Fügt alle Einträge, deren Rechteck den Bereich schneidet, zu result
+	 * hinzu, jeden nur einmal.
+	 */
+	void findIntersecting(float left, float top, float right, float bottom, List<T> result) {
+		query++;
+		int cellLeft = cell(left);
+		int cellTop = cell(top);
+		int cellRight = cell(right);
+		int cellBottom = cell(bottom);
+
+		/*
+		 * Im Mittel stehen in jeder Liste memberships / BUCKETS Einträge. Über
+		 * die verstreuten Listen zu gehen kostet aber ein Mehrfaches des
+		 * Durchgangs durch alle Einträge (siehe SpatialGridBenchmark).
+		 */
+		if (SCAN_FACTOR * cells(cellLeft, cellTop, cellRight, cellBottom) * memberships >= (long) BUCKETS
+				* all.size()) {
+			collect(all, left, top, right, bottom, result);
+			return;
+		}
+		for (int y = cellTop; y <= cellBottom; y++) {
+			for (int x = cellLeft; x <= cellRight; x++) {
+				collect(buckets[bucket(x, y)], left, top, right, bottom, result);
+			}
+		}
+	}
+
+	private void collect(List<Entry<T>> list, float left, float top, float right, float bottom, List<T> result) {
+		if (list == null) {
+			return;
+		}
+		for (int i = 0; i < list.size(); i++) {
+			Entry<T> entry = list.get(i);
+			if (entry.query != query && entry.intersects(left, top, right, bottom)) {
+				entry.query = query;
+				result.add(entry.item);
+			}
+		}
+	}
+
+	private void removeFromCells(Entry<T> entry) {
+		memberships -= cells(entry.cellLeft, entry.cellTop, entry.cellRight, entry.cellBottom);
+		if (coversAll(entry.cellLeft, entry.cellTop, entry.cellRight, entry.cellBottom)) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				buckets[bucket].remove(entry);
+			}
+			return;
+		}
+		for (int y = entry.cellTop; y <= entry.cellBottom; y++) {
+			for (int x = entry.cellLeft; x <= entry.cellRight; x++) {
+				List<Entry<T>> list = buckets[bucket(x, y)];
+				if (list != null) {
+					list.remove(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Die Anzahl Listen, die ein Bereich berührt, höchstens alle.
+	 */
+	private static long cells(int cellLeft, int cellTop, int cellRight, int cellBottom) {
+		return Math.min((long) (cellRight - cellLeft + 1) * (cellBottom - cellTop + 1), BUCKETS);
+	}
+
+	/**
+	 * Ein so grosser Bereich berührt ohnehin alle Listen, wir gehen sie dann
+	 * einfach der Reihe nach durch.
+	 */
+	private static boolean coversAll(int cellLeft, int cellTop, int cellRight, int cellBottom) {
+		return cells(cellLeft, cellTop, cellRight, cellBottom) >= BUCKETS;
+	}
+
+	private int cell(float coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	private static int bucket(int x, int y) {
+		return (x * 73856093 ^ y * 19349663) & (BUCKETS - 1);
+	}
+}
@@ -0,0 +1,167 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Zeichnet ein transformiertes Bild in einen Ausschnitt eines Zielbildes,
+ * in reinem Java ohne Android Canvas. Beide Bilder liegen als zeilenweise
+ * int[] im nicht vormultiplizierten ARGB Format vor, wie es Bitmap.getPixels
+ * liefert.
+ * 
+ * Für jeden Zielpixel wird die Stelle im Quellbild bestimmt, dort bilinear
+ * interpoliert und das Resultat mit "source over" über den bisherigen Inhalt
+ * gelegt.
+ */
+public final class TileCompositor {
+
+	private TileCompositor() {
+	}
+
+	/**
+	 * @param src
+	 *            die Pixel des Quellbildes
+	 * @param srcToDst
+	 *            bildet Koordinaten im Quellbild (0,0 ist die linke obere Ecke
+	 *            des ersten Pixels) auf Koordinaten im Zielausschnitt ab
+	 * @param dst
+	 *            das Zielbild, der Ausschnitt beginnt bei dstOffset und hat
+	 *            die Zeilenlänge dstStride
+	 */
+	public static void composite(int[] src, int srcWidth, int srcHeight, Affine srcToDst, int[] dst, int dstOffset,
+			int dstStride, int dstWidth, int dstHeight) {
+		Affine dstToSrc = srcToDst.invert();
+		if (dstToSrc == null) {
+			return;
+		}
+
+		/* Nur den Teil des Ausschnitts durchlaufen, den das Bild bedeckt. */
+		double[] bounds = srcToDst.mapBounds(0, 0, srcWidth, srcHeight);
+		int left = Math.max(0, (int) Math.floor(bounds[0]));
+		int top = Math.max(0, (int) Math.floor(bounds[1]));
+		int right = Math.min(dstWidth, (int) Math.ceil(bounds[2]));
+		int bottom = Math.min(dstHeight, (int) Math.ceil(bounds[3]));
+
+		for (int y = top; y < bottom; y++) {
+			int index = dstOffset + y * dstStride + left;
+			for (int x = left; x < right; x++, index++) {
+
+				/* Pixelzentren liegen bei x + 0.5. */
+				double u = dstToSrc.mapX(x + 0.5, y + 0.5) - 0.5;
+				double v = dstToSrc.mapY(x + 0.5, y + 0.5) - 0.5;
+				if (u <= -1 || v <= -1 || u >= srcWidth || v >= srcHeight) {
+					continue;
+				}
+				int color = sample(src, srcWidth, srcHeight, u, v);
+				if ((color >>> 24) != 0) {
+					dst[index] = blend(color, dst[index]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Der Ausschnitt des Quellbildes, den srcToDst auf den Zielbereich left,
+	 * top, right, bottom abbildet, als {left, top, right, bottom} und begrenzt
+	 * auf das Quellbild. Null, wenn der Ausschnitt leer ist.
+	 */
+	public static int[] sourceRegion(Affine srcToDst, int srcWidth, int srcHeight, int left, int top, int right,
+			int bottom) {
+		Affine dstToSrc = srcToDst.invert();
+		if (dstToSrc == null) {
+			return null;
+		}
+		double[] area = dstToSrc.mapBounds(left, top, right, bottom);
+		int[] region = { Math.max(0, (int) Math.floor(area[0])), Math.max(0, (int) Math.floor(area[1])),
+				Math.min(srcWidth, (int) Math.ceil(area[2])), Math.min(srcHeight, (int) Math.ceil(area[3])) };
+		if (region[0] >= region[2] || region[1] >= region[3]) {
+			return null;
+		}
+		return region;
+	}
+
+	/**
+	 * Wie viele Pixel der Originaldatei ein Ausschnitt auf jeder Seite
+	 * zusätzlich braucht: einen für die Interpolation und den Rand des
+	 * Filters. Beide sind in Pixeln des dekodierten Ausschnitts gemessen, in
+	 * der Datei also sampleSize mal so breit.
+	 */
+	public static int getPadding(int filterMargin, int sampleSize) {
+		return (1 + filterMargin) * sampleSize;
+	}
+
+	/**
+	 * Erweitert den Ausschnitt auf jeder Seite um margin Pixel, höchstens bis
+	 * an den Rand des Quellbildes.
+	 */
+	public static void pad(int[] region, int margin, int srcWidth, int srcHeight) {
+		region[0] = Math.max(0, region[0] - margin);
+		region[1] = Math.max(0, region[1] - margin);
+		region[2] = Math.min(srcWidth, region[2] + margin);
+		region[3] = Math.min(srcHeight, region[3] + margin);
+	}
+
+	/**
+	 * Bilineare Interpolation zwischen den vier benachbarten Pixeln.
+	 * Ausserhalb des Bildes gelten die Pixel als vollständig transparent,
+	 * damit die Kanten weich auslaufen.
+	 */
+	static int sample(int[] src, int width, int height, double u, double v) {
+		int x0 = (int) Math.floor(u);
+		int y0 = (int) Math.floor(v);
+		float fx = (float) (u - x0);
+		float fy = (float) (v - y0);
+
+		int p00 = pixel(src, width, height, x0, y0);
+		int p10 = pixel(src, width, height, x0 + 1, y0);
+		int p01 = pixel(src, width, height, x0, y0 + 1);
+		int p11 = pixel(src, width, height, x0 + 1, y0 + 1);
+
+		float w00 = (1 - fx) * (1 - fy);
+		float w10 = fx * (1 - fy);
+		float w01 = (1 - fx) * fy;
+		float w11 = fx * fy;
+
+		/*
+		 * Die Farben gewichten wir zusätzlich mit ihrem Alpha Wert, sonst
+		 * würden transparente Nachbarn die Farbe verfälschen.
+		 */
+		float a00 = w00 * (p00 >>> 24);
+		float a10 = w10 * (p10 >>> 24);
+		float a01 = w01 * (p01 >>> 24);
+		float a11 = w11 * (p11 >>> 24);
+		float alpha = a00 + a10 + a01 + a11;
+		if (alpha < 0.5f) {
+			return 0;
+		}
+		int red = Math.round((a00 * ((p00 >> 16) & 0xff) + a10 * ((p10 >> 16) & 0xff) + a01 * ((p01 >> 16) & 0xff)
+				+ a11 * ((p11 >> 16) & 0xff)) / alpha);
+		int green = Math.round((a00 * ((p00 >> 8) & 0xff) + a10 * ((p10 >> 8) & 0xff) + a01 * ((p01 >> 8) & 0xff)
+				+ a11 * ((p11 >> 8) & 0xff)) / alpha);
+		int blue = Math.round((a00 * (p00 & 0xff) + a10 * (p10 & 0xff) + a01 * (p01 & 0xff) + a11 * (p11 & 0xff))
+				/ alpha);
+		return (Math.min(255, Math.round(alpha)) << 24) | (red << 16) | (green << 8) | blue;
+	}
+
+	/**
+	 * Legt die Farbe src mit "source over" über dst.
+	 */
+	static int blend(int src, int dst) {
+		int srcAlpha = src >>> 24;
+		int dstAlpha = dst >>> 24;
+		if (srcAlpha == 255 || dstAlpha == 0) {
+			return src;
+		}
+		float sa = srcAlpha / 255f;
+		float da = dstAlpha / 255f * (1 - sa);
+		float alpha = sa + da;
+		int red = Math.round((((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * da) / alpha);
+		int green = Math.round((((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * da) / alpha);
+		int blue = Math.round(((src & 0xff) * sa + (dst & 0xff) * da) / alpha);
+		return (Math.round(alpha * 255) << 24) | (red << 16) | (green << 8) | blue;
+	}
+
+	private static int pixel(int[] src, int width, int height, int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return 0;
+		}
+		return src[y * width + x];
+	}
+}
@@ -1,21 +1,32 @@
 package ch.rewop.bildkombinierer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.WindowManager;
 
 /**
- * Eine View um ein Bitmap darzustellen welches mittels Touch verschoben,
- * skaliert und gezoomt werden kann.
+ * Eine View um Bitmaps darzustellen welche mittels Touch verschoben,
+ * skaliert und gezoomt werden können.
+ * 
+ * Alle Bilder werden als {@link Layer} von dieser einen View gezeichnet, statt
+ * für jedes Bild eine eigene bildschirmfüllende View anzulegen. So wird pro
+ * Frame nur einmal onDraw aufgerufen, und Touch Events gehen direkt an die
+ * oberste Ebene unter dem Finger.
  * 
  * Diese Klasse basiert auf folgendem Blog:
  * http://android-developers.blogspot.ch/2010/06/making-sense-of-multitouch.html
@@ -23,10 +34,39 @@ import android.view.WindowManager;
 public class TouchImageView extends View {
 
 	/**
-	 * Die Position an der sich das Bild im Moment befindet
+	 * Die Grenzen für den Skalierungsfaktor, um nicht zu kleine oder zu
+	 * grosse Bilder zu haben.
+	 */
+	public static final float MIN_SCALE = 0.1f;
+	public static final float MAX_SCALE = 5.0f;
+
+	/**
+	 * Ein neues Bild nimmt höchstens diesen Anteil des Displays ein.
 	 */
-	private float posX;
-	private float posY;
+	private static final float DISPLAY_FILL = 0.8f;
+
+	/**
+	 * Die Ebenen, die unterste zuerst.
+	 */
+	private final List<Layer> layers = new ArrayList<Layer>();
+
+	/**
+	 * Ein Gitter über die Ebenen, damit wir bei einem Touch nicht alle
+	 * Ebenen durchsuchen müssen.
+	 */
+	private final LayerIndex index = new LayerIndex();
+	private int nextZ;
+
+	/**
+	 * Ist dieser Wert grösser als 0, lassen sich Ebenen nur an Stellen
+	 * greifen, die mindestens so deckend sind. Sonst zählt das ganze Bild.
+	 */
+	private int alphaHitThreshold = 0;
+
+	/**
+	 * Die Ebene, die gerade mit dem Finger bewegt wird.
+	 */
+	private Layer activeLayer;
 
 	/**
 	 * Der zuletzt berührte Punkt. Wird gebraucht um bei einer Verschiebung zu
@@ -40,7 +80,6 @@ public class TouchImageView extends View {
 	 * Komponente zurückgreifen.
 	 */
 	private final ScaleGestureDetector scaleDetector;
-	private float scaleFactor = 1f;
 
 	/**
 	 * Auch für das berechnen der Rotation merken wir uns den letzten Wert um
@@ -49,22 +88,63 @@ public class TouchImageView extends View {
 	private float lastRotation = 0f;
 
 	/**
-	 * Zusätzlich merken wir uns den ganzen Winkel um den das Bild gedreht ist.
+	 * Laut Android Empfehlung sollen in der onDraw Methode aus Performance
+	 * Gründen keine neuen Objekte angelegt werden, da diese Methode sehr oft
+	 * aufgerufen wird. Deshalb legen wir auch die Farbe des Platzhalters in
+	 * einer Instanzvariablen ab.
 	 */
-	private float totalRotation = 0f;
+	private final Paint placeholderPaint = new Paint();
 
 	/**
-	 * Initiale Touch Events (also zu Beginn einer Berührung mit einem Finger)
-	 * die nicht auf unserem Bild sind wollen wir ignorieren, deshalb müssen wir
-	 * uns unsere eigene Position auf dem Screen merken.
+	 * Hilfsobjekte für das Neuzeichnen von Teilbereichen, aus demselben Grund
+	 * Instanzvariablen.
 	 */
-	private final RectF boundingBox = new RectF();
+	private final RectF dirtyBox = new RectF();
+	private final Rect dirtyRect = new Rect();
+	private final Rect clipRect = new Rect();
+	private final List<Layer> visibleLayers = new ArrayList<Layer>();
+
+	private static final int DIRTY_MARGIN = 2;
+
+	/**
+	 * Die seit dem letzten Frame angefallenen, aber noch nicht angewendeten
+	 * Eingaben für pendingLayer. Sie werden einmal pro Frame im
+	 * frameCallback angewendet.
+	 */
+	private Layer pendingLayer;
+	private float pendingDx;
+	private float pendingDy;
+	private float pendingScale = 1f;
+	private float pendingRotation;
+	private long pendingSinceMillis = -1;
+	private boolean framePosted;
+
+	private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			framePosted = false;
+			applyPendingInput();
+		}
+	};
+
+	/**
+	 * Misst auf Wunsch Frame Zeiten und Latenz, siehe
+	 * {@link #setFrameMetricsEnabled(boolean)}.
+	 */
+	private final FrameMonitor frameMonitor;
+
+	/**
+	 * Hält den Speicher der Ebenen unter dem Budget, siehe
+	 * {@link #setMemoryBudget(MemoryBudget)}.
+	 */
+	private MemoryBudget memoryBudget;
+	private final RectF viewport = new RectF();
 
 	/**
-	 * Das Bild das wird in der View rendern.
+	 * Ist dieser Wert grösser als 0, werden fast einfarbige Ebenen als Maske
+	 * gespeichert, siehe {@link #setMaskErrorThreshold(float)}.
 	 */
-	private Bitmap bitmap;
-	private RectF bitmapSize;
+	private float maskErrorThreshold = 0;
 
 	public TouchImageView(Context context) {
 		this(context, null, 0);
@@ -77,6 +157,9 @@ public class TouchImageView extends View {
 	public TouchImageView(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
 
+		placeholderPaint.setColor(0x40808080);
+		frameMonitor = new FrameMonitor(this);
+
 		/*
 		 * Android enthält bereits eine Komponente um sogenannte Pinch-to-Zoom
 		 * Events zu erkennen. Wir brauchen diese bloss noch zu registrieren.
@@ -85,93 +168,192 @@ public class TouchImageView extends View {
 		scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
 			@Override
 			public boolean onScale(ScaleGestureDetector detector) {
-				scaleFactor *= detector.getScaleFactor();
-
-				/*
-				 * Wir übernehmen den Skalierungsfaktor nicht 1:1 sondern
-				 * begrenzen ihn auf 0.1 - 5 x, um nicht zu kleine oder zu
-				 * grosse Bilder zu haben.
-				 */
-				scaleFactor = Math.max(0.1f, Math.min(scaleFactor, 5.0f));
-
-				invalidate();
+				if (activeLayer == null) {
+					return false;
+				}
+				queueInput(activeLayer, SystemClock.uptimeMillis());
+				pendingScale *= detector.getScaleFactor();
 				return true;
 			}
 		});
 	}
 
 	/**
-	 * Ein Setter für das anzuzeigende Bild. Diese Methode muss aufgerufen
-	 * nachdem die View erstellt wurde.
+	 * Fügt eine neue Ebene zuoberst hinzu. Sie erscheint als Platzhalter in
+	 * der angegebenen Grösse in der Mitte des Displays, bis mit
+	 * {@link Layer#setProcessedBitmap(Bitmap)} das Bild gesetzt wird. Der
+	 * Platzhalter kann bereits verschoben, gezoomt und rotiert werden.
 	 */
-	public void setBitmap(Bitmap bitmap) {
+	public Layer addLayer(int width, int height) {
+		DisplayMetrics metrics = getDisplayMetrics(getContext());
+		Layer layer = new Layer(width, height, this);
 
-		DisplayMetrics metrics = new DisplayMetrics();
-		((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getMetrics(metrics);
+		/* Das neue Bild soll in der Mitte der View gezeichnet erscheinen. */
+		layer.posX = metrics.widthPixels / 2 - width / 2;
+		layer.posY = metrics.heightPixels / 2 - height / 2;
+		layer.updateTransform();
+		layer.z = nextZ++;
+
+		layers.add(layer);
+		index.update(layer);
+		invalidate(layer.getBoundingBox());
+		return layer;
+	}
 
-		int displayWidth = metrics.widthPixels;
-		int displayHeight = metrics.heightPixels;
-		float largerBitmapDisplayRatio = Math.max(((float) bitmap.getWidth()) / displayWidth,
-				((float) bitmap.getHeight()) / displayHeight);
+	/**
+	 * Entfernt die Ebene wieder.
+	 */
+	public void removeLayer(Layer layer) {
+		if (layers.remove(layer)) {
+			index.remove(layer);
+			if (activeLayer == layer) {
+				activeLayer = null;
+			}
+			layer.release();
+			invalidate(layer.getBoundingBox());
+		}
+	}
 
-		/*
-		 * Wir skalieren das Bitmap auf eine auf das Display angepasste Grösse
-		 * herunter, so dass wir nicht mit einem zu grossen oder zu kleinen Bild
-		 * starten. Ausserdem ist die maximale Grösse einer Textur beschränkt,
-		 * wir können also nicht ein 10 Megapixel Bild als Textur verwenden.
-		 */
+	/**
+	 * Alle Ebenen in der Reihenfolge, in der sie hinzugefügt wurden.
+	 */
+	public List<Layer> getLayers() {
+		return Collections.unmodifiableList(layers);
+	}
 
-		float scaleFactor = 0.8f / largerBitmapDisplayRatio;
+	/**
+	 * Wird von einer Ebene aufgerufen, wenn sie sich ausserhalb eines Touch
+	 * Events verändert hat.
+	 */
+	void onLayerChanged(Layer layer) {
+		if (layers.contains(layer)) {
+			dirtyBox.set(layer.getBoundingBox());
+			layerMoved(layer);
+			enforceMemoryBudget();
+		}
+	}
 
-		Bitmap smaller = Bitmap.createScaledBitmap(bitmap, (int) (bitmap.getWidth() * scaleFactor),
-				(int) (bitmap.getHeight() * scaleFactor), /* filter = */true);
+	/**
+	 * Legt das Budget fest, unter dem der Speicher der Ebenen und Caches
+	 * gehalten wird. Ohne Budget wird nichts herabgestuft.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		enforceMemoryBudget();
+	}
 
-		this.bitmap = makeTransparent(smaller);
+	/**
+	 * Ebenen, die sich mit einer Abweichung von höchstens threshold (0 - 255)
+	 * als Maske mit einer einzigen Farbe darstellen lassen, werden so
+	 * gespeichert und brauchen dann nur noch ein Viertel des Speichers. Mit 0
+	 * bleiben alle Ebenen in voller Farbe. Gilt für Bilder, die danach
+	 * gesetzt werden.
+	 */
+	public void setMaskErrorThreshold(float threshold) {
+		this.maskErrorThreshold = threshold;
+	}
 
-		/* Das neue Bild soll in der Mitte der View gezeichnet erscheinen. */
-		posX = displayWidth / 2 - this.bitmap.getWidth() / 2;
-		posY = displayHeight / 2 - this.bitmap.getHeight() / 2;
+	float getMaskErrorThreshold() {
+		return maskErrorThreshold;
+	}
 
-		bitmapSize = new RectF(0, 0, this.bitmap.getWidth(), this.bitmap.getHeight());
+	/**
+	 * Gibt bei Speicherknappheit Caches frei und stuft Ebenen herab. Wird von
+	 * der Activity in onTrimMemory aufgerufen.
+	 */
+	public void trimMemory(int level) {
+		if (memoryBudget != null) {
+			viewport.set(0, 0, getWidth(), getHeight());
+			long levelBytes = LayerPyramid.getCacheBytes();
+			if (memoryBudget.onTrimMemory(level, layers, viewport) > 0 || LayerPyramid.getCacheBytes() < levelBytes) {
+				invalidate();
+			}
+		}
 	}
 
 	/**
-	 * Wandelt das von der Kamera aufgenommene Bild in ein halbtransparents
-	 * Bitmap um, wobei hellere Stellen transparent werden und dunklere Stellen
-	 * fast nicht.
-	 */
-	public static Bitmap makeTransparent(Bitmap bitmap) {
-		if (bitmap != null) {
-			int width = bitmap.getWidth();
-			int height = bitmap.getHeight();
-			int[] data = new int[width * height];
-			bitmap.getPixels(data, 0, width, 0, 0, width, height);
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					int index = y * width + x;
-
-					/*
-					 * Wir extrahieren jeden einzelnen Pixel und berechnen dafür
-					 * einen für das menschliche Auge passenden Grauwert
-					 * (deshalb die unterschiedlichen Gewichtungen der einzelnen
-					 * Farben - Blau zum Beispiel wird vom Auge viel schwächer
-					 * wahrgenommmen als Grün)
-					 */
-					int red = Color.red(data[index]);
-					int green = Color.green(data[index]);
-					int blue = Color.blue(data[index]);
-					int alpha = 255 - (int) (0.299 * red + 0.587 * green + 0.114 * blue);
-
-					/*
-					 * Wir legen die einzelnen Farben und den Alpha
-					 * (Transparenz) Wert im Bitmap.Config.ARGB_8888 format ab.
-					 */
-					data[index] = (alpha << 24) | (red << 16) | (green << 8) | blue;
-				}
+	 * Neu gezeichnet wird auch, wenn Stufen oder Kacheln aus dem Cache
+	 * verdrängt wurden. Sie gehen zurück in den {@link BitmapPool} und dürfen
+	 * nicht mehr in einem alten Frame stehen.
+	 */
+	private void enforceMemoryBudget() {
+		if (memoryBudget != null) {
+			viewport.set(0, 0, getWidth(), getHeight());
+			long levelBytes = LayerPyramid.getCacheBytes();
+			if (memoryBudget.enforce(layers, viewport) > 0 || LayerPyramid.getCacheBytes() < levelBytes) {
+				invalidate();
 			}
-			return Bitmap.createBitmap(data, width, height, Bitmap.Config.ARGB_8888);
 		}
-		return null;
+	}
+
+	/**
+	 * Muss aufgerufen werden, nachdem Position, Skalierung, Rotation oder
+	 * Grösse der Ebene geändert wurden. Vorher muss die alte Bounding Box in
+	 * dirtyBox abgelegt werden.
+	 * 
+	 * Neu gezeichnet wird nur der Bereich, den die Ebene vorher oder nachher
+	 * bedeckt, und dort auch nur die Ebenen, die ihn schneiden.
+	 */
+	private void layerMoved(Layer layer) {
+		layer.updateTransform();
+		index.update(layer);
+		dirtyBox.union(layer.getBoundingBox());
+		invalidate(dirtyBox);
+	}
+
+	/**
+	 * Veranlasst das Neuzeichnen des Bereichs. Wir runden nach aussen und
+	 * geben wegen der Kantenglättung beim Filtern noch etwas Rand dazu.
+	 */
+	private void invalidate(RectF area) {
+		area.roundOut(dirtyRect);
+		dirtyRect.inset(-DIRTY_MARGIN, -DIRTY_MARGIN);
+		invalidate(dirtyRect);
+	}
+
+	/**
+	 * Liefert den Faktor, mit dem ein Bild der angegebenen Grösse skaliert
+	 * werden muss, damit es als neue Ebene passt.
+	 * 
+	 * Wir skalieren das Bitmap auf eine auf das Display angepasste Grösse
+	 * herunter, so dass wir nicht mit einem zu grossen oder zu kleinen Bild
+	 * starten. Ausserdem ist die maximale Grösse einer Textur beschränkt, wir
+	 * können also nicht ein 10 Megapixel Bild als Textur verwenden.
+	 */
+	public static float getDisplayScale(Context context, int width, int height) {
+		DisplayMetrics metrics = getDisplayMetrics(context);
+		float largerBitmapDisplayRatio = Math.max(((float) width) / metrics.widthPixels,
+				((float) height) / metrics.heightPixels);
+		return DISPLAY_FILL / largerBitmapDisplayRatio;
+	}
+
+	private static DisplayMetrics getDisplayMetrics(Context context) {
+		DisplayMetrics metrics = new DisplayMetrics();
+		((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getMetrics(metrics);
+		return metrics;
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (framePosted) {
+			Choreographer.getInstance().removeFrameCallback(frameCallback);
+			framePosted = false;
+		}
+		frameMonitor.stop();
+
+		/*
+		 * Die Bitmaps sind freigegeben, die Ebenen dürfen also auch nicht
+		 * mehr gefunden oder gezeichnet werden.
+		 */
+		for (Layer layer : layers) {
+			index.remove(layer);
+			layer.release();
+		}
+		layers.clear();
+		visibleLayers.clear();
+		activeLayer = null;
+		pendingLayer = null;
 	}
 
 	/**
@@ -187,53 +369,51 @@ public class TouchImageView extends View {
 
 	/**
 	 * Diese Methode wird von Android aufgerufen damit wir auf den Uebergebenen
-	 * Canvas (Leinwand) unser Bitmap zeichnen können.
+	 * Canvas (Leinwand) unsere Bitmaps zeichnen können. Alle Ebenen werden in
+	 * einem Durchgang von unten nach oben gezeichnet.
 	 */
 	@Override
 	public void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 
 		/*
-		 * Wir speichern den aktuellen Zustand der Leinwand um ihn am Ende
-		 * wiederherstellen zu können. Beim Wiederherstellen mit restore werden
-		 * alle Matrixtransformationen auf dem Canvas wieder rückgängig gemacht.
+		 * Wir zeichnen nur die Ebenen, die den neu zu zeichnenden Bereich
+		 * schneiden.
 		 */
-		canvas.save();
-
-		canvas.translate(posX, posY);
-
-		int centerX = bitmap.getWidth() / 2;
-		int centerY = bitmap.getHeight() / 2;
-
-		/*
-		 * Da wir die alte Matrix wiederverwenden müssen wir sie zuerst wieder
-		 * zurücksetzen.
-		 */
-		transform.reset();
-
-		/* Wir skalieren und rotieren das Bild um das Zentrum. */
-
-		transform.setScale(scaleFactor, scaleFactor, centerX, centerY);
-		transform.postRotate(totalRotation, centerX, centerY);
+		frameMonitor.beginDraw();
+		canvas.getClipBounds(clipRect);
+		index.findIntersecting(clipRect, visibleLayers);
+		for (int i = 0; i < visibleLayers.size(); i++) {
+			visibleLayers.get(i).draw(canvas, placeholderPaint);
+		}
+		frameMonitor.endDraw(clipRect, layers.size(), visibleLayers.size());
+		visibleLayers.clear();
+		frameMonitor.drawOverlay(canvas, layers.size());
+	}
 
-		canvas.drawBitmap(bitmap, transform, null);
-		canvas.restore();
+	/**
+	 * Schaltet die Messung von Frame Zeiten, Jank und Touch Latenz samt
+	 * Anzeige ein oder aus. Die Werte werden mit {@link Metrics#dump} gespeichert.
+	 */
+	public void setFrameMetricsEnabled(boolean enabled) {
+		if (enabled) {
+			frameMonitor.start();
+		} else {
+			frameMonitor.stop();
+		}
+	}
 
-		/*
-		 * Dieselbe Transformation wenden wir nun auch auf unsere Bounding Box
-		 * an.
-		 */
-		transform.mapRect(boundingBox, bitmapSize);
-		boundingBox.offset(posX, posY);
+	public boolean isFrameMetricsEnabled() {
+		return frameMonitor.isRunning();
 	}
 
 	/**
-	 * Laut Android Empfehlung sollen in der onDraw Methode aus Performance
-	 * Gründen keine neuen Objekte angelegt werden, da diese Methode sehr oft
-	 * aufgerufen wird. Deshalb legen wir die Matrix in einer Instanzvariablen
-	 * ab, auch wenn
+	 * Legt fest, ab welchem Alpha Wert (1 - 255) ein Pixel eine Ebene greifbar
+	 * macht. Mit 0 zählt das ganze Bild, auch durchsichtige Stellen.
 	 */
-	private final Matrix transform = new Matrix();
+	public void setAlphaHitThreshold(int alphaHitThreshold) {
+		this.alphaHitThreshold = alphaHitThreshold;
+	}
 
 	/**
 	 * In dieser Methode behandeln wir die Touch Events die wir vom User
@@ -254,15 +434,16 @@ public class TouchImageView extends View {
 		case MotionEvent.ACTION_DOWN: {
 
 			/*
-			 * Bei einem Action Down Event merken wir uns die Position, sofern
-			 * diese innerhalb der Bounding Box liegt sowie die aktive Pointer
+			 * Bei einem Action Down Event merken wir uns die oberste Ebene an
+			 * dieser Position, die Position selbst sowie die aktive Pointer
 			 * ID.
 			 */
 
 			final float x = event.getX();
 			final float y = event.getY();
 
-			if (!boundingBox.contains(x, y)) {
+			activeLayer = index.findTopmost(x, y, alphaHitThreshold);
+			if (activeLayer == null) {
 				return false;
 			}
 
@@ -285,44 +466,51 @@ public class TouchImageView extends View {
 			 */
 
 			final int pointerIndex = event.findPointerIndex(activePointerId);
+			if (activeLayer == null || pointerIndex < 0) {
+				break;
+			}
 
 			final float x = event.getX(pointerIndex);
 			final float y = event.getY(pointerIndex);
 
+			/*
+			 * Ein Move Event kann mehrere Messpunkte enthalten, die seit dem
+			 * letzten Event angefallen sind. Für die Latenz zählt der älteste
+			 * davon.
+			 */
+			final int historySize = event.getHistorySize();
+			queueInput(activeLayer, historySize > 0 ? event.getHistoricalEventTime(0) : event.getEventTime());
+
 			boolean movingAround = !scaleDetector.isInProgress();
 
 			if (movingAround) {
-				final float dx = x - lastTouchX;
-				final float dy = y - lastTouchY;
 
 				/*
 				 * Wir verschieben das Bild um die Differenz seit dem letzten
-				 * Event.
+				 * Event. Die Zwischenpunkte brauchen wir dafür nicht, die
+				 * Summe ihrer Differenzen ergibt dasselbe.
 				 */
 
-				posX += dx;
-				posY += dy;
+				pendingDx += x - lastTouchX;
+				pendingDy += y - lastTouchY;
 
 			} else {
 
 				/*
 				 * Um das Zoomen kümmert sich der scaleDetector bereits, wir
-				 * brauchen bloss noch die Rotation zu ermitteln.
+				 * brauchen bloss noch die Rotation zu ermitteln. Hier gehen
+				 * wir alle Zwischenpunkte durch, damit ein Sprung von +180
+				 * auf -180 Grad zwischen zwei Punkten richtig erkannt wird.
 				 */
 
-				float r = getRotation(event);
-				totalRotation += r - lastRotation;
-				lastRotation = r;
+				for (int h = 0; h < historySize; h++) {
+					addRotation(getRotation(event, h));
+				}
+				addRotation(getRotation(event, -1));
 			}
 
 			lastTouchX = x;
 			lastTouchY = y;
-
-			/*
-			 * Nach dem rotieren, zoomen oder skalieren müssen wir unsere View
-			 * neu zeichnen, das veranlassen wir mit dem Aufruf von invalidate.
-			 */
-			invalidate();
 			break;
 		}
 
@@ -335,6 +523,7 @@ public class TouchImageView extends View {
 			 */
 
 			activePointerId = INVALID_POINTER_ID;
+			activeLayer = null;
 			break;
 		}
 
@@ -345,7 +534,7 @@ public class TouchImageView extends View {
 		 */
 
 		case MotionEvent.ACTION_POINTER_DOWN: {
-			lastRotation = getRotation(event);
+			lastRotation = getRotation(event, -1);
 			break;
 		}
 
@@ -373,16 +562,96 @@ public class TouchImageView extends View {
 	}
 
 	/**
-	 * Bestimmt den Rotationswinkel in Grad aus dem MotionEvent.
+	 * Bestimmt den Rotationswinkel in Grad aus dem MotionEvent, beim
+	 * Zwischenpunkt historyPos oder beim aktuellen Punkt, wenn historyPos -1
+	 * ist.
 	 */
-	private float getRotation(MotionEvent event) {
+	private float getRotation(MotionEvent event, int historyPos) {
 		if (event.getPointerCount() >= 2) {
-			double dX = event.getX(0) - event.getX(1);
-			double dY = event.getY(0) - event.getY(1);
+			double dX;
+			double dY;
+			if (historyPos < 0) {
+				dX = event.getX(0) - event.getX(1);
+				dY = event.getY(0) - event.getY(1);
+			} else {
+				dX = event.getHistoricalX(0, historyPos) - event.getHistoricalX(1, historyPos);
+				dY = event.getHistoricalY(0, historyPos) - event.getHistoricalY(1, historyPos);
+			}
 			return (float) Math.toDegrees(Math.atan2(dY, dX));
 		} else {
 			return 0;
 		}
 	}
 
+	private void addRotation(float r) {
+		float delta = r - lastRotation;
+		if (delta > 180f) {
+			delta -= 360f;
+		} else if (delta < -180f) {
+			delta += 360f;
+		}
+		pendingRotation += delta;
+		lastRotation = r;
+	}
+
+	/**
+	 * Merkt sich, dass für die Ebene Eingaben anstehen, und sorgt dafür, dass
+	 * sie beim nächsten Frame angewendet werden. Stehen noch Eingaben für eine
+	 * andere Ebene an, werden diese sofort angewendet.
+	 */
+	private void queueInput(Layer layer, long eventTimeMillis) {
+		if (pendingLayer != layer) {
+			applyPendingInput();
+			pendingLayer = layer;
+		}
+		if (pendingSinceMillis < 0) {
+			pendingSinceMillis = eventTimeMillis;
+		}
+		if (!framePosted) {
+			framePosted = true;
+			Choreographer.getInstance().postFrameCallback(frameCallback);
+		}
+	}
+
+	/**
+	 * Wendet alle seit dem letzten Frame gesammelten Verschiebungen,
+	 * Skalierungen und Rotationen auf einmal an. So wird pro Frame höchstens
+	 * einmal neu berechnet und gezeichnet, egal wie viele Touch Events
+	 * dazwischen angekommen sind.
+	 */
+	private void applyPendingInput() {
+		Layer layer = pendingLayer;
+		if (layer == null) {
+			return;
+		}
+		dirtyBox.set(layer.getBoundingBox());
+		layer.posX += pendingDx;
+		layer.posY += pendingDy;
+		layer.totalRotation += pendingRotation;
+
+		/*
+		 * Wir übernehmen den Skalierungsfaktor nicht 1:1 sondern begrenzen ihn
+		 * auf 0.1 - 5 x, um nicht zu kleine oder zu grosse Bilder zu haben.
+		 */
+		layer.scaleFactor = Math.max(MIN_SCALE, Math.min(layer.scaleFactor * pendingScale, MAX_SCALE));
+
+		/*
+		 * Nach dem rotieren, zoomen oder skalieren müssen wir unsere View neu
+		 * zeichnen, allerdings nur dort wo sich die Ebene vorher und nachher
+		 * befindet.
+		 */
+		if (layers.contains(layer)) {
+			layerMoved(layer);
+		}
+
+		frameMonitor.inputApplied(Math.max(0, SystemClock.uptimeMillis() - pendingSinceMillis));
+
+		pendingLayer = null;
+		pendingDx = 0;
+		pendingDy = 0;
+		pendingScale = 1f;
+		pendingRotation = 0;
+		pendingSinceMillis = -1;
+	}
+
 }
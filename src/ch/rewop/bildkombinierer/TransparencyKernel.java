@@ -0,0 +1,109 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Macht hellere Stellen transparent und dunklere Stellen fast nicht, indem
+ * der Alpha Wert aus der Helligkeit des Pixels berechnet wird. Die Farben
+ * bleiben unverändert.
+ * 
+ * Die Gewichtung der Farben für die Helligkeit und eine Kurve, die aus 255 -
+ * Helligkeit den Alpha Wert macht, lassen sich einstellen.
+ */
+public class TransparencyKernel implements BulkPixelKernel {
+
+	/**
+	 * Die Gewichtungen 0.299, 0.587 und 0.114 als Festkommazahlen mit 16 Bit
+	 * Nachkommastellen. Die Summe ergibt genau 1 << 16, Weiss bleibt also
+	 * Weiss.
+	 */
+	private static final int WEIGHT_RED = 19595;
+	private static final int WEIGHT_GREEN = 38470;
+	private static final int WEIGHT_BLUE = 7471;
+
+	/*
+	 * Nicht privat, VectorKernels rechnet mit denselben Werten.
+	 */
+	final int weightRed;
+	final int weightGreen;
+	final int weightBlue;
+
+	/**
+	 * Die kompilierte Alpha Kurve, null wenn der Alpha Wert direkt 255 -
+	 * Helligkeit ist.
+	 */
+	final int[] curve;
+
+	public TransparencyKernel() {
+		weightRed = WEIGHT_RED;
+		weightGreen = WEIGHT_GREEN;
+		weightBlue = WEIGHT_BLUE;
+		curve = null;
+	}
+
+	/**
+	 * @param red
+	 *            die Gewichtungen der Farben, sie werden so normiert, dass
+	 *            ihre Summe 1 ergibt
+	 * @param alphaCurve
+	 *            wird auf 255 - Helligkeit angewendet und ergibt den Alpha
+	 *            Wert
+	 */
+	public TransparencyKernel(double red, double green, double blue, PointOperation... alphaCurve) {
+		double sum = red + green + blue;
+		if (red < 0 || green < 0 || blue < 0 || sum <= 0) {
+			throw new IllegalArgumentException("weights must not be negative and not all 0");
+		}
+		weightRed = (int) Math.round(red / sum * (1 << 16));
+		weightGreen = (int) Math.round(green / sum * (1 << 16));
+		weightBlue = Math.max(0, (1 << 16) - weightRed - weightGreen);
+		curve = alphaCurve.length > 0 ? LookupTableKernel.compile(alphaCurve) : null;
+	}
+
+	@Override
+	public int apply(int argb) {
+		int red = (argb >> 16) & 0xff;
+		int green = (argb >> 8) & 0xff;
+		int blue = argb & 0xff;
+
+		/*
+		 * Wir berechnen einen für das menschliche Auge passenden Grauwert
+		 * (deshalb die unterschiedlichen Gewichtungen der einzelnen Farben -
+		 * Blau zum Beispiel wird vom Auge viel schwächer wahrgenommmen als
+		 * Grün). Das Resultat weicht höchstens um 1 von der Berechnung mit
+		 * double ab.
+		 */
+		int alpha = 255 - ((weightRed * red + weightGreen * green + weightBlue * blue) >> 16);
+		if (curve != null) {
+			alpha = curve[alpha];
+		}
+
+		return (alpha << 24) | (argb & 0x00ffffff);
+	}
+
+	/**
+	 * Dieselbe Berechnung ohne Verzweigungen und Tabellen, damit der JIT die
+	 * Schleife vektorisieren kann. Nur mit einer Alpha Kurve braucht es eine
+	 * Tabelle.
+	 */
+	@Override
+	public void apply(int[] pixels, int from, int to) {
+		int weightRed = this.weightRed;
+		int weightGreen = this.weightGreen;
+		int weightBlue = this.weightBlue;
+		int[] curve = this.curve;
+		if (curve == null) {
+			for (int i = from; i < to; i++) {
+				int argb = pixels[i];
+				int luminance = (weightRed * ((argb >> 16) & 0xff) + weightGreen * ((argb >> 8) & 0xff) + weightBlue
+						* (argb & 0xff)) >> 16;
+				pixels[i] = ((255 - luminance) << 24) | (argb & 0x00ffffff);
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				int argb = pixels[i];
+				int luminance = (weightRed * ((argb >> 16) & 0xff) + weightGreen * ((argb >> 8) & 0xff) + weightBlue
+						* (argb & 0xff)) >> 16;
+				pixels[i] = (curve[255 - luminance] << 24) | (argb & 0x00ffffff);
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package ch.rewop.bildkombinierer;
+
+/**
+ * Wählt zur Laufzeit zwischen den skalaren Kernels und einer Umsetzung mit
+ * der Java Vector API (jdk.incubator.vector) für Helligkeit, Kontrast und
+ * Transparenz. Die Vector API gibt es weder auf Android noch vor Java 16.
+ * Ihre Umsetzung liegt deshalb in desktop/, nicht in src/, und wird nur
+ * geladen, wenn sie im Classpath ist und die JVM mit --add-modules
+ * jdk.incubator.vector läuft, z.B. für Werkzeuge und Benchmarks auf dem
+ * Desktop. Sonst bleiben die skalaren Kernels.
+ * 
+ * Beide Umsetzungen liefern für jeden Pixel dieselben Werte.
+ */
+public final class VectorKernels {
+
+	/**
+	 * Wird von der Umsetzung in desktop/ implementiert.
+	 */
+	interface Backend {
+
+		/**
+		 * Ein Kernel, der die Operationen der Reihe nach auf jeden Farbkanal
+		 * anwendet wie {@link LookupTableKernel}, oder null, wenn nicht alle
+		 * Operationen unterstützt werden.
+		 */
+		BulkPixelKernel points(PointOperation[] operations);
+
+		/**
+		 * Ein Kernel, der wie {@link TransparencyKernel} ohne Alpha Kurve
+		 * rechnet.
+		 */
+		BulkPixelKernel transparency(TransparencyKernel kernel);
+	}
+
+	private static final String BACKEND = "ch.rewop.bildkombinierer.VectorBackend";
+
+	private static final Backend backend = load();
+
+	private VectorKernels() {
+	}
+
+	private static Backend load() {
+		try {
+			return (Backend) Class.forName(BACKEND).getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+
+			/* Die Klasse ist da, aber nicht das Modul jdk.incubator.vector. */
+			return null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ob die Kernels mit der Vector API rechnen.
+	 */
+	public static boolean isAvailable() {
+		return backend != null;
+	}
+
+	/**
+	 * Ein Kernel für die Punktoperationen, mit der Vector API, wenn es sie
+	 * gibt und sie alle Operationen kennt, sonst ein
+	 * {@link LookupTableKernel}.
+	 */
+	public static BulkPixelKernel points(PointOperation... operations) {
+		if (backend != null) {
+			BulkPixelKernel kernel = backend.points(operations);
+			if (kernel != null) {
+				return kernel;
+			}
+		}
+		return new LookupTableKernel(operations);
+	}
+
+	/**
+	 * Der Kernel mit der Vector API, wenn es sie gibt und der Kernel keine
+	 * Alpha Kurve hat, sonst der Kernel selbst.
+	 */
+	public static BulkPixelKernel transparency(TransparencyKernel kernel) {
+		if (backend != null && kernel.curve == null) {
+			return backend.transparency(kernel);
+		}
+		return kernel;
+	}
+}
@@ -0,0 +1,86 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Prüft die Transformation der Ebenen an von Hand berechneten Ecken.
+ */
+public class AffineTest {
+
+	private static final double EPSILON = 1e-4;
+
+	private static void assertMaps(Affine affine, double x, double y, double expectedX, double expectedY) {
+		assertEquals("x of " + x + "," + y, expectedX, affine.mapX(x, y), EPSILON);
+		assertEquals("y of " + x + "," + y, expectedY, affine.mapY(x, y), EPSILON);
+	}
+
+	@Test
+	public void positionOnlyMovesTheLayer() {
+		Affine affine = Affine.forLayer(200, 100, 1, 0, 10, 20);
+		assertMaps(affine, 0, 0, 10, 20);
+		assertMaps(affine, 200, 100, 210, 120);
+	}
+
+	/**
+	 * Skaliert wird um das Zentrum (100, 50), die Ecken rücken also je um die
+	 * halbe Grösse nach aussen.
+	 */
+	@Test
+	public void scaleIsAboutTheCenter() {
+		Affine affine = Affine.forLayer(200, 100, 2, 0, 10, 20);
+		assertMaps(affine, 0, 0, -100 + 10, -50 + 20);
+		assertMaps(affine, 200, 100, 300 + 10, 150 + 20);
+		assertMaps(affine, 100, 50, 110, 70);
+		assertEquals(2, affine.getMaxScale(), EPSILON);
+	}
+
+	/**
+	 * Um 90 Grad im Uhrzeigersinn (y zeigt nach unten), wie Matrix.postRotate:
+	 * (dx, dy) relativ zum Zentrum wird zu (-dy, dx).
+	 */
+	@Test
+	public void rotationIsAboutTheCenterAfterScaling() {
+		Affine affine = Affine.forLayer(200, 100, 2, 90, 10, 20);
+
+		/* (0, 0): skaliert (-100, -50), relativ (-200, -100), gedreht (100, -200). */
+		assertMaps(affine, 0, 0, 200 + 10, -150 + 20);
+		/* (200, 0): skaliert (300, -50), relativ (200, -100), gedreht (100, 200). */
+		assertMaps(affine, 200, 0, 200 + 10, 250 + 20);
+		/* (200, 100): relativ (200, 100), gedreht (-100, 200). */
+		assertMaps(affine, 200, 100, 0 + 10, 250 + 20);
+		assertMaps(affine, 100, 50, 110, 70);
+
+		double[] bounds = affine.mapBounds(0, 0, 200, 100);
+		assertEquals(10, bounds[0], EPSILON);
+		assertEquals(-130, bounds[1], EPSILON);
+		assertEquals(210, bounds[2], EPSILON);
+		assertEquals(270, bounds[3], EPSILON);
+	}
+
+	/**
+	 * Wie in Layer wird das Zentrum auf ganze Pixel abgerundet.
+	 */
+	@Test
+	public void oddSizesRotateAboutTheTruncatedCenter() {
+		Affine affine = Affine.forLayer(201, 101, 1, 180, 0, 0);
+		assertMaps(affine, 100, 50, 100, 50);
+		assertMaps(affine, 0, 0, 200, 100);
+	}
+
+	@Test
+	public void inverseMapsBack() {
+		Affine affine = Affine.forLayer(640, 480, 0.37f, 33.5f, -12.5f, 480);
+		Affine inverse = affine.invert();
+		double[][] points = { { 0, 0 }, { 640, 0 }, { 0, 480 }, { 321.25, 17.5 } };
+		for (double[] point : points) {
+			double x = affine.mapX(point[0], point[1]);
+			double y = affine.mapY(point[0], point[1]);
+			assertMaps(inverse, x, y, point[0], point[1]);
+		}
+		assertMaps(new Affine(affine).preConcat(inverse), 55, 66, 55, 66);
+		assertNull(Affine.forLayer(10, 10, 0, 0, 0, 0).invert());
+	}
+}
@@ -0,0 +1,136 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Vergleicht das Filtern in Streifen mit dem Filtern des ganzen Bildes auf
+ * einmal, so wie es BitmapKernels für die Ebenen im Speicher tut.
+ */
+public class BandProcessorTest {
+
+	private final Random random = new Random(13);
+	private final KernelExecutor serial = new KernelExecutor(1);
+	private final KernelExecutor parallel = new KernelExecutor(4);
+
+	@After
+	public void tearDown() {
+		serial.shutdown();
+		parallel.shutdown();
+	}
+
+	/**
+	 * Liefert die Zeilen aus einem Array und merkt sich, wie viele Zeilen
+	 * höchstens auf einmal verlangt wurden.
+	 */
+	private static class ArraySource implements BandProcessor.RowSource {
+		final int[] pixels;
+		final int width;
+		final int height;
+		int maxRows;
+
+		ArraySource(int[] pixels, int width, int height) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public void readRows(int[] band, int fromRow, int rows) {
+			assertTrue(fromRow >= 0 && fromRow + rows <= height);
+			maxRows = Math.max(maxRows, rows);
+			System.arraycopy(pixels, fromRow * width, band, 0, width * rows);
+		}
+	}
+
+	/**
+	 * Setzt die Streifen wieder zu einem Bild zusammen.
+	 */
+	private static class ArraySink implements BandProcessor.BandSink {
+		final int[] pixels;
+		int nextRow;
+
+		ArraySink(int width, int height) {
+			pixels = new int[width * height];
+		}
+
+		@Override
+		public void writeBand(int[] band, int width, int fromRow, int rows) throws IOException {
+			assertEquals("bands in order", nextRow, fromRow);
+			System.arraycopy(band, 0, pixels, fromRow * width, width * rows);
+			nextRow = fromRow + rows;
+		}
+	}
+
+	private int[] randomImage(int width, int height) {
+		int[] argb = new int[width * height];
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = random.nextInt();
+		}
+		return argb;
+	}
+
+	private void assertBandsMatch(String description, int width, int height) throws IOException {
+		CompiledFilter filter = description != null ? FilterGraph.parse(description).compile() : null;
+		int[] source = randomImage(width, height);
+		int[] whole = source.clone();
+		if (filter != null) {
+			filter.apply(whole, width, height, serial);
+		}
+		int margin = filter != null ? filter.getMargin() : 0;
+
+		for (int bandHeight : new int[] { 1, 7, 64, height + 5 }) {
+			for (KernelExecutor executor : new KernelExecutor[] { serial, parallel }) {
+				ArraySource rows = new ArraySource(source, width, height);
+				ArraySink sink = new ArraySink(width, height);
+				new BandProcessor(filter, bandHeight, executor).process(rows, sink);
+				String message = description + ", bands of " + bandHeight;
+				assertEquals(message, height, sink.nextRow);
+				assertArrayEquals(message, whole, sink.pixels);
+				assertTrue(message, rows.maxRows <= Math.min(height, bandHeight + 2 * margin));
+			}
+		}
+	}
+
+	@Test
+	public void pointFiltersMatchTheWholeImage() throws IOException {
+		assertBandsMatch("brightness=50;contrast=100;transparent", 301, 199);
+		assertBandsMatch(null, 301, 199);
+	}
+
+	@Test
+	public void neighbourhoodFiltersMatchTheWholeImage() throws IOException {
+		assertBandsMatch("blur=1;brightness=50;contrast=100;transparent", 301, 199);
+		assertBandsMatch("gamma=0.7;blur=3;invert;blur=2;transparent=0.2,0.7,0.1,1.5", 173, 211);
+	}
+
+	/**
+	 * Gross genug, dass der Executor auch die Streifen selbst noch aufteilt.
+	 */
+	@Test
+	public void largeBandsMatchWhenSplitAcrossThreads() throws IOException {
+		assertBandsMatch("blur=2;contrast=60", 1030, 300);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bandHeightMustBePositive() {
+		new BandProcessor(null, 0, serial);
+	}
+}
@@ -0,0 +1,269 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Prüft das Zählen und Einhalten des Budgets mit Ebenen, die Bilder mit einem
+ * Cache teilen, so wie die Pipeline Bilder aus dem {@link LayerCache}
+ * liefert.
+ */
+public class BudgetEnforcerTest {
+
+	private static final long MB = 1024 * 1024;
+
+	/**
+	 * Steht für ein Bitmap, verglichen wird nur die Identität.
+	 */
+	private static class Pixels {
+		final long bytes;
+
+		Pixels(long bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	private static class FakeLayer implements BudgetEnforcer.Item {
+		final long fullBytes;
+		final boolean visible;
+		final float scale;
+		Pixels pixels;
+		int reduction = 1;
+
+		FakeLayer(Pixels pixels, boolean visible, float scale) {
+			this.fullBytes = pixels.bytes;
+			this.pixels = pixels;
+			this.visible = visible;
+			this.scale = scale;
+		}
+
+		@Override
+		public Object getPixels() {
+			return pixels;
+		}
+
+		@Override
+		public long getBytes() {
+			return pixels.bytes;
+		}
+
+		@Override
+		public boolean isVisible() {
+			return visible;
+		}
+
+		@Override
+		public float getScale() {
+			return scale;
+		}
+
+		/**
+		 * Wie {@link LayerPyramid#downgrade(int)}: eine neue, kleinere Kopie,
+		 * das bisherige Bild bleibt, wo es sonst noch liegt.
+		 */
+		@Override
+		public boolean downgrade(int reduction) {
+			if (reduction <= this.reduction) {
+				return false;
+			}
+			this.reduction = reduction;
+			pixels = new Pixels(fullBytes / reduction / reduction);
+			return true;
+		}
+	}
+
+	/**
+	 * Ein LRU Cache, der wie {@link LayerCache} beim Verkleinern nach seiner
+	 * ganzen Grösse trimmt, also auch geteilte Bilder verdrängt.
+	 */
+	private static class FakeCache implements BudgetEnforcer.Cache {
+		final List<Pixels> entries = new ArrayList<Pixels>();
+		final long maxBytes;
+
+		FakeCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		void put(Pixels pixels) {
+			entries.add(pixels);
+			trimToSize(maxBytes);
+		}
+
+		long size() {
+			long bytes = 0;
+			for (Pixels pixels : entries) {
+				bytes += pixels.bytes;
+			}
+			return bytes;
+		}
+
+		void trimToSize(long bytes) {
+			while (size() > bytes) {
+				entries.remove(0);
+			}
+		}
+
+		private long sharedBytes(Set<Object> shared) {
+			long bytes = 0;
+			for (Pixels pixels : entries) {
+				if (shared.contains(pixels)) {
+					bytes += pixels.bytes;
+				}
+			}
+			return bytes;
+		}
+
+		@Override
+		public long getBytes(Set<Object> shared) {
+			return size() - sharedBytes(shared);
+		}
+
+		@Override
+		public void trimTo(long bytes, Set<Object> shared) {
+			trimToSize(bytes + sharedBytes(shared));
+		}
+	}
+
+	private static class FakePool implements BudgetEnforcer.Cache {
+		long bytes;
+
+		@Override
+		public long getBytes(Set<Object> shared) {
+			return bytes;
+		}
+
+		@Override
+		public void trimTo(long bytes, Set<Object> shared) {
+			this.bytes = Math.min(this.bytes, bytes);
+		}
+	}
+
+	private final FakePool pool = new FakePool();
+	private final FakeCache cache = new FakeCache(24 * MB);
+	private final FakeCache levels = new FakeCache(16 * MB);
+	private final BudgetEnforcer enforcer = new BudgetEnforcer(Arrays.<BudgetEnforcer.Cache> asList(pool),
+			Arrays.<BudgetEnforcer.Cache> asList(levels, cache));
+	private final List<FakeLayer> layers = new ArrayList<FakeLayer>();
+
+	/**
+	 * Eine neue Ebene mit einem Bild, das auch im Cache liegt.
+	 */
+	private FakeLayer addLayer(long bytes, boolean visible, float scale) {
+		Pixels pixels = new Pixels(bytes);
+		cache.put(pixels);
+		FakeLayer layer = new FakeLayer(pixels, visible, scale);
+		layers.add(layer);
+		return layer;
+	}
+
+	private long distinctBytes() {
+		Set<Object> seen = BudgetEnforcer.newIdentitySet();
+		long bytes = pool.bytes;
+		for (FakeLayer layer : layers) {
+			if (seen.add(layer.pixels)) {
+				bytes += layer.pixels.bytes;
+			}
+		}
+		for (FakeCache each : Arrays.asList(cache, levels)) {
+			for (Pixels pixels : each.entries) {
+				if (seen.add(pixels)) {
+					bytes += pixels.bytes;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	@Test
+	public void sharedBitmapsCountOnce() {
+		addLayer(4 * MB, true, 1);
+		addLayer(4 * MB, true, 1);
+		cache.put(new Pixels(2 * MB));
+		levels.put(new Pixels(1 * MB));
+		pool.bytes = 3 * MB;
+
+		assertEquals(4 * MB + 4 * MB + 2 * MB + 1 * MB + 3 * MB, enforcer.getUsedBytes(layers));
+		assertEquals(distinctBytes(), enforcer.getUsedBytes(layers));
+	}
+
+	@Test
+	public void cachesAreTrimmedBeforeLayersAreDowngraded() {
+		addLayer(8 * MB, false, 1);
+		cache.put(new Pixels(8 * MB));
+		levels.put(new Pixels(8 * MB));
+		pool.bytes = 8 * MB;
+
+		assertEquals(0, enforcer.enforce(layers, 20 * MB));
+		assertEquals(1, layers.get(0).reduction);
+		assertEquals(0, pool.bytes);
+		assertTrue(enforcer.getUsedBytes(layers) <= 20 * MB);
+	}
+
+	@Test
+	public void downgradedBitmapIsDroppedFromTheCache() {
+		FakeLayer layer = addLayer(16 * MB, false, 1);
+		assertEquals(1, enforcer.enforce(layers, 8 * MB));
+		assertEquals(BudgetEnforcer.OFFSCREEN_REDUCTION, layer.reduction);
+		assertEquals(MB, enforcer.getUsedBytes(layers));
+	}
+
+	@Test
+	public void usageStaysWithinBudgetWhileAddingLayers() {
+		long budget = 64 * MB;
+		for (int i = 0; i < 60; i++) {
+
+			/* Abwechselnd ausserhalb des Displays und klein gezeichnet. */
+			addLayer(4 * MB, i % 2 == 0, 0.2f + (i % 7) * 0.05f);
+			levels.put(new Pixels(MB));
+			pool.bytes += MB / 2;
+
+			enforcer.enforce(layers, budget);
+			long used = enforcer.getUsedBytes(layers);
+			assertEquals(distinctBytes(), used);
+			assertTrue("layer " + i + ": " + used / MB + " MB", used <= budget);
+		}
+
+		/* Das Budget wurde erreicht, und es wurde herabgestuft. */
+		int downgraded = 0;
+		for (FakeLayer layer : layers) {
+			if (layer.reduction > 1) {
+				downgraded++;
+			}
+		}
+		assertTrue(downgraded > 0);
+	}
+
+	@Test
+	public void largeVisibleLayersAreKept() {
+		for (int i = 0; i < 10; i++) {
+			addLayer(8 * MB, true, 1);
+		}
+		assertEquals(0, enforcer.enforce(layers, 32 * MB));
+		for (FakeLayer layer : layers) {
+			assertEquals(1, layer.reduction);
+		}
+
+		/* Die Caches halten danach nur noch geteilte Bilder. */
+		Set<Object> pixels = BudgetEnforcer.newIdentitySet();
+		BudgetEnforcer.getItemBytes(layers, pixels);
+		assertEquals(0, enforcer.getCacheBytes(pixels));
+	}
+
+	@Test
+	public void offscreenLayersGoFirst() {
+		FakeLayer small = addLayer(4 * MB, true, 0.3f);
+		FakeLayer offscreen = addLayer(4 * MB, false, 1);
+		FakeLayer smaller = addLayer(4 * MB, true, 0.2f);
+		assertEquals(Arrays.asList(offscreen, smaller, small), BudgetEnforcer.candidates(layers));
+		assertTrue(BudgetEnforcer.candidates(Collections.singletonList(new FakeLayer(new Pixels(MB), true, 1)))
+				.isEmpty());
+	}
+}
@@ -0,0 +1,180 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Vergleicht die übersetzten Filter mit dem Anwenden jedes Schrittes für sich,
+ * ein ganzer Durchgang pro Schritt, so wie der Graph es verspricht.
+ */
+public class FilterGraphTest {
+
+	private final Random random = new Random(11);
+	private final KernelExecutor serial = new KernelExecutor(1);
+	private final KernelExecutor parallel = new KernelExecutor(4);
+
+	@After
+	public void tearDown() {
+		serial.shutdown();
+		parallel.shutdown();
+	}
+
+	private int[] randomImage(int width, int height) {
+		int[] argb = new int[width * height];
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = random.nextInt();
+		}
+		return argb;
+	}
+
+	private static FilterGraph graph(Object... steps) {
+		FilterGraph graph = new FilterGraph();
+		for (Object step : steps) {
+			if (step instanceof PointOperation) {
+				graph.point((PointOperation) step);
+			} else if (step instanceof PixelKernel) {
+				graph.pixel((PixelKernel) step);
+			} else {
+				graph.neighbourhood((NeighbourhoodOperation) step);
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Wendet die Schritte der Reihe nach einzeln auf eine Kopie an.
+	 */
+	private static int[] naive(int[] source, int width, int height, Object... steps) {
+		int[] pixels = source.clone();
+		for (Object step : steps) {
+			if (step instanceof PointOperation) {
+				PointOperation operation = (PointOperation) step;
+				for (int i = 0; i < pixels.length; i++) {
+					int argb = pixels[i];
+					int red = PixelEngine.clamp(operation.apply((argb >> 16) & 0xff));
+					int green = PixelEngine.clamp(operation.apply((argb >> 8) & 0xff));
+					int blue = PixelEngine.clamp(operation.apply(argb & 0xff));
+					pixels[i] = (argb & 0xff000000) | (red << 16) | (green << 8) | blue;
+				}
+			} else if (step instanceof PixelKernel) {
+				for (int i = 0; i < pixels.length; i++) {
+					pixels[i] = ((PixelKernel) step).apply(pixels[i]);
+				}
+			} else {
+				int[] dst = new int[pixels.length];
+				((NeighbourhoodOperation) step).apply(pixels, dst, width, height, 0, height);
+				pixels = dst;
+			}
+		}
+		return pixels;
+	}
+
+	private static int[] compiled(int[] source, int width, int height, KernelExecutor executor, Object... steps) {
+		int[] pixels = source.clone();
+		graph(steps).compile().apply(pixels, width, height, executor);
+		return pixels;
+	}
+
+	@Test
+	public void pointOperationsAreFusedIntoOneTable() {
+		int width = 64;
+		int height = 48;
+		int[] source = randomImage(width, height);
+		Object[] steps = { PointOperations.brightness(50), PointOperations.contrast(100), PointOperations.gamma(0.8),
+				PointOperations.invert(), PointOperations.threshold(90) };
+		CompiledFilter filter = graph(steps).compile();
+		assertEquals(1, filter.getPasses());
+		assertArrayEquals(naive(source, width, height, steps), compiled(source, width, height, serial, steps));
+	}
+
+	@Test
+	public void pointAndPixelRunsAreFusedIntoOnePass() {
+		int width = 64;
+		int height = 48;
+		int[] source = randomImage(width, height);
+		Object[] steps = { PointOperations.brightness(-30), new TransparencyKernel(0.2, 0.7, 0.1),
+				PointOperations.contrast(40), PointOperations.invert(), new TransparencyKernel() };
+		assertEquals(1, graph(steps).compile().getPasses());
+		assertArrayEquals(naive(source, width, height, steps), compiled(source, width, height, serial, steps));
+	}
+
+	@Test
+	public void kernelsAfterNeighbourhoodOperationsMatch() {
+		int width = 80;
+		int height = 60;
+		int[] source = randomImage(width, height);
+		Object[] steps = { PointOperations.gamma(1.5), BoxBlur.horizontal(2), PointOperations.brightness(50),
+				PointOperations.contrast(100), new TransparencyKernel(), BoxBlur.vertical(3), PointOperations.invert() };
+		assertEquals(3, graph(steps).compile().getPasses());
+		assertArrayEquals(naive(source, width, height, steps), compiled(source, width, height, serial, steps));
+
+		/* Die Beschreibung ergibt denselben Filter. */
+		Object[] described = { BoxBlur.horizontal(1), BoxBlur.vertical(1), PointOperations.brightness(50),
+				PointOperations.contrast(100), new TransparencyKernel() };
+		int[] pixels = source.clone();
+		FilterGraph.parse("blur=1;brightness=50;contrast=100;transparent").compile()
+				.apply(pixels, width, height, serial);
+		assertArrayEquals(naive(source, width, height, described), pixels);
+	}
+
+	/**
+	 * Gross genug für vier Streifen, mit einer Höhe, die nicht aufgeht. Die
+	 * Weichzeichner lesen an den Rändern der Streifen Zeilen, die ein anderer
+	 * Thread bearbeitet.
+	 */
+	@Test
+	public void bandsMatchASingleThread() {
+		int width = 509;
+		int height = 613;
+		int[] source = randomImage(width, height);
+		Object[] steps = { BoxBlur.vertical(4), PointOperations.brightness(20), BoxBlur.horizontal(3),
+				BoxBlur.vertical(1), new TransparencyKernel() };
+		int[] expected = naive(source, width, height, steps);
+		assertArrayEquals(expected, compiled(source, width, height, serial, steps));
+		assertArrayEquals(expected, compiled(source, width, height, parallel, steps));
+	}
+
+	/**
+	 * Eine Kachel mit {@link CompiledFilter#getMargin()} Rand, so wie
+	 * LayerExporter sie filtert, ergibt innen dieselben Pixel wie das ganze
+	 * Bild. Am Bildrand wird der Rand abgeschnitten.
+	 */
+	@Test
+	public void tileWithMarginMatchesTheWholeImage() {
+		int width = 300;
+		int height = 200;
+		int[] source = randomImage(width, height);
+		Object[] steps = { BoxBlur.horizontal(2), BoxBlur.vertical(2), PointOperations.contrast(60),
+				BoxBlur.horizontal(1), BoxBlur.vertical(3), new TransparencyKernel() };
+		CompiledFilter filter = graph(steps).compile();
+		assertEquals(8, filter.getMargin());
+		int[] whole = compiled(source, width, height, serial, steps);
+
+		int[][] tiles = { { 0, 0, 64, 64 }, { 100, 70, 64, 64 }, { 236, 136, 64, 64 }, { 5, 150, 120, 50 } };
+		for (int[] tile : tiles) {
+			int left = Math.max(0, tile[0] - filter.getMargin());
+			int top = Math.max(0, tile[1] - filter.getMargin());
+			int right = Math.min(width, tile[0] + tile[2] + filter.getMargin());
+			int bottom = Math.min(height, tile[1] + tile[3] + filter.getMargin());
+			int regionWidth = right - left;
+			int regionHeight = bottom - top;
+			int[] region = new int[regionWidth * regionHeight];
+			for (int y = 0; y < regionHeight; y++) {
+				System.arraycopy(source, (top + y) * width + left, region, y * regionWidth, regionWidth);
+			}
+			filter.apply(region, regionWidth, regionHeight, serial);
+
+			for (int y = tile[1]; y < tile[1] + tile[3]; y++) {
+				for (int x = tile[0]; x < tile[0] + tile[2]; x++) {
+					int actual = region[(y - top) * regionWidth + (x - left)];
+					assertEquals("pixel " + x + "," + y, whole[y * width + x], actual);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Vergleicht Farbe und Abweichung der Maske mit einer direkten Berechnung in
+ * double und prüft, dass Extrahieren und Erweitern verlustfrei sind, wo sie
+ * es sein müssen.
+ */
+public class LayerMaskTest {
+
+	private final Random random = new Random(3);
+
+	private int[] randomImage(int count) {
+		int[] argb = new int[count];
+		for (int i = 0; i < count; i++) {
+			argb[i] = random.nextInt();
+		}
+		return argb;
+	}
+
+	/**
+	 * Die Abweichung der mit Alpha multiplizierten Farben, direkt nach der
+	 * Definition.
+	 */
+	private static double referenceError(int[] argb, int count, int tint) {
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			double alpha = (argb[i] >>> 24) / 255.0;
+			for (int shift = 0; shift <= 16; shift += 8) {
+				double difference = alpha * (((argb[i] >> shift) & 0xff) - ((tint >> shift) & 0xff));
+				sum += difference * difference;
+			}
+		}
+		return Math.sqrt(sum / (3.0 * count));
+	}
+
+	/**
+	 * Graue Bleistiftlinien auf leicht verrauschtem, weissem Papier.
+	 */
+	private int[] sketch(int width, int height) {
+		int[] argb = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				boolean line = (x + 2 * y) % 37 < 2 || Math.abs(x - y) < 2;
+				int value = line ? 60 + random.nextInt(20) : 250 + random.nextInt(6);
+				argb[y * width + x] = 0xff000000 | value << 16 | value << 8 | value;
+			}
+		}
+		return argb;
+	}
+
+	@Test
+	public void tintIsTheAlphaWeightedMean() {
+		int[] argb = { 0xff000000, 0x00ffffff, 0xffc8640a, 0x80ffffff };
+		int count = argb.length;
+
+		/* Rot: (255 * 0 + 255 * 200 + 128 * 255) / 638 = 131. */
+		int tint = LayerMask.estimateTint(argb, count);
+		assertEquals(0xff000000 | 131 << 16 | 91 << 8 | 55, tint);
+		assertEquals(0xff000000, LayerMask.estimateTint(new int[] { 0x00ff00ff, 0x0000ff00 }, 2));
+	}
+
+	@Test
+	public void errorMatchesTheDefinition() {
+		for (int round = 0; round < 20; round++) {
+			int count = 1 + random.nextInt(5000);
+			int[] argb = randomImage(count);
+			int tint = round % 2 == 0 ? LayerMask.estimateTint(argb, count) : random.nextInt();
+			assertEquals(referenceError(argb, count, tint), LayerMask.error(argb, count, tint), 1e-9);
+		}
+		assertEquals(0, LayerMask.error(new int[0], 0, 0xff000000), 0);
+	}
+
+	@Test
+	public void singleColourHasNoError() {
+		int count = 10000;
+		int[] argb = new int[count];
+		for (int i = 0; i < count; i++) {
+			argb[i] = random.nextInt(256) << 24 | 0x2a3b4c;
+		}
+		int tint = LayerMask.estimateTint(argb, count);
+		assertEquals(0xff2a3b4c, tint);
+		assertEquals(0, LayerMask.error(argb, count, tint), 0);
+
+		/* Durchsichtige Pixel in anderer Farbe zählen nicht. */
+		argb[0] = 0x00ff0000;
+		assertEquals(0, LayerMask.error(argb, count, tint), 0);
+	}
+
+	@Test
+	public void extractAndExpandRoundTrip() {
+		int count = 4096;
+		int[] argb = randomImage(count);
+		byte[] mask = new byte[count];
+		LayerMask.extract(argb, mask, count);
+
+		int tint = 0xff123456;
+		int[] expanded = new int[count];
+		LayerMask.expand(mask, tint, expanded, count);
+		int[] expected = new int[count];
+		for (int i = 0; i < count; i++) {
+			assertEquals(argb[i] >>> 24, expanded[i] >>> 24);
+			expected[i] = argb[i] & 0xff000000 | 0x123456;
+		}
+		assertArrayEquals(expected, expanded);
+
+		/* Ein einfarbiges Bild kommt unverändert zurück. */
+		int[] again = new int[count];
+		byte[] second = new byte[count];
+		LayerMask.extract(expanded, second, count);
+		LayerMask.expand(second, LayerMask.estimateTint(expanded, count), again, count);
+		assertArrayEquals(expanded, again);
+	}
+
+	@Test
+	public void sketchFilterResultIsBelowTheMaskThreshold() {
+		int width = 200;
+		int height = 150;
+		int[] argb = sketch(width, height);
+		FilterGraph.parse("brightness=50;contrast=100;transparent").compile()
+				.apply(argb, width, height, new KernelExecutor(1));
+		int count = width * height;
+		double error = LayerMask.error(argb, count, LayerMask.estimateTint(argb, count));
+		assertTrue("error " + error, error < 4);
+
+		int[] photo = randomImage(count);
+		for (int i = 0; i < count; i++) {
+			photo[i] |= 0xff000000;
+		}
+		assertTrue(LayerMask.error(photo, count, LayerMask.estimateTint(photo, count)) > 40);
+	}
+}
@@ -0,0 +1,88 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Die parallel komprimierten Blöcke müssen zusammen ein gültiges PNG ergeben,
+ * das dieselben Pixel enthält wie das Bild des seriellen Encoders.
+ */
+public class ParallelPngEncoderTest {
+
+	private static int[] image(int width, int height) {
+		int[] image = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int noise = (x * 7919 + y * 104729) * 31 >>> 8;
+				image[y * width + x] = ((x + y) % 256) << 24 | (noise & 0xff) << 16 | (x & 0xff) << 8 | (y & 0xff);
+			}
+		}
+		return image;
+	}
+
+	private static int[] decode(byte[] png) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+		int width = decoded.getWidth();
+		int height = decoded.getHeight();
+		return decoded.getRGB(0, 0, width, height, null, 0, width);
+	}
+
+	private static byte[] encodeParallel(int[] image, int width, int height, int parallelism, int band)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelPngEncoder png = new ParallelPngEncoder(Channels.newChannel(out), width, height, parallelism);
+		try {
+			for (int top = 0; top < height; top += band) {
+				png.writeRows(image, top * width, width, Math.min(band, height - top));
+			}
+			png.finish();
+		} finally {
+			png.abort();
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void syncFlushIsAvailableOnTheJvm() {
+		assertTrue(ParallelPngEncoder.isSupported());
+	}
+
+	@Test
+	public void parallelBlocksDecodeToTheSamePixels() throws IOException {
+		/* Viele Blöcke von 128 KB und ein unvollständiger letzter. */
+		int width = 700;
+		int height = 601;
+		int[] image = image(width, height);
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		PngEncoder png = new PngEncoder(serial, width, height);
+		png.writeRows(image, 0, width, height);
+		png.finish();
+		int[] expected = decode(serial.toByteArray());
+		assertEquals(width * height, expected.length);
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != image[i]) {
+				assertEquals("pixel " + i + " serial", image[i], expected[i]);
+			}
+		}
+
+		for (int parallelism = 1; parallelism <= 4; parallelism++) {
+			int[] actual = decode(encodeParallel(image, width, height, parallelism, 97));
+			for (int i = 0; i < expected.length; i++) {
+				if (expected[i] != actual[i]) {
+					assertEquals("pixel " + i + " with " + parallelism + " threads", expected[i], actual[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Vergleicht die Tabellen und die Festkomma-Helligkeit mit den früheren
+ * Berechnungen mit double (doBrightness, doContrast und makeTransparent).
+ */
+public class PointOperationsTest {
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	private static int brightness(int channel, int value) {
+		return clamp(channel + value);
+	}
+
+	private static int contrast(int channel, double value) {
+		double contrast = Math.pow((100 + value) / 100, 2);
+		return clamp((int) (((((channel / 255.0) - 0.5) * contrast) + 0.5) * 255.0));
+	}
+
+	private static int transparency(int red, int green, int blue) {
+		return 255 - (int) (0.299 * red + 0.587 * green + 0.114 * blue);
+	}
+
+	private static void assertWithinOne(String message, int expected, int actual) {
+		assertTrue(message + ": expected " + expected + " but was " + actual, Math.abs(expected - actual) <= 1);
+	}
+
+	@Test
+	public void brightnessAndContrastMatchDoubleMath() {
+		int[] brightnesses = { -100, -50, 0, 50, 100 };
+		double[] contrasts = { -50, 0, 50, 100 };
+		for (int brightness : brightnesses) {
+			for (double contrast : contrasts) {
+				LookupTableKernel kernel = new LookupTableKernel(PointOperations.brightness(brightness),
+						PointOperations.contrast(contrast));
+				for (int value = 0; value < 256; value++) {
+					int expected = contrast(brightness(value, brightness), contrast);
+					int argb = kernel.apply(0x80000000 | (value << 16) | (value << 8) | value);
+					String message = "brightness " + brightness + ", contrast " + contrast + ", value " + value;
+					assertWithinOne(message, expected, (argb >> 16) & 0xff);
+					assertWithinOne(message, expected, (argb >> 8) & 0xff);
+					assertWithinOne(message, expected, argb & 0xff);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void channelsAreIndependentAndAlphaIsKept() {
+		LookupTableKernel kernel = new LookupTableKernel(PointOperations.invert());
+		assertEquals(0x12fe01ab, kernel.apply(0x1201fe54));
+	}
+
+	@Test
+	public void otherOperationsMatchTheirFormulas() {
+		int[] gamma = LookupTableKernel.compile(PointOperations.gamma(2.2));
+		int[] invert = LookupTableKernel.compile(PointOperations.invert());
+		int[] threshold = LookupTableKernel.compile(PointOperations.threshold(128));
+		for (int value = 0; value < 256; value++) {
+			assertWithinOne("gamma " + value, (int) Math.round(255.0 * Math.pow(value / 255.0, 2.2)), gamma[value]);
+			assertEquals(255 - value, invert[value]);
+			assertEquals(value < 128 ? 0 : 255, threshold[value]);
+		}
+	}
+
+	/**
+	 * Jede Operation wird begrenzt, bevor die nächste folgt, wie bei den
+	 * früheren Filtern, die je ein neues Bitmap geschrieben haben.
+	 */
+	@Test
+	public void chainClampsAfterEachOperation() {
+		int[] table = LookupTableKernel.compile(PointOperations.brightness(100), PointOperations.brightness(-100));
+		assertEquals(155, table[255]);
+		assertEquals(0, table[0]);
+	}
+
+	@Test
+	public void fixedPointTransparencyMatchesDoubleMathForAllColours() {
+		TransparencyKernel kernel = new TransparencyKernel();
+		for (int rgb = 0; rgb < 1 << 24; rgb++) {
+			int red = rgb >> 16;
+			int green = (rgb >> 8) & 0xff;
+			int blue = rgb & 0xff;
+			int argb = kernel.apply(0xff000000 | rgb);
+			int expected = transparency(red, green, blue);
+			int actual = argb >>> 24;
+			if (Math.abs(expected - actual) > 1) {
+				assertWithinOne("rgb " + Integer.toHexString(rgb), expected, actual);
+			}
+			if ((argb & 0xffffff) != rgb) {
+				assertEquals(rgb, argb & 0xffffff);
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Prüft, dass {@link BulkPixelKernel#apply(int[], int, int)} für jeden Pixel
+ * dasselbe liefert wie {@link PixelKernel#apply(int)}, und nur die Pixel im
+ * Bereich verändert.
+ */
+public class RangeKernelTest {
+
+	private final Random random = new Random(17);
+
+	/**
+	 * Ein Kernel ohne Bereichs-Methode, damit die Kette auch ihren Weg Pixel
+	 * für Pixel nimmt.
+	 */
+	private static final PixelKernel SWAP_RED_BLUE = new PixelKernel() {
+		@Override
+		public int apply(int argb) {
+			return (argb & 0xff00ff00) | ((argb >> 16) & 0xff) | ((argb & 0xff) << 16);
+		}
+	};
+
+	private int[] randomImage(int count) {
+		int[] argb = new int[count];
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = random.nextInt();
+		}
+
+		/* Die Extremwerte kommen sonst kaum vor. */
+		argb[0] = 0;
+		argb[1] = 0xffffffff;
+		argb[2] = 0x00ffffff;
+		argb[3] = 0xff000000;
+		return argb;
+	}
+
+	private void assertRangeMatchesPixels(String message, BulkPixelKernel kernel) {
+		int count = 5000;
+		int[] source = randomImage(count);
+		int[] expected = new int[count];
+		for (int i = 0; i < count; i++) {
+			expected[i] = kernel.apply(source[i]);
+		}
+
+		int[] whole = source.clone();
+		kernel.apply(whole, 0, count);
+		assertArrayEquals(message, expected, whole);
+
+		/* Bereiche mit ungeraden Grenzen, auch kürzer als ein Block. */
+		int[][] ranges = { { 0, 1 }, { 3, 7 }, { 1, 1030 }, { 999, 4321 }, { 4990, 5000 }, { 17, 17 } };
+		for (int[] range : ranges) {
+			int[] pixels = source.clone();
+			kernel.apply(pixels, range[0], range[1]);
+			for (int i = 0; i < count; i++) {
+				boolean inside = i >= range[0] && i < range[1];
+				assertEquals(message + ", range " + range[0] + "-" + range[1] + ", pixel " + i,
+						inside ? expected[i] : source[i], pixels[i]);
+			}
+		}
+	}
+
+	@Test
+	public void lookupTables() {
+		assertRangeMatchesPixels("brightness, contrast", new LookupTableKernel(PointOperations.brightness(50),
+				PointOperations.contrast(100)));
+		assertRangeMatchesPixels("gamma, invert, threshold", new LookupTableKernel(PointOperations.gamma(0.6),
+				PointOperations.invert(), PointOperations.threshold(100)));
+	}
+
+	@Test
+	public void transparency() {
+		assertRangeMatchesPixels("default", new TransparencyKernel());
+		assertRangeMatchesPixels("weights", new TransparencyKernel(1, 2, 3));
+		assertRangeMatchesPixels("curve", new TransparencyKernel(0.299, 0.587, 0.114, PointOperations.gamma(1.8)));
+	}
+
+	@Test
+	public void chains() {
+		LookupTableKernel lut = new LookupTableKernel(PointOperations.brightness(-40), PointOperations.contrast(60));
+		assertRangeMatchesPixels("bulk", new KernelChain(lut, new TransparencyKernel()));
+		assertRangeMatchesPixels("mixed", new KernelChain(lut, SWAP_RED_BLUE, new TransparencyKernel(2, 1, 1)));
+		assertRangeMatchesPixels("nested", new KernelChain(new KernelChain(lut, lut), new TransparencyKernel()));
+	}
+}
@@ -0,0 +1,130 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Vergleicht die Abfragen des Gitters mit einem Durchsuchen aller Einträge.
+ */
+public class SpatialGridTest {
+
+	private static final int COUNT = 2000;
+
+	private final Random random = new Random(7);
+	private final float[][] boxes = new float[COUNT][];
+
+	/**
+	 * Das Gitter vergleicht die Einträge nach Identität, jeder Eintrag ist
+	 * deshalb ein eigenes Objekt.
+	 */
+	private static class Item {
+		final int id;
+
+		Item(int id) {
+			this.id = id;
+		}
+	}
+
+	private final Item[] items = new Item[COUNT];
+	private final SpatialGrid<Item> grid = new SpatialGrid<Item>(256);
+
+	private void place(int item) {
+		float width = 20 + random.nextFloat() * 600;
+		float height = 20 + random.nextFloat() * 600;
+		float left = -2000 + random.nextFloat() * 6000;
+		float top = -2000 + random.nextFloat() * 6000;
+		boxes[item] = new float[] { left, top, left + width, top + height };
+		grid.update(items[item], left, top, left + width, top + height);
+	}
+
+	private void placeAll() {
+		for (int item = 0; item < COUNT; item++) {
+			items[item] = new Item(item);
+			place(item);
+		}
+	}
+
+	private static Set<Integer> ids(List<Item> result) {
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Item item : result) {
+			ids.add(item.id);
+		}
+		return ids;
+	}
+
+	private Set<Integer> bruteForceIntersecting(float left, float top, float right, float bottom) {
+		Set<Integer> result = new HashSet<Integer>();
+		for (int item = 0; item < COUNT; item++) {
+			float[] box = boxes[item];
+			if (box != null && box[0] < right && left < box[2] && box[1] < bottom && top < box[3]) {
+				result.add(item);
+			}
+		}
+		return result;
+	}
+
+	private void assertQueriesMatch() {
+		List<Item> result = new ArrayList<Item>();
+		for (int i = 0; i < 500; i++) {
+			float left = -3000 + random.nextFloat() * 8000;
+			float top = -3000 + random.nextFloat() * 8000;
+			float size = i % 50 == 0 ? 100000 : random.nextFloat() * 1500;
+			result.clear();
+			grid.findIntersecting(left, top, left + size, top + size, result);
+			assertEquals("no duplicates", ids(result).size(), result.size());
+			assertEquals(bruteForceIntersecting(left, top, left + size, top + size), ids(result));
+
+			result.clear();
+			grid.findContaining(left, top, result);
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int item = 0; item < COUNT; item++) {
+				float[] box = boxes[item];
+				if (box != null && box[0] <= left && left < box[2] && box[1] <= top && top < box[3]) {
+					expected.add(item);
+				}
+			}
+			assertEquals(expected, ids(result));
+		}
+	}
+
+	@Test
+	public void queriesMatchBruteForce() {
+		placeAll();
+		assertQueriesMatch();
+	}
+
+	@Test
+	public void queriesMatchAfterMovingAndRemoving() {
+		placeAll();
+		for (int item = 0; item < COUNT; item += 3) {
+			place(item);
+		}
+		for (int item = 1; item < COUNT; item += 7) {
+			grid.remove(items[item]);
+			boxes[item] = null;
+		}
+		assertQueriesMatch();
+	}
+
+	@Test
+	public void hugeEntriesAreFoundEverywhere() {
+		Item huge = new Item(-1);
+		grid.update(huge, -1e6f, -1e6f, 1e6f, 1e6f);
+		List<Item> result = new ArrayList<Item>();
+		grid.findContaining(123456, -98765, result);
+		assertTrue(result.contains(huge));
+		grid.remove(huge);
+		result.clear();
+		grid.findIntersecting(-1e5f, -1e5f, 1e5f, 1e5f, result);
+		assertTrue(result.isEmpty());
+		assertEquals(0, grid.size());
+	}
+}
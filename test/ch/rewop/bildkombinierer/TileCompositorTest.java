@@ -0,0 +1,197 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Prüft das Zeichnen einzelner Pixel an den Rändern und dass ein in Kacheln
+ * gezeichnetes Bild, so wie LayerExporter es berechnet, genau dem in einem
+ * Stück gezeichneten entspricht.
+ */
+public class TileCompositorTest {
+
+	private final Random random = new Random(5);
+	private final KernelExecutor serial = new KernelExecutor(1);
+
+	@After
+	public void tearDown() {
+		serial.shutdown();
+	}
+
+	private int[] randomImage(int width, int height, boolean opaque) {
+		int[] argb = new int[width * height];
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = opaque ? 0xff000000 | random.nextInt() : random.nextInt();
+		}
+		return argb;
+	}
+
+	@Test
+	public void identityCopiesOpaquePixels() {
+		int width = 37;
+		int height = 23;
+		int[] src = randomImage(width, height, true);
+		int[] dst = randomImage(width, height, false);
+		TileCompositor.composite(src, width, height, new Affine(), dst, 0, width, width, height);
+		assertArrayEquals(src, dst);
+	}
+
+	@Test
+	public void identityCopiesTranslucentPixelsOntoTransparent() {
+		int width = 37;
+		int height = 23;
+		int[] src = randomImage(width, height, false);
+		src[0] &= 0x00ffffff;
+		int[] dst = new int[width * height];
+		TileCompositor.composite(src, width, height, new Affine(), dst, 0, width, width, height);
+		for (int i = 0; i < src.length; i++) {
+			assertEquals("pixel " + i, (src[i] >>> 24) == 0 ? 0 : src[i], dst[i]);
+		}
+	}
+
+	@Test
+	public void integerTranslationShiftsIntoTheRegion() {
+		int[] src = randomImage(4, 3, true);
+		int stride = 10;
+		int[] dst = new int[stride * 8];
+		TileCompositor.composite(src, 4, 3, new Affine().postTranslate(2, 1), dst, stride, stride, 6, 4);
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++) {
+				assertEquals(src[y * 4 + x], dst[stride + (y + 1) * stride + x + 2]);
+			}
+		}
+		assertEquals(0, dst[stride + 1]);
+
+		/* Was über den Ausschnitt hinausragt, wird abgeschnitten. */
+		assertEquals(0, dst[stride + 4 * stride + 2]);
+	}
+
+	@Test
+	public void sampleFadesOutAtTheEdge() {
+		int[] src = { 0xff204060, 0xff204060, 0xff204060, 0xff204060 };
+
+		/* Genau auf einem Pixelzentrum. */
+		assertEquals(0xff204060, TileCompositor.sample(src, 2, 2, 1, 1));
+
+		/* Halb ausserhalb: halbe Deckkraft, aber keine dunklere Farbe. */
+		assertEquals(0x80204060, TileCompositor.sample(src, 2, 2, -0.5, 0));
+		assertEquals(0x80204060, TileCompositor.sample(src, 2, 2, 1, 1.5));
+
+		/* Ganz ausserhalb. */
+		assertEquals(0, TileCompositor.sample(src, 2, 2, -1, 0));
+		assertEquals(0, TileCompositor.sample(src, 2, 2, 0, 2));
+
+		/* Transparente Nachbarn färben nicht ab. */
+		int[] mixed = { 0xffff0000, 0x0000ff00 };
+		assertEquals(0x80ff0000, TileCompositor.sample(mixed, 2, 1, 0.5, 0));
+	}
+
+	@Test
+	public void blendIsSourceOver() {
+		assertEquals(0xff123456, TileCompositor.blend(0xff123456, 0xffabcdef));
+		assertEquals(0x40123456, TileCompositor.blend(0x40123456, 0x00abcdef));
+		assertEquals(0xff00ff00, TileCompositor.blend(0x00ff0000, 0xff00ff00));
+		assertEquals(0xff808080, TileCompositor.blend(0x80ffffff, 0xff000000));
+
+		/* Halb über halb: 0.5 + 0.5 * 0.5 Deckkraft, Farbe 2:1 gewichtet. */
+		assertEquals(0xc0aa0055, TileCompositor.blend(0x80ff0000, 0x800000ff));
+	}
+
+	@Test
+	public void sourceRegionCoversTheTileAndIsClipped() {
+		Affine srcToDst = new Affine().postScale(2, 2).postTranslate(-100, -50);
+		assertArrayEquals(new int[] { 50, 25, 82, 57 }, TileCompositor.sourceRegion(srcToDst, 400, 300, 0, 0, 64,
+				64));
+		assertArrayEquals(new int[] { 50, 25, 82, 40 }, TileCompositor.sourceRegion(srcToDst, 400, 40, 0, 0, 64,
+				64));
+		assertNull(TileCompositor.sourceRegion(srcToDst, 40, 20, 0, 0, 64, 64));
+		assertNull(TileCompositor.sourceRegion(new Affine().postScale(0, 1), 40, 20, 0, 0, 64, 64));
+
+		int[] region = { 5, 0, 30, 18 };
+		TileCompositor.pad(region, TileCompositor.getPadding(2, 2), 32, 20);
+		assertArrayEquals(new int[] { 0, 0, 32, 20 }, region);
+		assertEquals(12, TileCompositor.getPadding(2, 4));
+	}
+
+	/**
+	 * Das ganze, gefilterte Quellbild in einem Stück ins Ziel gezeichnet.
+	 */
+	private int[] renderWhole(int[] source, int sourceWidth, int sourceHeight, CompiledFilter filter,
+			Affine toOutput, int width, int height) {
+		int[] filtered = source.clone();
+		filter.apply(filtered, sourceWidth, sourceHeight, serial);
+		int[] output = new int[width * height];
+		TileCompositor.composite(filtered, sourceWidth, sourceHeight, toOutput, output, 0, width, width, height);
+		return output;
+	}
+
+	/**
+	 * Wie LayerExporter.renderTile mit inSampleSize 1: pro Kachel nur den
+	 * gepolsterten Ausschnitt des Quellbildes filtern und hineinzeichnen.
+	 */
+	private int[] renderTiles(int[] source, int sourceWidth, int sourceHeight, CompiledFilter filter,
+			Affine toOutput, int width, int height, int tileSize) {
+		int[] output = new int[width * height];
+		for (int top = 0; top < height; top += tileSize) {
+			for (int left = 0; left < width; left += tileSize) {
+				int columns = Math.min(tileSize, width - left);
+				int rows = Math.min(tileSize, height - top);
+				int[] region = TileCompositor.sourceRegion(toOutput, sourceWidth, sourceHeight, left, top, left
+						+ columns, top + rows);
+				if (region == null) {
+					continue;
+				}
+				TileCompositor.pad(region, TileCompositor.getPadding(filter.getMargin(), 1), sourceWidth,
+						sourceHeight);
+				int regionWidth = region[2] - region[0];
+				int regionHeight = region[3] - region[1];
+				int[] pixels = new int[regionWidth * regionHeight];
+				for (int y = 0; y < regionHeight; y++) {
+					System.arraycopy(source, (region[1] + y) * sourceWidth + region[0], pixels, y * regionWidth,
+							regionWidth);
+				}
+				filter.apply(pixels, regionWidth, regionHeight, serial);
+
+				Affine toTile = new Affine().postTranslate(region[0], region[1]);
+				toTile = new Affine(toOutput).preConcat(toTile).postTranslate(-left, -top);
+				TileCompositor.composite(pixels, regionWidth, regionHeight, toTile, output, top * width + left,
+						width, columns, rows);
+			}
+		}
+		return output;
+	}
+
+	private void assertTilesMatch(CompiledFilter filter, float scale, float rotation) {
+		int sourceWidth = 173;
+		int sourceHeight = 121;
+		int[] source = randomImage(sourceWidth, sourceHeight, false);
+		int width = 300;
+		int height = 260;
+		Affine toOutput = Affine.forLayer(sourceWidth, sourceHeight, scale, rotation, 60, 70);
+		int[] whole = renderWhole(source, sourceWidth, sourceHeight, filter, toOutput, width, height);
+		for (int tileSize : new int[] { 16, 64, 100 }) {
+			int[] tiled = renderTiles(source, sourceWidth, sourceHeight, filter, toOutput, width, height, tileSize);
+			for (int i = 0; i < whole.length; i++) {
+				assertEquals("tile " + tileSize + ", pixel " + i % width + "," + i / width, whole[i], tiled[i]);
+			}
+		}
+	}
+
+	@Test
+	public void tilesMatchTheWholeRotatedAndScaledLayer() {
+		assertTilesMatch(CompiledFilter.of(new TransparencyKernel()), 1.3f, 27);
+		assertTilesMatch(CompiledFilter.of(new TransparencyKernel()), 0.6f, -140);
+	}
+
+	@Test
+	public void tilesMatchWithANeighbourhoodFilter() {
+		assertTilesMatch(FilterGraph.parse("blur=2;brightness=50;contrast=100;transparent").compile(), 1.3f, 27);
+		assertTilesMatch(FilterGraph.parse("blur=1;blur=2").compile(), 0.8f, 200);
+	}
+}
@@ -0,0 +1,127 @@
+package ch.rewop.bildkombinierer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Vergleicht die Kernels mit der Vector API mit den skalaren Kernels. Ohne
+ * die Vector API (die Tests laufen ohne desktop/ oder ohne --add-modules
+ * jdk.incubator.vector) wird nur geprüft, dass die skalaren Kernels
+ * verwendet werden.
+ */
+public class VectorKernelsTest {
+
+	private final Random random = new Random(19);
+
+	/**
+	 * Jeder Wert jedes Kanals kommt vor, dazu zufällige Pixel. Die Länge ist
+	 * kein Vielfaches der Lanes, so wird auch der skalare Rest geprüft.
+	 */
+	private int[] image() {
+		int[] argb = new int[256 + 4099];
+		for (int value = 0; value < 256; value++) {
+			argb[value] = (255 - value) << 24 | value << 16 | ((value * 7) & 0xff) << 8 | (255 - value);
+		}
+		for (int i = 256; i < argb.length; i++) {
+			argb[i] = random.nextInt();
+		}
+		return argb;
+	}
+
+	private void assertSameAsScalar(String message, BulkPixelKernel vector, BulkPixelKernel scalar) {
+		int[] source = image();
+		int[] expected = source.clone();
+		scalar.apply(expected, 0, expected.length);
+		int[][] ranges = { { 0, source.length }, { 3, 4 }, { 5, 29 }, { 1, source.length - 2 } };
+		for (int[] range : ranges) {
+			int[] actual = source.clone();
+			vector.apply(actual, range[0], range[1]);
+			for (int i = 0; i < source.length; i++) {
+				boolean inside = i >= range[0] && i < range[1];
+				assertEquals(message + ", range " + range[0] + "-" + range[1] + ", pixel " + i,
+						inside ? expected[i] : source[i], actual[i]);
+			}
+		}
+		for (int i = 0; i < source.length; i++) {
+			assertEquals(message + ", single pixel " + i, expected[i], vector.apply(source[i]));
+		}
+	}
+
+	@Test
+	public void unsupportedOperationsUseTables() {
+		assertTrue(VectorKernels.points(PointOperations.gamma(0.5)) instanceof LookupTableKernel);
+		assertTrue(VectorKernels.points(PointOperations.brightness(10), PointOperations.invert())
+				instanceof LookupTableKernel);
+		TransparencyKernel curve = new TransparencyKernel(1, 1, 1, PointOperations.gamma(2));
+		assertSame(curve, VectorKernels.transparency(curve));
+	}
+
+	@Test
+	public void withoutVectorApiTheScalarKernelsAreUsed() {
+		assumeTrue(!VectorKernels.isAvailable());
+		assertTrue(VectorKernels.points(PointOperations.brightness(10)) instanceof LookupTableKernel);
+		TransparencyKernel kernel = new TransparencyKernel();
+		assertSame(kernel, VectorKernels.transparency(kernel));
+	}
+
+	@Test
+	public void pointsMatchTheTable() {
+		assumeTrue(VectorKernels.isAvailable());
+		int[] brightnesses = { -255, -50, 0, 50, 300 };
+		double[] contrasts = { -100, -50, 0, 100, 400 };
+		for (int brightness : brightnesses) {
+			for (double contrast : contrasts) {
+				PointOperation[] operations = { PointOperations.brightness(brightness),
+						PointOperations.contrast(contrast) };
+				BulkPixelKernel vector = VectorKernels.points(operations);
+				assertTrue(!(vector instanceof LookupTableKernel));
+				assertSameAsScalar("brightness " + brightness + ", contrast " + contrast, vector,
+						new LookupTableKernel(operations));
+			}
+		}
+		PointOperation[] contrastOnly = { PointOperations.contrast(70) };
+		assertSameAsScalar("contrast only", VectorKernels.points(contrastOnly), new LookupTableKernel(contrastOnly));
+		PointOperation[] brightnessOnly = { PointOperations.brightness(77) };
+		assertSameAsScalar("brightness only", VectorKernels.points(brightnessOnly), new LookupTableKernel(
+				brightnessOnly));
+
+		/* Längere Folgen bleiben bei der Tabelle. */
+		assertTrue(VectorKernels.points(PointOperations.contrast(70), PointOperations.brightness(-20))
+				instanceof LookupTableKernel);
+	}
+
+	@Test
+	public void transparencyMatchesTheScalarKernel() {
+		assumeTrue(VectorKernels.isAvailable());
+		TransparencyKernel[] kernels = { new TransparencyKernel(), new TransparencyKernel(1, 0, 0),
+				new TransparencyKernel(0.2, 0.7, 0.1) };
+		for (TransparencyKernel kernel : kernels) {
+			BulkPixelKernel vector = VectorKernels.transparency(kernel);
+			assertTrue(vector != kernel);
+			assertSameAsScalar("transparency", vector, kernel);
+		}
+	}
+
+	@Test
+	public void compiledFiltersMatchWithAndWithoutVectors() {
+		assumeTrue(VectorKernels.isAvailable());
+		BulkPixelKernel scalar = new KernelChain(new LookupTableKernel(PointOperations.brightness(50),
+				PointOperations.contrast(100)), new TransparencyKernel());
+		int[] expected = image();
+		int[] actual = expected.clone();
+		scalar.apply(expected, 0, expected.length);
+		KernelExecutor executor = new KernelExecutor(1);
+		FilterGraph.parse("brightness=50;contrast=100;transparent").compile().apply(actual, actual.length, 1,
+				executor);
+		executor.shutdown();
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("pixel " + i, expected[i], actual[i]);
+		}
+	}
+}